@@ -0,0 +1,146 @@
+package im.vector.services;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.vector.services.EventStreamService.StreamAction;
+
+/**
+ * Drive the event stream state machine from several threads, as the interleaved intents do.
+ */
+public class EventStreamStateMachineTest extends TestCase {
+    private static final int THREADS_COUNT = 8;
+    private static final int ACTIONS_BY_THREAD = 2000;
+
+    /**
+     * Run a task on several threads which start at the same time.
+     * @param task the task, the thread index is provided
+     */
+    private static void runConcurrently(final TaskRunner task) throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(THREADS_COUNT);
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < THREADS_COUNT; i++) {
+            final int index = i;
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        task.run(index);
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+
+        if (!errors.isEmpty()) {
+            throw new Exception(errors.peek());
+        }
+    }
+
+    private interface TaskRunner {
+        void run(int index) throws Exception;
+    }
+
+    public void testOnlyAllowedTransitions() throws Exception {
+        final ConcurrentLinkedQueue<String> invalidTransitions = new ConcurrentLinkedQueue<>();
+        final AtomicInteger transitionsCount = new AtomicInteger(0);
+
+        final EventStreamStateMachine stateMachine = new EventStreamStateMachine(new EventStreamStateMachine.ITransitionListener() {
+            @Override
+            public void onTransition(StreamAction fromState, StreamAction toState, long duration) {
+                transitionsCount.incrementAndGet();
+
+                if (!EventStreamStateMachine.isAllowedTransition(fromState, toState)) {
+                    invalidTransitions.add(fromState + " -> " + toState);
+                }
+            }
+        });
+
+        final AtomicInteger changesCount = new AtomicInteger(0);
+        final StreamAction[] actions = StreamAction.values();
+
+        runConcurrently(new TaskRunner() {
+            @Override
+            public void run(int index) {
+                Random random = new Random(index);
+
+                for (int i = 0; i < ACTIONS_BY_THREAD; i++) {
+                    StreamAction action = actions[random.nextInt(actions.length)];
+                    StreamAction previousState = stateMachine.getState();
+                    boolean isDone = stateMachine.setState(action);
+
+                    // the actions are never states
+                    if ((StreamAction.RESUME == action) || (StreamAction.GCM_STATUS_UPDATE == action)) {
+                        assertFalse(isDone);
+                    }
+
+                    if (isDone && (previousState != action)) {
+                        changesCount.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        assertTrue("invalid transitions " + invalidTransitions, invalidTransitions.isEmpty());
+        assertTrue(transitionsCount.get() > 0);
+        assertTrue(changesCount.get() > 0);
+
+        StreamAction finalState = stateMachine.getState();
+        assertTrue((StreamAction.RESUME != finalState) && (StreamAction.GCM_STATUS_UPDATE != finalState));
+    }
+
+    public void testCatchupsAreCoalesced() throws Exception {
+        final AtomicInteger catchupTransitionsCount = new AtomicInteger(0);
+
+        final EventStreamStateMachine stateMachine = new EventStreamStateMachine(new EventStreamStateMachine.ITransitionListener() {
+            @Override
+            public void onTransition(StreamAction fromState, StreamAction toState, long duration) {
+                if (StreamAction.CATCHUP == toState) {
+                    catchupTransitionsCount.incrementAndGet();
+                }
+            }
+        });
+
+        assertTrue(stateMachine.setState(StreamAction.START));
+        assertTrue(stateMachine.setState(StreamAction.PAUSE));
+
+        for (int round = 0; round < 10; round++) {
+            final AtomicInteger triggeredCatchupsCount = new AtomicInteger(0);
+
+            runConcurrently(new TaskRunner() {
+                @Override
+                public void run(int index) {
+                    for (int i = 0; i < 100; i++) {
+                        if (stateMachine.startCatchup()) {
+                            triggeredCatchupsCount.incrementAndGet();
+                        }
+                    }
+                }
+            });
+
+            assertEquals(1, triggeredCatchupsCount.get());
+            assertEquals(StreamAction.CATCHUP, stateMachine.getState());
+            assertTrue(stateMachine.isCatchupPending());
+
+            // the sync response has been received
+            stateMachine.onCatchupDone();
+            assertTrue(stateMachine.setState(StreamAction.PAUSE));
+        }
+
+        assertEquals(10, catchupTransitionsCount.get());
+    }
+}
@@ -0,0 +1,137 @@
+package im.vector.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import org.matrix.androidsdk.util.ImageUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resize a large photo with an EXIF rotation and check that the memory budget is respected.
+ */
+public class VectorImageResizerTest extends AndroidTestCase {
+    // the synthetic photo size
+    private static final int SRC_WIDTH = 4000;
+    private static final int SRC_HEIGHT = 3000;
+
+    // the region decoder and the JPEG encoder buffers are not part of the budget
+    private static final long CODEC_MEMORY_MARGIN = 8 * 1024 * 1024;
+
+    private File mSrcFile;
+    private File mDstFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mSrcFile = new File(getContext().getCacheDir(), "VectorImageResizerTest_src.jpg");
+        mDstFile = new File(getContext().getCacheDir(), "VectorImageResizerTest_dst.jpg");
+
+        // the top left quarter is red, the remaining is blue
+        Bitmap bitmap = Bitmap.createBitmap(SRC_WIDTH, SRC_HEIGHT, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+
+        canvas.drawColor(Color.BLUE);
+        paint.setColor(Color.RED);
+        canvas.drawRect(0, 0, SRC_WIDTH / 2, SRC_HEIGHT / 2, paint);
+
+        FileOutputStream outputStream = new FileOutputStream(mSrcFile);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+        outputStream.close();
+        bitmap.recycle();
+
+        // as a photo taken in portrait
+        ExifInterface exifInterface = new ExifInterface(mSrcFile.getAbsolutePath());
+        exifInterface.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+        exifInterface.saveAttributes();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSrcFile.delete();
+        mDstFile.delete();
+
+        super.tearDown();
+    }
+
+    /**
+     * @return the allocated memory (java and native heaps) in bytes
+     */
+    private static long getAllocatedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) + Debug.getNativeHeapAllocatedSize();
+    }
+
+    public void testPeakMemoryBudget() throws Exception {
+        int rotationAngle = ImageUtils.getRotationAngleForBitmap(getContext(), Uri.fromFile(mSrcFile));
+        assertEquals(90, rotationAngle);
+
+        System.gc();
+        final long initialMemory = getAllocatedMemory();
+        final AtomicLong peakMemory = new AtomicLong(initialMemory);
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+
+        Thread samplingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isDone.get()) {
+                    peakMemory.set(Math.max(peakMemory.get(), getAllocatedMemory()));
+
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        samplingThread.start();
+
+        // the full size does not fit the budget : it is reduced
+        boolean isResized = VectorImageResizer.resizeAndRotate(mSrcFile.getAbsolutePath(), SRC_WIDTH, SRC_HEIGHT, rotationAngle, 90, true, mDstFile);
+
+        isDone.set(true);
+        samplingThread.join();
+
+        assertTrue(isResized);
+
+        long usedMemory = peakMemory.get() - initialMemory;
+        assertTrue("the resize used " + usedMemory + " bytes", usedMemory <= VectorImageResizer.getPeakMemoryBudget() + CODEC_MEMORY_MARGIN);
+
+        BitmapFactory.Options bounds = VectorImageResizer.decodeBounds(mDstFile.getAbsolutePath());
+
+        // rotated and reduced
+        assertTrue(bounds.outHeight > bounds.outWidth);
+        assertTrue((long) bounds.outWidth * bounds.outHeight * 4 <= VectorImageResizer.getDestinationBudget());
+
+        // the red quarter is now the top right one
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 8;
+        Bitmap result = BitmapFactory.decodeFile(mDstFile.getAbsolutePath(), options);
+
+        int topRight = result.getPixel(result.getWidth() * 3 / 4, result.getHeight() / 4);
+        int topLeft = result.getPixel(result.getWidth() / 4, result.getHeight() / 4);
+        result.recycle();
+
+        assertTrue(Color.red(topRight) > Color.blue(topRight));
+        assertTrue(Color.blue(topLeft) > Color.red(topLeft));
+    }
+
+    public void testOriginalSizeIsNeverReduced() {
+        // the original size does not fit the budget
+        assertTrue((long) SRC_WIDTH * SRC_HEIGHT * 4 > VectorImageResizer.getDestinationBudget());
+        assertFalse(VectorImageResizer.resizeAndRotate(mSrcFile.getAbsolutePath(), SRC_WIDTH, SRC_HEIGHT, 90, 90, false, mDstFile));
+    }
+}
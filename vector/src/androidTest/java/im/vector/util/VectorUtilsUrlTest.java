@@ -0,0 +1,165 @@
+package im.vector.util;
+
+import android.text.TextUtils;
+
+import junit.framework.TestCase;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compare the URL tokenizer with the regex it replaced, and time both on pathological inputs.
+ */
+public class VectorUtilsUrlTest extends TestCase {
+    private static final String LOG_TAG = "VectorUtilsUrlTest";
+
+    private static final int BENCHMARK_RUNS = 5;
+
+    // the former VectorUtils pattern
+    private static final Pattern mUrlPattern = Pattern.compile(
+            "(?:^|[\\W])((ht|f)tp(s?):\\/\\/|www\\.)"
+                    + "(([\\w\\-]+\\.){1,}?([\\w\\-.~]+\\/?)*"
+                    + "[\\p{Alnum}.,%_=?&#\\-+()\\[\\]\\*$~@!:/{};']*)",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
+
+    private static final String[] CORPUS = {
+            "",
+            "no link here",
+            "http://matrix.org",
+            "https://matrix.org/docs/spec/client_server/r0.2.0.html#id123",
+            "see www.example.com.",
+            "HTTPS://EXAMPLE.COM/PATH",
+            "ftp://files.example.org/pub and ftps://secure.example.org/file",
+            // permalinks
+            "https://matrix.to/#/!MRsnSntDUjyVpQqZyw:matrix.org/$1490704497157zhwUF:matrix.org",
+            "https://matrix.to/#/#riot:matrix.org and https://matrix.to/#/@user:matrix.org",
+            // punctuation edges
+            "(http://example.com)",
+            "link: http://example.com, then http://example.org; and http://example.net!",
+            "'http://example.com/it's'",
+            "http://example.com/a?b=c&d=e#f",
+            "http://example.com/path_(with)_parenthesis",
+            "[title](http://example.com/markdown)",
+            "[title](http://example.com/markdown) http://example.com/markdown",
+            "http://localhost",
+            "http://.com",
+            "http://-a.b",
+            "xhttp://example.com",
+            "\u00e9 http://example.com",
+            "http://example.com/http://example.org",
+            "http://a.b http://a.b http://a.b",
+            "www.a.b,www.a.b www.c.d",
+            // duplicates
+            "http://example.com http://example.com/ http://example.com",
+            "http://example.com\nhttp://example.com\r\nhttp://example.org",
+    };
+
+    /**
+     * The former VectorUtils.listURLs implementation.
+     * @param text the text to parse
+     * @return the URLs
+     */
+    private static List<String> listURLsWithPattern(String text) {
+        ArrayList<String> URLs = new ArrayList<>();
+
+        if (!TextUtils.isEmpty(text)) {
+            Matcher matcher = mUrlPattern.matcher(text);
+
+            while (matcher.find()) {
+                int matchStart = matcher.start(1);
+                int matchEnd = matcher.end();
+
+                String charBef = "";
+                String charAfter = "";
+
+                if (matchStart > 2) {
+                    charBef = text.substring(matchStart - 2, matchStart);
+                }
+
+                if ((matchEnd - 1) < text.length()) {
+                    charAfter = text.substring(matchEnd - 1, matchEnd);
+                }
+
+                // keep the link between parenthesis, it might be a link [title](link)
+                if (!TextUtils.equals(charAfter, ")") || !TextUtils.equals(charBef, "](")) {
+                    String url = text.substring(matchStart, matchEnd);
+
+                    if (URLs.indexOf(url) < 0) {
+                        URLs.add(url);
+                    }
+                }
+            }
+        }
+
+        return URLs;
+    }
+
+    /**
+     * Build a long text by repeating a fragment.
+     * @param fragment the fragment
+     * @param count the repetitions count
+     * @return the text
+     */
+    private static String repeat(String fragment, int count) {
+        StringBuilder builder = new StringBuilder(fragment.length() * count);
+
+        for (int i = 0; i < count; i++) {
+            builder.append(fragment);
+        }
+
+        return builder.toString();
+    }
+
+    public void testSameResultsAsPattern() {
+        for (String text : CORPUS) {
+            assertEquals(text, listURLsWithPattern(text), VectorUtils.listURLs(text));
+        }
+    }
+
+    public void testRanges() {
+        String text = "a http://example.com b http://example.com c";
+        int[] ranges = VectorUtils.listURLRanges(text);
+
+        // the duplicated URL is listed once
+        assertEquals(2, ranges.length);
+        assertEquals("http://example.com", text.substring(ranges[0], ranges[1]));
+    }
+
+    public void testPathologicalInputs() {
+        String[] inputs = {
+                repeat("http://a.b", 2000),
+                repeat("http://a.b ", 2000),
+                repeat("www.", 5000),
+                repeat("http://", 3000),
+                "http://" + repeat("a-", 5000) + ".",
+                repeat("a", 20000),
+                repeat("!$~@", 5000),
+        };
+
+        for (String input : inputs) {
+            List<String> patternURLs = null;
+            List<String> tokenizerURLs = null;
+            long patternDuration = Long.MAX_VALUE;
+            long tokenizerDuration = Long.MAX_VALUE;
+
+            // keep the best run, the first ones are not compiled yet
+            for (int run = 0; run < BENCHMARK_RUNS; run++) {
+                long startTime = System.nanoTime();
+                patternURLs = listURLsWithPattern(input);
+                patternDuration = Math.min(patternDuration, System.nanoTime() - startTime);
+
+                startTime = System.nanoTime();
+                tokenizerURLs = VectorUtils.listURLs(input);
+                tokenizerDuration = Math.min(tokenizerDuration, System.nanoTime() - startTime);
+            }
+
+            Log.d(LOG_TAG, "## testPathologicalInputs() : " + input.length() + " chars : pattern " + (patternDuration / 1000) + " us, tokenizer " + (tokenizerDuration / 1000) + " us");
+
+            assertEquals(patternURLs, tokenizerURLs);
+        }
+    }
+}
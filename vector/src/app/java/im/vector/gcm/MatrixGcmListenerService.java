@@ -17,16 +17,12 @@
 
 package im.vector.gcm;
 
-import android.text.TextUtils;
-
 import org.matrix.androidsdk.util.Log;
 
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 import com.google.gson.JsonParser;
 
-import org.matrix.androidsdk.MXSession;
-import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.rest.model.Event;
 
 import java.util.Map;
@@ -34,7 +30,6 @@ import java.util.Map;
 import im.vector.Matrix;
 import im.vector.VectorApp;
 import im.vector.activity.CommonActivityUtils;
-import im.vector.services.EventStreamService;
 
 /**
  * Class implementing GcmListenerService.
@@ -110,39 +105,12 @@ public class MatrixGcmListenerService extends FirebaseMessagingService {
             if (!gcmManager.isBackgroundSyncAllowed() && VectorApp.isAppInBackground()) {
                 Log.d(LOG_TAG, "## onMessageReceived() : the background sync is disabled");
 
-                EventStreamService eventStreamService = EventStreamService.getInstance();
-
-                if (null != eventStreamService) {
-                    Event event = parseEvent(data);
-
-                    if (null != event) {
-                        // TODO the session id should be provided by the server
-                        MXSession session = Matrix.getInstance(getApplicationContext()).getDefaultSession();
-                        RoomState roomState = null;
-
-                        if (null != session) {
-                            try {
-                                roomState = session.getDataHandler().getRoom(event.roomId).getLiveState();
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, "Fail to retrieve the roomState of " + event.roomId);
-                            }
-
-                            if (TextUtils.equals(event.getType(), Event.EVENT_TYPE_MESSAGE_ENCRYPTED) && session.isCryptoEnabled()) {
-                                session.getCrypto().decryptEvent(event, null);
-                            }
-
-                            eventStreamService.prepareNotification(event, roomState, session.getDataHandler().getBingRulesManager().fulfilledBingRule(event));
-                            eventStreamService.refreshMessagesNotification();
-                        }
-
-                        Log.d(LOG_TAG, "## onMessageReceived() : trigger a notification");
-                    } else {
-                        Log.d(LOG_TAG, "## onMessageReceived() : fail to parse the notification data");
-                    }
-
-                } else {
-                    Log.d(LOG_TAG, "## onMessageReceived() : there is no event service so nothing is done");
-                }
+                // the pushes are batched and only the payloads are notified
+                PushCatchupManager.getInstance().onPush(getApplicationContext(),
+                        (null != data) ? data.get("room_id") : null,
+                        (null != data) ? data.get("id") : null,
+                        parseEvent(data),
+                        false);
 
                 return;
             }
@@ -155,7 +123,12 @@ public class MatrixGcmListenerService extends FirebaseMessagingService {
                 mCheckLaunched = true;
             }
 
-            CommonActivityUtils.catchupEventStream(MatrixGcmListenerService.this);
+            // notify the pushed event, the full catchup is deferred
+            PushCatchupManager.getInstance().onPush(getApplicationContext(),
+                    (null != data) ? data.get("room_id") : null,
+                    (null != data) ? data.get("id") : null,
+                    parseEvent(data),
+                    true);
         } catch (Exception e) {
             Log.d(LOG_TAG, "## onMessageReceivedInternal() failed : " + e.getMessage());
         }
@@ -37,6 +37,7 @@ import org.matrix.androidsdk.call.MXCallsManager;
 import org.matrix.androidsdk.data.store.IMXStore;
 import org.matrix.androidsdk.data.store.MXFileStore;
 import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.data.store.MXStoreListener;
 import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomState;
 import org.matrix.androidsdk.db.MXLatestChatMessageCache;
@@ -53,6 +54,7 @@ import im.vector.activity.VectorHomeActivity;
 import im.vector.gcm.GcmRegistrationManager;
 import im.vector.services.EventStreamService;
 import im.vector.store.LoginStorage;
+import im.vector.util.VectorTracer;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -675,6 +677,106 @@ public class Matrix {
         return mGCMRegistrationManager;
     }
 
+    //==============================================================================================================
+    // Stores opening
+    //==============================================================================================================
+
+    // the max number of stores which are loaded at the same time
+    private static final int MAX_PARALLEL_STORES_OPENINGS = 2;
+
+    // the sessions whose store is waiting to be opened
+    private final ArrayList<MXSession> mPendingStoresOpenings = new ArrayList<>();
+
+    // the number of stores which are loading
+    private int mOpeningStoresCount = 0;
+
+    /**
+     * Open the stores of some sessions.
+     * The stores are loaded in parallel, at most MAX_PARALLEL_STORES_OPENINGS at the same time,
+     * in the list order so that the default session should be provided first.
+     * The events streams wait until their store is ready.
+     * @param sessions the sessions
+     */
+    public void openStores(Collection<MXSession> sessions) {
+        synchronized (mPendingStoresOpenings) {
+            for (MXSession session : sessions) {
+                if (mPendingStoresOpenings.indexOf(session) < 0) {
+                    mPendingStoresOpenings.add(session);
+                }
+            }
+        }
+
+        openNextStores();
+    }
+
+    /**
+     * Open the pending stores while there are free loading slots.
+     */
+    private void openNextStores() {
+        ArrayList<MXSession> sessionsToOpen = new ArrayList<>();
+
+        synchronized (mPendingStoresOpenings) {
+            while ((mOpeningStoresCount < MAX_PARALLEL_STORES_OPENINGS) && !mPendingStoresOpenings.isEmpty()) {
+                sessionsToOpen.add(mPendingStoresOpenings.remove(0));
+                mOpeningStoresCount++;
+            }
+        }
+
+        for (MXSession session : sessionsToOpen) {
+            final IMXStore store = session.isAlive() ? session.getDataHandler().getStore() : null;
+
+            if ((null == store) || store.isReady()) {
+                onStoreOpened();
+                continue;
+            }
+
+            Log.d(LOG_TAG, "## openNextStores() : open the store of " + session.getMyUserId());
+
+            final VectorTracer.Span span = VectorTracer.beginAsyncSpan(VectorTracer.SPAN_STORE_PRELOAD);
+
+            store.addMXStoreListener(new MXStoreListener() {
+                // the listeners cannot be removed while they are dispatched
+                private boolean mIsDone = false;
+
+                private void onDone() {
+                    if (!mIsDone) {
+                        mIsDone = true;
+                        span.end(store.getRooms().size() + " rooms");
+                        onStoreOpened();
+                    }
+                }
+
+                @Override
+                public void onStoreReady(String accountId) {
+                    onDone();
+                }
+
+                @Override
+                public void onStoreCorrupted(String accountId, String description) {
+                    onDone();
+                }
+
+                @Override
+                public void onStoreOOM(String accountId, String description) {
+                    onDone();
+                }
+            });
+
+            store.open();
+        }
+    }
+
+    /**
+     * A store has been opened, open the next one.
+     */
+    private void onStoreOpened() {
+        synchronized (mPendingStoresOpenings) {
+            mOpeningStoresCount--;
+        }
+
+        openNextStores();
+    }
+
     //==============================================================================================================
     // Push rules management
     //==============================================================================================================
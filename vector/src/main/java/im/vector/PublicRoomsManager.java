@@ -31,6 +31,8 @@ import org.matrix.androidsdk.rest.model.PublicRoomsResponse;
 import java.util.ArrayList;
 import java.util.List;
 
+import im.vector.util.VectorRequestScheduler;
+
 /**
  * Manage the public rooms
  */
@@ -121,76 +123,97 @@ public class PublicRoomsManager {
             return;
         }
 
+        final MXSession session = mSession;
+        final String requestServer = mRequestServer;
+        final String thirdPartyInstanceId = mThirdPartyInstanceId;
+        final boolean includeAllNetworks = mIncludeAllNetworks;
+        final String searchedPattern = mSearchedPattern;
+        final String forwardPaginationToken = mForwardPaginationToken;
+
+        // the next pages are requested before the user reaches the end of the list
+        int priority = (null == forwardPaginationToken) ? VectorRequestScheduler.PRIORITY_INTERACTIVE : VectorRequestScheduler.PRIORITY_VISIBLE_PREFETCH;
+
         //final String server, final String pattern, final String since, final ApiCallback<PublicRoomsResponse> callback
-        mSession.getEventsApiClient().loadPublicRooms(mRequestServer, mThirdPartyInstanceId, mIncludeAllNetworks, mSearchedPattern, mForwardPaginationToken, PUBLIC_ROOMS_LIMIT, new ApiCallback<PublicRoomsResponse>() {
+        VectorRequestScheduler.getInstance().schedule(priority, new VectorRequestScheduler.IScheduledRequest() {
             @Override
-            public void onSuccess(PublicRoomsResponse publicRoomsResponse) {
-                // check if the request response is still expected
-                if (TextUtils.equals(fToken, mRequestKey)) {
-                    List<PublicRoom> list = publicRoomsResponse.chunk;
-
-                    // avoid the null case
-                    if (null == list) {
-                        list = new ArrayList<>();
-                    }
+            public void send(Runnable onDone) {
+                // the request has been cancelled while it was pending
+                if (!TextUtils.equals(fToken, mRequestKey)) {
+                    onDone.run();
+                    return;
+                }
 
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : retrieves " + list.size() + " rooms");
+                session.getEventsApiClient().loadPublicRooms(requestServer, thirdPartyInstanceId, includeAllNetworks, searchedPattern, forwardPaginationToken, PUBLIC_ROOMS_LIMIT, VectorRequestScheduler.releaseOnDone(onDone, new ApiCallback<PublicRoomsResponse>() {
+                    @Override
+                    public void onSuccess(PublicRoomsResponse publicRoomsResponse) {
+                        // check if the request response is still expected
+                        if (TextUtils.equals(fToken, mRequestKey)) {
+                            List<PublicRoom> list = publicRoomsResponse.chunk;
 
-                    mForwardPaginationToken = publicRoomsResponse.next_batch;
+                            // avoid the null case
+                            if (null == list) {
+                                list = new ArrayList<>();
+                            }
 
-                    if (null != callback) {
-                        callback.onSuccess(list);
-                    }
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : retrieves " + list.size() + " rooms");
 
-                    mRequestKey = null;
-                } else {
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
-                }
-            }
+                            mForwardPaginationToken = publicRoomsResponse.next_batch;
 
-            @Override
-            public void onNetworkError(Exception e) {
-                // check if the request response is still expected
-                if (TextUtils.equals(fToken, mRequestKey)) {
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : onNetworkError " + e.getMessage());
+                            if (null != callback) {
+                                callback.onSuccess(list);
+                            }
 
-                    if (null != callback) {
-                        callback.onNetworkError(e);
+                            mRequestKey = null;
+                        } else {
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
+                        }
                     }
-                    mRequestKey = null;
-                } else {
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
-                }
-            }
-
-            @Override
-            public void onMatrixError(MatrixError e) {
-                // check if the request response is still expected
-                if (TextUtils.equals(fToken, mRequestKey)) {
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : MatrixError " + e.getLocalizedMessage());
 
-                    if (null != callback) {
-                        callback.onMatrixError(e);
+                    @Override
+                    public void onNetworkError(Exception e) {
+                        // check if the request response is still expected
+                        if (TextUtils.equals(fToken, mRequestKey)) {
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : onNetworkError " + e.getMessage());
+
+                            if (null != callback) {
+                                callback.onNetworkError(e);
+                            }
+                            mRequestKey = null;
+                        } else {
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
+                        }
                     }
-                    mRequestKey = null;
-                } else {
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
-                }
-            }
 
-            @Override
-            public void onUnexpectedError(Exception e) {
-                // check if the request response is still expected
-                if (TextUtils.equals(fToken, mRequestKey)) {
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : onUnexpectedError " + e.getLocalizedMessage());
+                    @Override
+                    public void onMatrixError(MatrixError e) {
+                        // check if the request response is still expected
+                        if (TextUtils.equals(fToken, mRequestKey)) {
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : MatrixError " + e.getLocalizedMessage());
+
+                            if (null != callback) {
+                                callback.onMatrixError(e);
+                            }
+                            mRequestKey = null;
+                        } else {
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
+                        }
+                    }
 
-                    if (null != callback) {
-                        callback.onUnexpectedError(e);
+                    @Override
+                    public void onUnexpectedError(Exception e) {
+                        // check if the request response is still expected
+                        if (TextUtils.equals(fToken, mRequestKey)) {
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : onUnexpectedError " + e.getLocalizedMessage());
+
+                            if (null != callback) {
+                                callback.onUnexpectedError(e);
+                            }
+                            mRequestKey = null;
+                        } else {
+                            Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
+                        }
                     }
-                    mRequestKey = null;
-                } else {
-                    Log.d(LOG_TAG, "## launchPublicRoomsRequest() : the request has been cancelled");
-                }
+                }));
             }
         });
     }
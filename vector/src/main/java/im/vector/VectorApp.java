@@ -42,7 +42,6 @@ import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -56,8 +55,10 @@ import im.vector.gcm.GcmRegistrationManager;
 import im.vector.receiver.HeadsetConnectionReceiver;
 import im.vector.services.EventStreamService;
 import im.vector.util.RageShake;
+import im.vector.util.StartupTaskGraph;
 import im.vector.util.VectorCallSoundManager;
 import im.vector.util.VectorMarkdownParser;
+import im.vector.util.VectorTracer;
 
 /**
  * The main application injection point
@@ -114,9 +115,10 @@ public class VectorApp extends Application {
     private final ArrayList<String> mCreatedActivities = new ArrayList<>();
 
     /**
-     * Markdown parser
+     * Markdown parser (lazily created)
      */
-    public VectorMarkdownParser mMarkdownParser;
+    private VectorMarkdownParser mMarkdownParser;
+    private boolean mIsMarkdownParserFailed = false;
 
     /**
      * @return the current instance
@@ -147,35 +149,11 @@ public class VectorApp extends Application {
             Log.e(LOG_TAG, "fails to retrieve the package info " + e.getMessage());
         }
 
-        VECTOR_VERSION_STRING = Matrix.getInstance(this).getVersion(true);
-
-        // not the first launch
-        if (null != Matrix.getInstance(this).getDefaultSession()) {
-            SDK_VERSION_STRING = Matrix.getInstance(this).getDefaultSession().getVersion(true);
-        } else {
-            SDK_VERSION_STRING = "";
-        }
-
         mLogsDirectoryFile = new File(getCacheDir().getAbsolutePath() + "/logs");
 
         org.matrix.androidsdk.util.Log.setLogDirectory(mLogsDirectoryFile);
         org.matrix.androidsdk.util.Log.init("RiotLog");
 
-        // log the application version to trace update
-        // useful to track backward compatibility issues
-
-        Log.d(LOG_TAG, "----------------------------------------------------------------");
-        Log.d(LOG_TAG, "----------------------------------------------------------------");
-        Log.d(LOG_TAG, " Application version: " + VECTOR_VERSION_STRING);
-        Log.d(LOG_TAG, " SDK version: " + SDK_VERSION_STRING);
-        Log.d(LOG_TAG, " Local time: " + (new SimpleDateFormat("MM-dd HH:mm:ss.SSSZ", Locale.US)).format(new Date()));
-        Log.d(LOG_TAG, "----------------------------------------------------------------");
-        Log.d(LOG_TAG, "----------------------------------------------------------------\n\n\n\n");
-
-        GAHelper.initGoogleAnalytics(getApplicationContext());
-
-        mRageShake.start(this);
-
         // init the REST client
         MXSession.initUserAgent(getApplicationContext());
 
@@ -227,13 +205,83 @@ public class VectorApp extends Application {
         // detect if the headset is plugged / unplugged.
         registerReceiver(new HeadsetConnectionReceiver(), new IntentFilter(Intent.ACTION_HEADSET_PLUG));
 
-        // create the markdown parser
-        try {
-            mMarkdownParser = new VectorMarkdownParser(this);
-        } catch (Exception e) {
-            // reported by GA
-            Log.e(LOG_TAG, "cannot create the mMarkdownParser " + e.getMessage());
+        // the other initializers are not required to display the first activity
+        initDeferredTasks();
+    }
+
+    /**
+     * Start the initializers which can be run after onCreate, in background when possible.
+     */
+    private void initDeferredTasks() {
+        final Context appContext = getApplicationContext();
+
+        new StartupTaskGraph()
+                // install the crash handler as soon as possible
+                .addTask("analytics", false, new Runnable() {
+                    @Override
+                    public void run() {
+                        GAHelper.initGoogleAnalytics(appContext);
+                    }
+                })
+                // load the credentials and create the sessions
+                .addTask("sessions", false, new Runnable() {
+                    @Override
+                    public void run() {
+                        VECTOR_VERSION_STRING = Matrix.getInstance(appContext).getVersion(true);
+
+                        // not the first launch
+                        if (null != Matrix.getInstance(appContext).getDefaultSession()) {
+                            SDK_VERSION_STRING = Matrix.getInstance(appContext).getDefaultSession().getVersion(true);
+                        } else {
+                            SDK_VERSION_STRING = "";
+                        }
+                    }
+                })
+                // log the application version to trace update
+                // useful to track backward compatibility issues
+                .addTask("versionLog", false, new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(LOG_TAG, "----------------------------------------------------------------");
+                        Log.d(LOG_TAG, "----------------------------------------------------------------");
+                        Log.d(LOG_TAG, " Application version: " + VECTOR_VERSION_STRING);
+                        Log.d(LOG_TAG, " SDK version: " + SDK_VERSION_STRING);
+                        Log.d(LOG_TAG, " Local time: " + (new SimpleDateFormat("MM-dd HH:mm:ss.SSSZ", Locale.US)).format(new Date()));
+                        Log.d(LOG_TAG, "----------------------------------------------------------------");
+                        Log.d(LOG_TAG, "----------------------------------------------------------------\n\n\n\n");
+                    }
+                }, "sessions")
+                // the sensor listener must be registered on the main thread
+                .addTask("rageShake", true, new Runnable() {
+                    @Override
+                    public void run() {
+                        mRageShake.start(VectorApp.this);
+                    }
+                })
+                .start();
+    }
+
+    /**
+     * Provides the markdown parser.
+     * It is created at the first call, it must be called from the UI thread.
+     * @return the markdown parser, null if it cannot be created
+     */
+    public VectorMarkdownParser getMarkdownParser() {
+        if ((null == mMarkdownParser) && !mIsMarkdownParserFailed) {
+            long t0 = System.currentTimeMillis();
+
+            try {
+                mMarkdownParser = new VectorMarkdownParser(this);
+            } catch (Exception e) {
+                // reported by GA
+                Log.e(LOG_TAG, "cannot create the mMarkdownParser " + e.getMessage());
+                mIsMarkdownParserFailed = true;
+            }
+
+            Log.d(LOG_TAG, "## getMarkdownParser() : created in " + (System.currentTimeMillis() - t0) + " ms");
         }
+
+        return mMarkdownParser;
     }
 
     /**
@@ -242,8 +290,10 @@ public class VectorApp extends Application {
      * @param listener the result listener
      */
     public static void markdownToHtml(final String text, final VectorMarkdownParser.IVectorMarkdownParserListener listener) {
-        if (null != getInstance().mMarkdownParser) {
-            getInstance().mMarkdownParser.markdownToHtml(text, listener);
+        VectorMarkdownParser markdownParser = getInstance().getMarkdownParser();
+
+        if (null != markdownParser) {
+            markdownParser.markdownToHtml(text, listener);
         } else {
             (new Handler(Looper.getMainLooper())).post(new Runnable() {
                 @Override
@@ -267,6 +317,11 @@ public class VectorApp extends Application {
             CommonActivityUtils.pauseEventStream(VectorApp.this);
         } else {
             Log.d(LOG_TAG, "suspendApp ; the event stream is not paused because GCM is disabled.");
+
+            // but the quiet sessions are synced less often
+            if (null != EventStreamService.getInstance()) {
+                EventStreamService.getInstance().startBackgroundSyncScheduler();
+            }
         }
 
         // the sessions are not anymore seen as "online"
@@ -574,13 +629,12 @@ public class VectorApp extends Application {
     public static final String GOOGLE_ANALYTICS_STARTUP_STORE_PRELOAD_ACTION = "storePreload";
     public static final String GOOGLE_ANALYTICS_STARTUP_MOUNT_DATA_ACTION = "mountData";
     public static final String GOOGLE_ANALYTICS_STARTUP_LAUNCH_SCREEN_ACTION = "launchScreen";
+    public static final String GOOGLE_ANALYTICS_STARTUP_SNAPSHOT_SCREEN_ACTION = "snapshotScreen";
     public static final String GOOGLE_ANALYTICS_STARTUP_CONTACTS_ACTION = "Contacts";
 
-    // keep track of the GA events
-    private static HashMap<String, String> mGAStatsMap = new HashMap<>();
-
     /**
-     * Send a GA stats
+     * Send a GA stats.
+     * The stats are also traced, even when GA is not available.
      * @param context the context
      * @param category the category
      * @param action the action
@@ -588,21 +642,7 @@ public class VectorApp extends Application {
      * @param value the value
      */
     public static void sendGAStats(Context context, String category, String action, String label, long value) {
-        try {
-            String key = "[" + category + "] " + action;
-            String mapValue = "" ;
-
-            if (!TextUtils.isEmpty(label)) {
-                mapValue += label;
-            } else {
-                mapValue += value + " ms";
-            }
-
-            mGAStatsMap.put(key, mapValue);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## sendGAStats() failed " + e.getMessage());
-        }
-
+        VectorTracer.mark("[" + category + "] " + action, label, value);
         GAHelper.sendGAStats(context, category, action, label, value);
     }
 
@@ -611,13 +651,7 @@ public class VectorApp extends Application {
      * @return the GA stats.
      */
     public static String getGAStats() {
-        String stats = "";
-
-        for(String k : mGAStatsMap.keySet()) {
-            stats += k + " : " + mGAStatsMap.get(k) + "\n";
-        }
-
-        return stats;
+        return VectorTracer.getMarks();
     }
 
     /**
@@ -68,8 +68,6 @@ import org.matrix.androidsdk.util.Log;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -91,6 +89,8 @@ import im.vector.fragments.VectorUnknownDevicesFragment;
 import im.vector.ga.GAHelper;
 import im.vector.gcm.GcmRegistrationManager;
 import im.vector.services.EventStreamService;
+import im.vector.util.VectorFileUtils;
+import im.vector.util.VectorHomeSnapshot;
 import im.vector.util.VectorUtils;
 import me.leolin.shortcutbadger.ShortcutBadger;
 
@@ -180,6 +180,9 @@ public class CommonActivityUtils {
 
             // clear credentials
             Matrix.getInstance(context).clearSession(context, session, clearCredentials);
+
+            // the rooms list snapshot might belong to this session
+            VectorHomeSnapshot.clear(context);
         }
     }
 
@@ -357,6 +360,9 @@ public class CommonActivityUtils {
         // clear credentials
         Matrix.getInstance(context).clearSessions(context, true);
 
+        // clear the rooms list snapshot
+        VectorHomeSnapshot.clear(context);
+
         // ensure that corrupted values are cleared
         Matrix.getInstance(context).getLoginStorage().clear();
 
@@ -1487,29 +1493,8 @@ public class CommonActivityUtils {
         }
 
         // Copy source file to destination
-        FileInputStream inputStream = null;
-        FileOutputStream outputStream = null;
-        try {
-            dstFile.createNewFile();
-
-            inputStream = new FileInputStream(sourceFile);
-            outputStream = new FileOutputStream(dstFile);
-
-            byte[] buffer = new byte[1024 * 10];
-            int len;
-            while ((len = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, len);
-            }
-        } catch (Exception e) {
+        if (!VectorFileUtils.copyFile(sourceFile, dstFile)) {
             dstFile = null;
-        } finally {
-            // Close resources
-            try {
-                if (inputStream != null) inputStream.close();
-                if (outputStream != null) outputStream.close();
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "## saveFileInto(): Exception Msg=" + e.getMessage());
-            }
         }
 
         if (null != dstFile) {
@@ -1838,7 +1823,9 @@ public class CommonActivityUtils {
     public static void onTrimMemory(Activity activity, int level) {
         String activityName = (null != activity) ? activity.getClass().getSimpleName() : "NotAvailable";
         Log.e(LOW_MEMORY_LOG_TAG, "Active application : onTrimMemory from " + activityName + " level=" + level);
-        // TODO implement things to reduce memory usage
+
+        // release the generated avatars
+        VectorUtils.onTrimMemory(level);
 
         displayMemoryInformation(activity, "onTrimMemory");
     }
@@ -18,6 +18,9 @@ package im.vector.activity;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.ListView;
 import org.matrix.androidsdk.util.Log;
 
 import org.matrix.androidsdk.MXSession;
@@ -27,13 +30,16 @@ import im.vector.ErrorListener;
 import im.vector.Matrix;
 import im.vector.R;
 import im.vector.VectorApp;
+import im.vector.adapters.VectorHomeSnapshotAdapter;
 import im.vector.gcm.GcmRegistrationManager;
 import im.vector.receiver.VectorUniversalLinkReceiver;
 import im.vector.services.EventStreamService;
+import im.vector.util.VectorHomeSnapshot;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
@@ -52,8 +58,17 @@ public class SplashActivity extends MXCActionBarActivity {
     private HashMap<MXSession, IMXEventListener> mListeners;
     private HashMap<MXSession, IMXEventListener> mDoneListeners;
 
+    // the home screen is displayed when this session is ready
+    private MXSession mDefaultSession;
+
+    // true when the home screen has been launched
+    private boolean mIsHomeStarted = false;
+
     private final long mLaunchTime = System.currentTimeMillis();
 
+    // true when the rooms list snapshot is displayed
+    private boolean mIsSnapshotDisplayed = false;
+
     /**
      * @return true if a store is corrupted.
      */
@@ -111,6 +126,12 @@ public class SplashActivity extends MXCActionBarActivity {
             }
 
             startActivity(intent);
+
+            // the snapshot is smoothly replaced by the live rooms list
+            if (mIsSnapshotDisplayed) {
+                overridePendingTransition(android.R.anim.fade_in, android.R.anim.fade_out);
+            }
+
             SplashActivity.this.finish();
         } else {
             CommonActivityUtils.logout(this);
@@ -138,6 +159,9 @@ public class SplashActivity extends MXCActionBarActivity {
         mDoneListeners = new HashMap<>();
 
         ArrayList<String> matrixIds = new ArrayList<>();
+        ArrayList<MXSession> sessionsToOpen = new ArrayList<>();
+
+        mDefaultSession = Matrix.getInstance(getApplicationContext()).getDefaultSession();
 
         for(final MXSession session : mSessions) {
             final MXSession fSession = session;
@@ -152,7 +176,7 @@ public class SplashActivity extends MXCActionBarActivity {
 
                     if (!isAlreadyDone) {
                         synchronized (LOG_TAG) {
-                            boolean noMoreListener;
+                            boolean isDefaultSessionReady;
 
                             Log.e(LOG_TAG, "Session " + fSession.getCredentials().userId + " is initialized");
 
@@ -163,7 +187,7 @@ public class SplashActivity extends MXCActionBarActivity {
                             // remove from the pending list
 
                             mListeners.remove(fSession);
-                            noMoreListener = (mListeners.size() == 0);
+                            isDefaultSessionReady = !mListeners.containsKey(mDefaultSession);
 
                             try {
                                 int nbrRooms = fSession.getDataHandler().getStore().getRooms().size();
@@ -212,8 +236,10 @@ public class SplashActivity extends MXCActionBarActivity {
                                 Log.e(LOG_TAG, "Fail to send stats " + e.getMessage());
                             }
 
-                            if (noMoreListener) {
-                                VectorApp.addSyncingSession(session);
+                            // the other sessions are loaded in background
+                            if (isDefaultSessionReady && !mIsHomeStarted) {
+                                mIsHomeStarted = true;
+                                VectorApp.addSyncingSession(mDefaultSession);
                                 onFinish();
                             }
                         }
@@ -236,7 +262,7 @@ public class SplashActivity extends MXCActionBarActivity {
             };
 
             if (!fSession.getDataHandler().isInitialSyncComplete()) {
-                session.getDataHandler().getStore().open();
+                sessionsToOpen.add(fSession);
 
                 mListeners.put(fSession, eventListener);
                 fSession.getDataHandler().addListener(eventListener);
@@ -249,6 +275,9 @@ public class SplashActivity extends MXCActionBarActivity {
             }
         }
 
+        // load the stores in parallel, the default session first
+        Matrix.getInstance(getApplicationContext()).openStores(sessionsToOpen);
+
         // when the events stream has been disconnected by the user
         // they must be awoken even if they are initialized
         if (Matrix.getInstance(this).mHasBeenDisconnected) {
@@ -283,7 +312,11 @@ public class SplashActivity extends MXCActionBarActivity {
         boolean noUpdate;
 
         synchronized(LOG_TAG) {
-            noUpdate = (mListeners.size() == 0);
+            noUpdate = !mListeners.containsKey(mDefaultSession);
+
+            if (noUpdate) {
+                mIsHomeStarted = true;
+            }
         }
 
         // nothing to do ?
@@ -292,7 +325,53 @@ public class SplashActivity extends MXCActionBarActivity {
             // do not launch an activity if there was nothing new.
             Log.e(LOG_TAG, "nothing to do");
             onFinish();
+        } else {
+            displaySnapshot();
+        }
+    }
+
+    /**
+     * Display the latest rooms list snapshot while the sessions are loading.
+     */
+    private void displaySnapshot() {
+        MXSession session = Matrix.getInstance(getApplicationContext()).getDefaultSession();
+
+        if (null == session) {
+            return;
+        }
+
+        List<VectorHomeSnapshot.SnapshotRoom> rooms = VectorHomeSnapshot.load(this, session.getMyUserId());
+
+        if ((null == rooms) || rooms.isEmpty()) {
+            return;
         }
+
+        Log.d(LOG_TAG, "## displaySnapshot() : " + rooms.size() + " rooms");
+
+        final ListView listView = (ListView) findViewById(R.id.splash_snapshot_list_view);
+        listView.setAdapter(new VectorHomeSnapshotAdapter(this, session, rooms));
+        listView.setVisibility(View.VISIBLE);
+
+        findViewById(R.id.splash_snapshot_progress_bar).setVisibility(View.VISIBLE);
+        findViewById(R.id.splash_logo_layout).setVisibility(View.GONE);
+
+        mIsSnapshotDisplayed = true;
+
+        // time to the first rendered frame
+        listView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                listView.getViewTreeObserver().removeOnPreDrawListener(this);
+
+                VectorApp.sendGAStats(getApplicationContext(),
+                        VectorApp.GOOGLE_ANALYTICS_STATS_CATEGORY,
+                        VectorApp.GOOGLE_ANALYTICS_STARTUP_SNAPSHOT_SCREEN_ACTION,
+                        null,
+                        System.currentTimeMillis() - mLaunchTime
+                );
+                return true;
+            }
+        });
     }
 
     @Override
@@ -307,5 +386,17 @@ public class SplashActivity extends MXCActionBarActivity {
                 session.setFailureCallback(null);
             }
         }
+
+        // the sessions which are still loading in background
+        synchronized (LOG_TAG) {
+            Collection<MXSession> loadingSessions = (null == mListeners) ? new ArrayList<MXSession>() : mListeners.keySet();
+
+            for (MXSession session : loadingSessions) {
+                if (session.isAlive()) {
+                    session.getDataHandler().removeListener(mListeners.get(session));
+                    session.setFailureCallback(null);
+                }
+            }
+        }
     }
 }
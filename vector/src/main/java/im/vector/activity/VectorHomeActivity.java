@@ -81,6 +81,7 @@ import im.vector.receiver.VectorUniversalLinkReceiver;
 import im.vector.services.EventStreamService;
 import im.vector.util.BugReporter;
 import im.vector.util.VectorCallSoundManager;
+import im.vector.util.VectorHomeSnapshot;
 import im.vector.util.VectorUtils;
 import im.vector.view.VectorPendingCallView;
 
@@ -516,6 +517,9 @@ public class VectorHomeActivity extends AppCompatActivity implements VectorRecen
         }
 
         mRecentsListFragment.setIsDirectoryDisplayed(false);
+
+        // displayed at the next startup until the live data are ready
+        VectorHomeSnapshot.save(this, mSession);
     }
 
     @Override
@@ -45,6 +45,7 @@ import android.os.Bundle;
 import im.vector.R;
 import im.vector.VectorApp;
 import im.vector.util.ResourceUtils;
+import im.vector.util.VectorThumbnailCache;
 import im.vector.view.RecentMediaLayout;
 import im.vector.view.VideoRecordView;
 
@@ -53,6 +54,7 @@ import android.os.HandlerThread;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LruCache;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import org.matrix.androidsdk.util.Log;
@@ -83,6 +85,9 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -121,6 +126,9 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
     private static final String MIME_TYPE_IMAGE_GIF = "image/gif";
     private static final int AVATAR_COMPRESSION_LEVEL = 50;
 
+    // the photo thumbnails cache variant
+    private static final String PHOTO_THUMBNAIL_VARIANT = "picker_1024";
+
     private static final int GALLERY_COLUMN_COUNT = 4;
     private static final int GALLERY_RAW_COUNT = 3;
     private static final double SURFACE_VIEW_HEIGHT_RATIO = 0.95;
@@ -142,9 +150,15 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         // the media creation time
         public long mCreationTime;
 
-        // the media thumbnail
+        // the media store id
+        public long mMediaId;
+
+        // the media thumbnail (null until it is decoded)
         public Bitmap mThumbnail;
 
+        // the image orientation
+        public int mOrientation;
+
         // tell if the media is a video
         public boolean mIsVideo;
 
@@ -155,6 +169,26 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
     // recents medias list
     private final ArrayList<MediaStoreMedia> mMediaStoreMediasList = new ArrayList<>();
 
+    // the gallery thumbnails are kept between the picker launches.
+    // its size is computed in bytes (1/32 of the heap).
+    private static final LruCache<String, Bitmap> mGalleryThumbnailsCache = new LruCache<String, Bitmap>((int) Math.min(Runtime.getRuntime().maxMemory() / 32, 8 * 1024 * 1024)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    };
+
+    // the gallery thumbnails are decoded in the background
+    private static final int GALLERY_THUMBNAILS_DECODING_THREADS = 2;
+    private static final ExecutorService mGalleryThumbnailsDecodingExecutor = Executors.newFixedThreadPool(GALLERY_THUMBNAILS_DECODING_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "VectorMedPickerThumbnails");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
     //
     private MediaStoreMedia mSelectedGalleryImage;
 
@@ -871,6 +905,10 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
             }
         } else {
             // not bitmap but
+            if ((null == newBitmap) && (null != defaultUri)) {
+                newBitmap = getCachedPhotoThumbnail(defaultUri);
+            }
+
             if ((null == newBitmap) && (null != defaultUri)) {
                 try {
                     ResourceUtils.Resource resource = ResourceUtils.openResource(this, defaultUri, null);
@@ -879,6 +917,7 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                         int rotationAngle = ImageUtils.getRotationAngleForBitmap(VectorMediasPickerActivity.this, defaultUri);
                         newBitmap = createPhotoThumbnail(resource.mContentStream, rotationAngle);
                         resource.mContentStream.close();
+                        VectorThumbnailCache.put(this, defaultUri, PHOTO_THUMBNAIL_VARIANT, newBitmap);
                     }
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "fails to retrieve the bitmap from uri");
@@ -1137,6 +1176,25 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         return preferences.getString(KEY_PREFERENCE_CAMERA_IMAGE_NAME, null);
     }
 
+    /**
+     * Retrieves a photo thumbnail computed by createPhotoThumbnail.
+     * @param imageUri the image uri
+     * @return the thumbnail, null if it is not cached
+     */
+    private Bitmap getCachedPhotoThumbnail(Uri imageUri) {
+        File thumbnailFile = VectorThumbnailCache.get(this, imageUri, PHOTO_THUMBNAIL_VARIANT);
+
+        if (null != thumbnailFile) {
+            try {
+                return BitmapFactory.decodeFile(thumbnailFile.getPath());
+            } catch (OutOfMemoryError e) {
+                Log.e(LOG_TAG, "## getCachedPhotoThumbnail : out of memory");
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Create a thumbnail from an image stream with a rotation angle.
      * @param imageStream the image stream
@@ -1189,6 +1247,14 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         // sanity check
         if (null != aImageUrl) {
             Uri imageUri = Uri.fromFile(new File(aImageUrl));
+
+            // already computed
+            bitmapRetValue = getCachedPhotoThumbnail(imageUri);
+
+            if (null != bitmapRetValue) {
+                return bitmapRetValue;
+            }
+
             int rotationAngle = ImageUtils.getRotationAngleForBitmap(VectorMediasPickerActivity.this, imageUri);
 
             try {
@@ -1198,6 +1264,8 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                 bitmapRetValue = createPhotoThumbnail(imageStream, rotationAngle);
                 imageStream.close();
 
+                VectorThumbnailCache.put(this, imageUri, PHOTO_THUMBNAIL_VARIANT, bitmapRetValue);
+
                 System.gc();
 
             } catch (OutOfMemoryError e) {
@@ -1779,7 +1847,7 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         ArrayList<MediaStoreMedia> mediasList = new ArrayList<>();
 
         // images
-        String[] imagesProjection = {MediaStore.Images.ImageColumns._ID, MediaStore.Images.ImageColumns.DATE_TAKEN, MediaStore.Images.ImageColumns.MIME_TYPE};
+        String[] imagesProjection = {MediaStore.Images.ImageColumns._ID, MediaStore.Images.ImageColumns.DATE_TAKEN, MediaStore.Images.ImageColumns.MIME_TYPE, MediaStore.Images.ImageColumns.ORIENTATION};
         Cursor imagesThumbnailsCursor = null;
 
         try {
@@ -1796,6 +1864,7 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
             int timeIndex = imagesThumbnailsCursor.getColumnIndex(MediaStore.Images.ImageColumns.DATE_TAKEN);
             int idIndex = imagesThumbnailsCursor.getColumnIndex(MediaStore.Images.ImageColumns._ID);
             int mimeTypeIndex = imagesThumbnailsCursor.getColumnIndex(MediaStore.Images.ImageColumns.MIME_TYPE);
+            int orientationIndex = imagesThumbnailsCursor.getColumnIndex(MediaStore.Images.ImageColumns.ORIENTATION);
 
             if (imagesThumbnailsCursor.moveToFirst()) {
                 do {
@@ -1808,15 +1877,12 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                         recentMedia.mMimeType = imagesThumbnailsCursor.getString(mimeTypeIndex);
                         recentMedia.mCreationTime = Long.parseLong(dateAsString);
 
-                        recentMedia.mThumbnail = MediaStore.Images.Thumbnails.getThumbnail(this.getContentResolver(), Long.parseLong(id), MediaStore.Images.Thumbnails.MINI_KIND, null);
+                        recentMedia.mMediaId = Long.parseLong(id);
                         recentMedia.mFileUri = Uri.parse(MediaStore.Images.Media.EXTERNAL_CONTENT_URI.toString() + "/" + id);
 
-                        int rotationAngle = ImageUtils.getRotationAngleForBitmap(VectorMediasPickerActivity.this, recentMedia.mFileUri);
-
-                        if (0 != rotationAngle) {
-                            android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
-                            bitmapMatrix.postRotate(rotationAngle);
-                            recentMedia.mThumbnail = Bitmap.createBitmap(recentMedia.mThumbnail, 0, 0, recentMedia.mThumbnail.getWidth(), recentMedia.mThumbnail.getHeight(), bitmapMatrix, false);
+                        // the thumbnail is decoded when it is displayed
+                        if ((orientationIndex >= 0) && !imagesThumbnailsCursor.isNull(orientationIndex)) {
+                            recentMedia.mOrientation = imagesThumbnailsCursor.getInt(orientationIndex);
                         }
 
                         mediasList.add(recentMedia);
@@ -1860,7 +1926,7 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                             recentMedia.mMimeType = videoThumbnailsCursor.getString(mimeTypeIndex);
                             recentMedia.mCreationTime = Long.parseLong(dateAsString);
 
-                            recentMedia.mThumbnail = MediaStore.Video.Thumbnails.getThumbnail(this.getContentResolver(), Long.parseLong(id), MediaStore.Video.Thumbnails.MINI_KIND, null);
+                            recentMedia.mMediaId = Long.parseLong(id);
                             recentMedia.mFileUri = Uri.parse(MediaStore.Video.Media.EXTERNAL_CONTENT_URI.toString() + "/" + id);
 
                             mediasList.add(recentMedia);
@@ -1991,6 +2057,71 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
         });
     }
 
+    /**
+     * Provides the gallery thumbnails cache key of a media.
+     * @param media the media
+     * @return the key
+     */
+    private static String getGalleryThumbnailKey(MediaStoreMedia media) {
+        return media.mFileUri + "_" + media.mOrientation;
+    }
+
+    /**
+     * Decode a gallery thumbnail in the background and display it.
+     * @param media the media
+     * @param recentMediaView the gallery cell
+     */
+    private void loadGalleryThumbnail(final MediaStoreMedia media, final RecentMediaLayout recentMediaView) {
+        mGalleryThumbnailsDecodingExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // the picker has been closed
+                if (isFinishing()) {
+                    return;
+                }
+
+                Bitmap thumbnail = null;
+
+                try {
+                    if (media.mIsVideo) {
+                        thumbnail = MediaStore.Video.Thumbnails.getThumbnail(getContentResolver(), media.mMediaId, MediaStore.Video.Thumbnails.MINI_KIND, null);
+                    } else {
+                        thumbnail = MediaStore.Images.Thumbnails.getThumbnail(getContentResolver(), media.mMediaId, MediaStore.Images.Thumbnails.MINI_KIND, null);
+
+                        if ((null != thumbnail) && (0 != media.mOrientation)) {
+                            android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
+                            bitmapMatrix.postRotate(media.mOrientation);
+                            thumbnail = Bitmap.createBitmap(thumbnail, 0, 0, thumbnail.getWidth(), thumbnail.getHeight(), bitmapMatrix, false);
+                        }
+                    }
+                } catch (OutOfMemoryError e) {
+                    Log.e(LOG_TAG, "## loadGalleryThumbnail() : out of memory");
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## loadGalleryThumbnail() : failed " + e.getMessage());
+                }
+
+                if (null != thumbnail) {
+                    mGalleryThumbnailsCache.put(getGalleryThumbnailKey(media), thumbnail);
+                }
+
+                final Bitmap fThumbnail = thumbnail;
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        media.mThumbnail = fThumbnail;
+
+                        if (null != fThumbnail) {
+                            recentMediaView.setThumbnail(fThumbnail);
+                        } else {
+                            recentMediaView.setThumbnailByUri(media.mFileUri);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Build the image gallery widget programmatically.
      */
@@ -2051,10 +2182,14 @@ public class VectorMediasPickerActivity extends MXCActionBarActivity implements
                 if(null != recentMedia) {
                     recentMediaView = new RecentMediaLayout(this);
 
+                    if (null == recentMedia.mThumbnail) {
+                        recentMedia.mThumbnail = mGalleryThumbnailsCache.get(getGalleryThumbnailKey(recentMedia));
+                    }
+
                     if (null != recentMedia.mThumbnail) {
                         recentMediaView.setThumbnail(recentMedia.mThumbnail);
                     } else {
-                        recentMediaView.setThumbnailByUri(recentMedia.mFileUri);
+                        loadGalleryThumbnail(recentMedia, recentMediaView);
                     }
 
                     recentMediaView.setBackgroundColor(Color.BLACK);
@@ -178,6 +178,15 @@ public class VectorMediasViewerActivity extends MXCActionBarActivity {
         mAdapter.stopPlayingVideo();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (null != mAdapter) {
+            mAdapter.stopPrefetching();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // the application is in a weird state
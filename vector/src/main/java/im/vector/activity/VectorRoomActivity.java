@@ -35,6 +35,8 @@ import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentManager;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.v4.content.ContextCompat;
 import android.text.SpannableString;
 import android.text.TextPaint;
@@ -102,6 +104,7 @@ import im.vector.util.SharedDataItem;
 import im.vector.util.SlashComandsParser;
 import im.vector.util.VectorCallSoundManager;
 import im.vector.util.VectorMarkdownParser;
+import im.vector.util.VectorRequestScheduler;
 import im.vector.util.VectorRoomMediasSender;
 import im.vector.util.VectorUtils;
 import im.vector.view.VectorAutoCompleteTextView;
@@ -684,6 +687,9 @@ public class VectorRoomActivity extends MXCActionBarActivity implements MatrixMe
         mEditText.addTextChangedListener(new TextWatcher() {
             @Override
             public void afterTextChanged(android.text.Editable s) {
+                // defer the background requests while the user is typing
+                VectorRequestScheduler.getInstance().onUserInteraction();
+
                 if (null != mRoom) {
                     MXLatestChatMessageCache latestChatMessageCache = VectorRoomActivity.this.mLatestChatMessageCache;
                     String textInPlace = latestChatMessageCache.getLatestText(VectorRoomActivity.this, mRoom.getRoomId());
@@ -969,6 +975,16 @@ public class VectorRoomActivity extends MXCActionBarActivity implements MatrixMe
         Log.d(LOG_TAG, "++ Resume the activity");
         super.onResume();
 
+        // the markdown parser (a WebView) is only used to send messages
+        // create it once the room is displayed so that its page is loaded before the first message
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                VectorApp.getInstance().getMarkdownParser();
+                return false;
+            }
+        });
+
         ViewedRoomTracker.getInstance().setMatrixId(mSession.getCredentials().userId);
 
         if (null != mRoom) {
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.adapters;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.text.TextUtils;
+
+import com.google.gson.JsonElement;
+
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.db.MXMediasCache;
+import org.matrix.androidsdk.listeners.MXMediaDownloadListener;
+import org.matrix.androidsdk.rest.model.Message;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import im.vector.util.SlidableMediaInfo;
+
+/**
+ * Download the medias around the displayed one before the user swipes to them.
+ * The medias are prefetched one by one, after the displayed one, in the swipe direction first.
+ */
+class MediasViewerPrefetcher {
+    private static final String LOG_TAG = "MediasViewerPrefetcher";
+
+    // number of prefetched medias in the swipe direction
+    private static final int PREFETCH_AHEAD_COUNT = 2;
+
+    // number of prefetched medias in the other direction
+    private static final int PREFETCH_BEHIND_COUNT = 1;
+
+    // max prefetched bytes on a metered network
+    private static final long METERED_NETWORK_BUDGET = 10 * 1024 * 1024;
+
+    private final Context mContext;
+    private final MXSession mSession;
+    private final MXMediasCache mMediasCache;
+    private final List<SlidableMediaInfo> mMediasList;
+
+    // the displayed position
+    private int mPosition = -1;
+
+    // the swipe direction (1 or -1)
+    private int mDirection = 1;
+
+    // the pending prefetch
+    private int mPrefetchingPosition = -1;
+    private String mPrefetchingDownloadId;
+
+    // the downloading media of the displayed page
+    private String mDisplayedDownloadId;
+
+    // the medias which cannot be prefetched
+    private final HashSet<Integer> mFailedPositions = new HashSet<>();
+
+    // prefetched bytes on metered networks
+    private long mMeteredPrefetchedBytes = 0;
+
+    // statistics
+    private int mShownPagesCount = 0;
+    private int mCachedShownPagesCount = 0;
+
+    private boolean mIsStopped = false;
+
+    /**
+     * Constructor
+     * @param context the context
+     * @param session the session
+     * @param mediasCache the medias cache
+     * @param mediasList the medias list
+     */
+    MediasViewerPrefetcher(Context context, MXSession session, MXMediasCache mediasCache, List<SlidableMediaInfo> mediasList) {
+        mContext = context;
+        mSession = session;
+        mMediasCache = mediasCache;
+        mMediasList = mediasList;
+    }
+
+    /**
+     * Tells if a media has already been downloaded.
+     * @param mediaInfo the media
+     * @return true if it is cached
+     */
+    private boolean isCached(SlidableMediaInfo mediaInfo) {
+        return null != mMediasCache.mediaCacheFile(mediaInfo.mMediaUrl, mediaInfo.mMimeType);
+    }
+
+    /**
+     * A page is displayed.
+     * @param position the page position
+     */
+    void onPageShown(int position) {
+        if (mIsStopped || (position == mPosition) || (position < 0) || (position >= mMediasList.size())) {
+            return;
+        }
+
+        if (mPosition >= 0) {
+            mDirection = (position > mPosition) ? 1 : -1;
+        }
+
+        mPosition = position;
+
+        SlidableMediaInfo mediaInfo = mMediasList.get(position);
+
+        mShownPagesCount++;
+
+        if (isCached(mediaInfo)) {
+            mCachedShownPagesCount++;
+        }
+
+        // the user jumped away from the prefetched media
+        if ((mPrefetchingPosition >= 0) && !getPrefetchPositions().contains(mPrefetchingPosition) && (mPrefetchingPosition != mPosition)) {
+            Log.d(LOG_TAG, "## onPageShown() : cancel the prefetch of " + mPrefetchingPosition);
+            mMediasCache.cancelDownload(mPrefetchingDownloadId);
+            mPrefetchingPosition = -1;
+            mPrefetchingDownloadId = null;
+        }
+
+        // wait until the displayed media is downloaded
+        mDisplayedDownloadId = mMediasCache.downloadIdFromUrl(mediaInfo.mMediaUrl);
+
+        if (null != mDisplayedDownloadId) {
+            final String displayedDownloadId = mDisplayedDownloadId;
+
+            mMediasCache.addDownloadListener(displayedDownloadId, new MXMediaDownloadListener() {
+                @Override
+                public void onDownloadComplete(String downloadId) {
+                    onDisplayedDownloadDone(displayedDownloadId);
+                }
+
+                @Override
+                public void onDownloadError(String downloadId, JsonElement jsonElement) {
+                    onDisplayedDownloadDone(displayedDownloadId);
+                }
+
+                @Override
+                public void onDownloadCancel(String downloadId) {
+                    onDisplayedDownloadDone(displayedDownloadId);
+                }
+            });
+        } else {
+            prefetchNext();
+        }
+    }
+
+    /**
+     * The displayed media download is done.
+     * @param downloadId the download id
+     */
+    private void onDisplayedDownloadDone(String downloadId) {
+        if (TextUtils.equals(downloadId, mDisplayedDownloadId)) {
+            mDisplayedDownloadId = null;
+            prefetchNext();
+        }
+    }
+
+    /**
+     * @return the positions to prefetch, by priority.
+     */
+    private List<Integer> getPrefetchPositions() {
+        ArrayList<Integer> positions = new ArrayList<>();
+
+        for (int i = 1; i <= PREFETCH_AHEAD_COUNT; i++) {
+            positions.add(mPosition + i * mDirection);
+        }
+
+        for (int i = 1; i <= PREFETCH_BEHIND_COUNT; i++) {
+            positions.add(mPosition - i * mDirection);
+        }
+
+        return positions;
+    }
+
+    /**
+     * @return true if the active network is metered.
+     */
+    private boolean isNetworkMetered() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return (null != connectivityManager) && connectivityManager.isActiveNetworkMetered();
+    }
+
+    /**
+     * Start the next prefetch.
+     */
+    private void prefetchNext() {
+        // a prefetch is in progress or the displayed media is downloading
+        if (mIsStopped || (null != mPrefetchingDownloadId) || (null != mDisplayedDownloadId)) {
+            return;
+        }
+
+        final boolean isMetered = isNetworkMetered();
+
+        if (isMetered && (mMeteredPrefetchedBytes >= METERED_NETWORK_BUDGET)) {
+            Log.d(LOG_TAG, "## prefetchNext() : the metered network budget is reached");
+            return;
+        }
+
+        for (int position : getPrefetchPositions()) {
+            if ((position < 0) || (position >= mMediasList.size()) || mFailedPositions.contains(position)) {
+                continue;
+            }
+
+            final SlidableMediaInfo mediaInfo = mMediasList.get(position);
+
+            if (TextUtils.isEmpty(mediaInfo.mMediaUrl) || isCached(mediaInfo)) {
+                continue;
+            }
+
+            // the budget is checked before downloading : the videos and the medias without declared size
+            // are not prefetched on a metered network, the other ones only if they fit the remaining budget
+            if (isMetered && (Message.MSGTYPE_VIDEO.equals(mediaInfo.mMessageType) || (mediaInfo.mMediaSize < 0)
+                    || ((mMeteredPrefetchedBytes + mediaInfo.mMediaSize) > METERED_NETWORK_BUDGET))) {
+                continue;
+            }
+
+            final String downloadId = mMediasCache.downloadMedia(mContext, mSession.getHomeserverConfig(), mediaInfo.mMediaUrl, mediaInfo.mMimeType, mediaInfo.mEncryptedFileInfo);
+
+            if (null == downloadId) {
+                mFailedPositions.add(position);
+                continue;
+            }
+
+            Log.d(LOG_TAG, "## prefetchNext() : prefetch " + position);
+
+            final int fPosition = position;
+            mPrefetchingPosition = position;
+            mPrefetchingDownloadId = downloadId;
+
+            mMediasCache.addDownloadListener(downloadId, new MXMediaDownloadListener() {
+                @Override
+                public void onDownloadComplete(String aDownloadId) {
+                    if (isMetered) {
+                        File file = mMediasCache.mediaCacheFile(mediaInfo.mMediaUrl, mediaInfo.mMimeType);
+
+                        if (null != file) {
+                            mMeteredPrefetchedBytes += file.length();
+                        }
+                    }
+
+                    onPrefetchDone(downloadId, fPosition, false);
+                }
+
+                @Override
+                public void onDownloadError(String aDownloadId, JsonElement jsonElement) {
+                    onPrefetchDone(downloadId, fPosition, true);
+                }
+
+                @Override
+                public void onDownloadCancel(String aDownloadId) {
+                    onPrefetchDone(downloadId, fPosition, false);
+                }
+            });
+
+            return;
+        }
+    }
+
+    /**
+     * A prefetch is done.
+     * @param downloadId the download id
+     * @param position the media position
+     * @param isFailed true if the download failed
+     */
+    private void onPrefetchDone(String downloadId, int position, boolean isFailed) {
+        if (isFailed) {
+            mFailedPositions.add(position);
+        }
+
+        if (TextUtils.equals(downloadId, mPrefetchingDownloadId)) {
+            mPrefetchingDownloadId = null;
+            mPrefetchingPosition = -1;
+            prefetchNext();
+        }
+    }
+
+    /**
+     * Cancel the pending prefetch and stop prefetching.
+     */
+    void stop() {
+        mIsStopped = true;
+
+        if (null != mPrefetchingDownloadId) {
+            mMediasCache.cancelDownload(mPrefetchingDownloadId);
+            mPrefetchingDownloadId = null;
+            mPrefetchingPosition = -1;
+        }
+
+        Log.d(LOG_TAG, "## stop() : " + mCachedShownPagesCount + " / " + mShownPagesCount + " pages were cached when they were shown");
+    }
+
+    /**
+     * @return the number of shown pages
+     */
+    int getShownPagesCount() {
+        return mShownPagesCount;
+    }
+
+    /**
+     * @return the number of pages which were already cached when they were shown
+     */
+    int getCachedShownPagesCount() {
+        return mCachedShownPagesCount;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.adapters;
+
+import android.support.v4.util.LruCache;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.List;
+
+import im.vector.util.VectorUtils;
+
+/**
+ * LRU cache of the rendered items of the messages adapter rows.
+ * The entries are indexed by event id and they are tagged with a version computed from the event
+ * so that a redacted or a decrypted event is rendered again.
+ */
+class MessagesAdapterRenderCache {
+    // default number of cached rows
+    private static final int DEFAULT_MAX_ENTRIES = 500;
+
+    /**
+     * The rendered items of an event.
+     */
+    static class RenderedEvent {
+        // the event version used to render the items
+        private final int mVersion;
+
+        // the formatted timestamp
+        String mFormattedTs;
+
+        // the day header text and the days difference used to compute it
+        String mHeaderText;
+        long mHeaderDaysDiff = -1;
+
+        // the displayed body and its text color
+        CharSequence mBody;
+        int mBodyTextColor;
+
+        // the URLs of the body
+        List<String> mUrls;
+
+        // the media download id ("" if there is no media)
+        String mMediaDownloadId;
+
+        private RenderedEvent(int version) {
+            mVersion = version;
+        }
+    }
+
+    // rendered items by event id
+    private final LruCache<String, RenderedEvent> mRenderedEventByEventId;
+
+    // cache statistics
+    private int mHitsCount = 0;
+    private int mMissesCount = 0;
+
+    /**
+     * Constructor
+     */
+    MessagesAdapterRenderCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor
+     * @param maxEntries the max number of cached events
+     */
+    MessagesAdapterRenderCache(int maxEntries) {
+        mRenderedEventByEventId = new LruCache<>(maxEntries);
+    }
+
+    /**
+     * Compute the render version of an event.
+     * It is updated when the event is redacted, decrypted or when its sent state is updated.
+     * @param event the event
+     * @return the version
+     */
+    private static int getVersion(Event event) {
+        int version = (null != event.mSentState) ? (event.mSentState.ordinal() << 4) : 0;
+
+        if (event.isRedacted()) {
+            version |= 0x1;
+        }
+
+        if (null != event.getClearEvent()) {
+            version |= 0x2;
+        }
+
+        if (null != event.getCryptoError()) {
+            version |= 0x4;
+        }
+
+        if (event.isValidOriginServerTs()) {
+            version |= 0x8;
+        }
+
+        return version;
+    }
+
+    /**
+     * Provides the rendered items of an event.
+     * A new empty entry is created when there is no valid cached one.
+     * @param event the event
+     * @return the rendered event, null if the event has no id.
+     */
+    synchronized RenderedEvent get(Event event) {
+        if ((null == event) || (null == event.eventId)) {
+            return null;
+        }
+
+        int version = getVersion(event);
+        RenderedEvent renderedEvent = mRenderedEventByEventId.get(event.eventId);
+
+        if ((null != renderedEvent) && (renderedEvent.mVersion == version)) {
+            mHitsCount++;
+        } else {
+            mMissesCount++;
+            renderedEvent = new RenderedEvent(version);
+            mRenderedEventByEventId.put(event.eventId, renderedEvent);
+        }
+
+        return renderedEvent;
+    }
+
+    /**
+     * Provides the URLs listed in the rendered body of an event.
+     * @param event the event
+     * @return the URLs list, null if the body has not been rendered yet.
+     */
+    synchronized List<String> getUrls(Event event) {
+        RenderedEvent renderedEvent = get(event);
+
+        if ((null == renderedEvent) || (null == renderedEvent.mBody)) {
+            return null;
+        }
+
+        if (null == renderedEvent.mUrls) {
+            renderedEvent.mUrls = VectorUtils.listURLs(renderedEvent.mBody.toString());
+        }
+
+        return renderedEvent.mUrls;
+    }
+
+    /**
+     * Remove the cached items of an event.
+     * @param eventId the event id
+     */
+    synchronized void invalidate(String eventId) {
+        if (null != eventId) {
+            mRenderedEventByEventId.remove(eventId);
+        }
+    }
+
+    /**
+     * Remove the cached items of any event.
+     * It must be called when a member display name or avatar is updated.
+     */
+    synchronized void invalidateAll() {
+        mRenderedEventByEventId.evictAll();
+    }
+
+    /**
+     * @return the number of cache hits
+     */
+    synchronized int getHitsCount() {
+        return mHitsCount;
+    }
+
+    /**
+     * @return the number of cache misses
+     */
+    synchronized int getMissesCount() {
+        return mMissesCount;
+    }
+
+    /**
+     * @return the hit rate in [0, 1]
+     */
+    synchronized float getHitRate() {
+        int count = mHitsCount + mMissesCount;
+        return (0 == count) ? 0 : ((float) mHitsCount / count);
+    }
+}
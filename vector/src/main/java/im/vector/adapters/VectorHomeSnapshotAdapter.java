@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.adapters;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import org.matrix.androidsdk.MXSession;
+
+import java.util.List;
+
+import im.vector.R;
+import im.vector.util.VectorHomeSnapshot;
+import im.vector.util.VectorUtils;
+
+/**
+ * A read-only adapter which displays the rooms list snapshot while the application is starting.
+ */
+public class VectorHomeSnapshotAdapter extends ArrayAdapter<VectorHomeSnapshot.SnapshotRoom> {
+
+    private final Context mContext;
+    private final LayoutInflater mLayoutInflater;
+    private final MXSession mSession;
+
+    /**
+     * Constructor
+     * @param context the context
+     * @param session the session
+     * @param rooms the snapshot rooms
+     */
+    public VectorHomeSnapshotAdapter(Context context, MXSession session, List<VectorHomeSnapshot.SnapshotRoom> rooms) {
+        super(context, R.layout.adapter_item_vector_recent_room, rooms);
+        mContext = context;
+        mLayoutInflater = LayoutInflater.from(context);
+        mSession = session;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return false;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (null == convertView) {
+            convertView = mLayoutInflater.inflate(R.layout.adapter_item_vector_recent_room, parent, false);
+
+            // the snapshot is read-only
+            convertView.findViewById(R.id.recents_groups_invitation_group).setVisibility(View.GONE);
+            convertView.findViewById(R.id.recents_groups_separator_line).setVisibility(View.GONE);
+            convertView.findViewById(R.id.roomSummaryAdapter_action_image).setVisibility(View.GONE);
+            convertView.findViewById(R.id.roomSummaryAdapter_action_click_area).setVisibility(View.GONE);
+        }
+
+        VectorHomeSnapshot.SnapshotRoom room = getItem(position);
+
+        ImageView avatarImageView = (ImageView) convertView.findViewById(R.id.room_avatar_image_view);
+        TextView roomNameTxtView = (TextView) convertView.findViewById(R.id.roomSummaryAdapter_roomName);
+        TextView roomMsgTxtView = (TextView) convertView.findViewById(R.id.roomSummaryAdapter_roomMessage);
+        View bingUnreadMsgView = convertView.findViewById(R.id.bing_indicator_unread_message);
+        TextView timestampTxtView = (TextView) convertView.findViewById(R.id.roomSummaryAdapter_ts);
+        TextView unreadCountTxtView = (TextView) convertView.findViewById(R.id.roomSummaryAdapter_unread_count);
+
+        VectorUtils.loadUserAvatar(mContext, mSession, avatarImageView, room.mAvatarUrl, room.mRoomId, room.mDisplayName);
+
+        roomNameTxtView.setText(room.mDisplayName);
+        roomNameTxtView.setTypeface(null, (0 != room.mUnreadCount) ? Typeface.BOLD : Typeface.NORMAL);
+        roomMsgTxtView.setText(room.mLastMessage);
+
+        if (0 != room.mTimestamp) {
+            String text = AdapterUtils.tsToString(mContext, room.mTimestamp, false);
+
+            // don't display the today before the time
+            String today = mContext.getString(R.string.today) + " ";
+            if (text.startsWith(today)) {
+                text = text.substring(today.length());
+            }
+
+            timestampTxtView.setText(text);
+        } else {
+            timestampTxtView.setText(null);
+        }
+
+        int bingUnreadColor;
+
+        if ((0 != room.mHighlightCount) || room.mIsHighlighted) {
+            bingUnreadColor = mContext.getResources().getColor(R.color.vector_fuchsia_color);
+        } else if (0 != room.mNotificationCount) {
+            bingUnreadColor = mContext.getResources().getColor(R.color.vector_green_color);
+        } else if (0 != room.mUnreadCount) {
+            bingUnreadColor = mContext.getResources().getColor(R.color.vector_silver_color);
+        } else {
+            bingUnreadColor = Color.TRANSPARENT;
+        }
+
+        bingUnreadMsgView.setBackgroundColor(bingUnreadColor);
+
+        if (0 != room.mNotificationCount) {
+            unreadCountTxtView.setVisibility(View.VISIBLE);
+            unreadCountTxtView.setText(String.valueOf(room.mNotificationCount));
+            unreadCountTxtView.setTypeface(null, Typeface.BOLD);
+            VectorRoomSummaryAdapter.setUnreadBackground(unreadCountTxtView, bingUnreadColor);
+        } else {
+            unreadCountTxtView.setVisibility(View.GONE);
+        }
+
+        return convertView;
+    }
+}
@@ -16,27 +16,18 @@
 
 package im.vector.adapters;
 
-import android.annotation.SuppressLint;
-import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Point;
 import android.media.MediaPlayer;
 import android.net.Uri;
-import android.os.Build;
 import android.support.v4.view.PagerAdapter;
 import android.text.TextUtils;
 import org.matrix.androidsdk.util.Log;
-import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.WindowManager;
 import android.webkit.MimeTypeMap;
-import android.webkit.WebView;
 import android.widget.ImageView;
 import android.widget.Toast;
 import android.widget.VideoView;
@@ -47,7 +38,6 @@ import org.matrix.androidsdk.MXSession;
 import org.matrix.androidsdk.listeners.MXMediaDownloadListener;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.Message;
-import org.matrix.androidsdk.util.ImageUtils;
 import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.view.PieFractionView;
 import im.vector.R;
@@ -56,6 +46,10 @@ import org.matrix.androidsdk.db.MXMediasCache;
 
 import im.vector.activity.CommonActivityUtils;
 import im.vector.util.SlidableMediaInfo;
+import im.vector.util.VectorMediaStreamer;
+import im.vector.view.VectorTiledImageView;
+import pl.droidsonroids.gif.GifDrawable;
+import pl.droidsonroids.gif.GifImageView;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -69,6 +63,8 @@ import java.util.List;
 public class VectorMediasViewerAdapter extends PagerAdapter {
     private static final String LOG_TAG = "MediasViewerAdapter";
 
+    private static final String MIME_TYPE_GIF = "image/gif";
+
     private Context mContext;
     private LayoutInflater mLayoutInflater;
 
@@ -82,10 +78,15 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
     private ArrayList<Integer> mHighResMediaIndex = new ArrayList<>();
     // current playing video
     private VideoView mPlayingVideoView = null;
+    // the streamer of the playing video, if it is not downloaded
+    private VectorMediaStreamer mVideoStreamer = null;
     private MXSession mSession;
 
     private int mAutoPlayItemAt = -1;
 
+    // download the medias around the displayed one
+    private final MediasViewerPrefetcher mPrefetcher;
+
     public VectorMediasViewerAdapter(Context context, MXSession session,  MXMediasCache mediasCache, List<SlidableMediaInfo> mediaMessagesList, int maxImageWidth, int maxImageHeight) {
         this.mContext = context;
         this.mSession = session;
@@ -94,6 +95,7 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
         this.mMaxImageHeight = maxImageHeight;
         this.mLayoutInflater = LayoutInflater.from(context);
         this.mMediasCache = mediasCache;
+        this.mPrefetcher = new MediasViewerPrefetcher(context, session, mediasCache, mediaMessagesList);
     }
 
     @Override
@@ -131,6 +133,8 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
 
                         mAutoPlayItemAt = -1;
                     }
+
+                    mPrefetcher.onPageShown(position);
                 }
             });
         }
@@ -208,6 +212,12 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
             return;
         }
 
+        // play it while it is downloading
+        if ((position == mAutoPlayItemAt) && streamVideo(view, videoView, mediaInfo)) {
+            mAutoPlayItemAt = -1;
+            return;
+        }
+
         // else download it
         String downloadId = mMediasCache.downloadMedia(mContext, mSession.getHomeserverConfig(), loadingUri, mediaInfo.mMimeType, mediaInfo.mEncryptedFileInfo);
 
@@ -271,15 +281,11 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
      * @param position the item position
      */
     private void downloadHighResPict(final View view, final int position) {
-        final WebView webView = (WebView)view.findViewById(R.id.media_slider_image_webview);
         final PieFractionView pieFractionView = (PieFractionView)view.findViewById(R.id.media_slider_piechart);
         final SlidableMediaInfo imageInfo = mMediasMessagesList.get(position);
-        final String viewportContent = "width=640";
         final String loadingUri = imageInfo.mMediaUrl;
         final String downloadId = mMediasCache.loadBitmap(mContext, mSession.getHomeserverConfig(), loadingUri, imageInfo.mRotationAngle, imageInfo.mOrientation, imageInfo.mMimeType, imageInfo.mEncryptedFileInfo);
 
-        webView.getSettings().setDisplayZoomControls(false);
-
         if (null != downloadId) {
             pieFractionView.setVisibility(View.VISIBLE);
             pieFractionView.setFraction(mMediasCache.getProgressValueForDownloadId(downloadId));
@@ -309,15 +315,11 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
                         if (null != mediaFile) {
                             mHighResMediaIndex.add(position);
 
-                            Uri uri = Uri.fromFile(mediaFile);
-                            final String newHighResUri = uri.toString();
-
-                            webView.post(new Runnable() {
+                            view.post(new Runnable() {
                                 @Override
                                 public void run() {
-                                    Uri mediaUri = Uri.parse(newHighResUri);
                                     // refresh the UI
-                                    loadImage(webView, mediaUri, viewportContent, computeCss(newHighResUri, VectorMediasViewerAdapter.this.mMaxImageWidth, VectorMediasViewerAdapter.this.mMaxImageHeight, imageInfo.mRotationAngle));
+                                    loadImage(view, mediaFile, imageInfo);
                                 }
                             });
                         }
@@ -340,19 +342,21 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
         final PieFractionView pieFractionView = (PieFractionView)view.findViewById(R.id.media_slider_piechart);
         pieFractionView.setVisibility(View.GONE);
 
-        final WebView imageWebView = (WebView)view.findViewById(R.id.media_slider_image_webview);
+        final VectorTiledImageView imageView = (VectorTiledImageView)view.findViewById(R.id.media_slider_image_view);
+        final GifImageView gifView = (GifImageView)view.findViewById(R.id.media_slider_gif_view);
         final View videoLayout = view.findViewById(R.id.media_slider_videolayout);
         final ImageView thumbView = (ImageView)view.findViewById(R.id.media_slider_video_thumbnail);
 
-        imageWebView.getSettings().setDisplayZoomControls(false);
-
-        imageWebView.setOnLongClickListener(new View.OnLongClickListener() {
+        View.OnLongClickListener onLongClickListener = new View.OnLongClickListener() {
             @Override
             public boolean onLongClick(View v) {
                 VectorMediasViewerAdapter.this.onLongClick();
                 return true;
             }
-        });
+        };
+
+        imageView.setOnLongClickListener(onLongClickListener);
+        gifView.setOnLongClickListener(onLongClickListener);
 
         thumbView.setOnLongClickListener(new View.OnLongClickListener() {
             @Override
@@ -364,24 +368,14 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
 
         // black background
         view.setBackgroundColor(0xFF000000);
-        imageWebView.setBackgroundColor(0xFF000000);
         videoLayout.setBackgroundColor(0xFF000000);
 
         final SlidableMediaInfo mediaInfo = mMediasMessagesList.get(position);
         String mediaUrl = mediaInfo.mMediaUrl;
 
         if (mediaInfo.mMessageType.equals(Message.MSGTYPE_IMAGE)) {
-            imageWebView.setVisibility(View.VISIBLE);
-            imageWebView.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
-            imageWebView.getSettings().setJavaScriptEnabled(true);
-            imageWebView.getSettings().setLoadWithOverviewMode(true);
-            imageWebView.getSettings().setUseWideViewPort(true);
-            imageWebView.getSettings().setBuiltInZoomControls(true);
-
             videoLayout.setVisibility(View.GONE);
 
-            final int rotationAngle = mediaInfo.mRotationAngle;
-
             if (TextUtils.isEmpty(mediaInfo.mMimeType)) {
                 mediaInfo.mMimeType = "image/jpeg";
             }
@@ -406,11 +400,8 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
                 return view;
             }
 
-            String mediaUri = "file://" + mediaFile.getPath();
-
-            String css = computeCss(mediaUri, mMaxImageWidth, mMaxImageHeight, rotationAngle);
-            final String viewportContent = "width=640";
-            loadImage(imageWebView, Uri.parse(mediaUri), viewportContent, css);
+            // the thumbnail is displayed until the high resolution image is downloaded
+            loadImage(view, mediaFile, mediaInfo);
             container.addView(view, 0);
         } else {
             loadVideo(position , view, mediaInfo.mThumbnailUrl, mediaUrl, mediaInfo.mMimeType);
@@ -471,6 +462,14 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
         playView.setVisibility(display ? View.VISIBLE : View.GONE);
     }
 
+    /**
+     * Cancel the pending prefetch.
+     * The adapter must not be used anymore.
+     */
+    public void stopPrefetching() {
+        mPrefetcher.stop();
+    }
+
     /**
      * Stop any playing video
      */
@@ -480,6 +479,62 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
             displayVideoThumbnail((View)(mPlayingVideoView.getParent()), true);
             mPlayingVideoView = null;
         }
+
+        if (null != mVideoStreamer) {
+            mVideoStreamer.stop();
+            mVideoStreamer = null;
+        }
+    }
+
+    /**
+     * Play a video while it is downloading.
+     * @param pageView the pageView
+     * @param videoView the video view
+     * @param mediaInfo the video info
+     * @return true if the video is streamed
+     */
+    private boolean streamVideo(View pageView, final VideoView videoView, SlidableMediaInfo mediaInfo) {
+        stopPlayingVideo();
+
+        final VectorMediaStreamer[] streamerHolder = new VectorMediaStreamer[1];
+
+        VectorMediaStreamer streamer = new VectorMediaStreamer(mContext, mSession, mediaInfo.mMediaUrl, mediaInfo.mMimeType, mediaInfo.mEncryptedFileInfo, new VectorMediaStreamer.IStreamerListener() {
+            @Override
+            public void onInvalidMedia() {
+                videoView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the video may have been changed in the meantime
+                        if ((null != streamerHolder[0]) && (mVideoStreamer == streamerHolder[0])) {
+                            stopPlayingVideo();
+                            Toast.makeText(mContext, mContext.getText(R.string.media_slider_invalid_media), Toast.LENGTH_LONG).show();
+                        }
+                    }
+                });
+            }
+        });
+        streamerHolder[0] = streamer;
+        Uri uri = streamer.start();
+
+        if (null == uri) {
+            return false;
+        }
+
+        try {
+            mVideoStreamer = streamer;
+            videoView.setVideoURI(uri);
+            // hide the thumbnail
+            displayVideoThumbnail(pageView, false);
+
+            mPlayingVideoView = videoView;
+            videoView.start();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## streamVideo() : failed " + e.getMessage());
+            stopPlayingVideo();
+            return false;
+        }
+
+        return true;
     }
 
     /**
@@ -683,135 +738,46 @@ public class VectorMediasViewerAdapter extends PagerAdapter {
 
     /**
      * Update the image page.
-     * @param webView the image is rendered in a webview.
-     * @param imageUri the image Uri.
-     * @param viewportContent  the viewport.
-     * @param css the css.
-     */
-    private void loadImage(WebView webView, Uri imageUri, String viewportContent, String css) {
-        String html =
-                "<html><head><meta name='viewport' content='" +
-                        viewportContent +
-                        "'/>" +
-                        "<style type='text/css'>" +
-                        css +
-                        "</style></head>" +
-                        "<body> <div class='wrap'>" + "<img " +
-                        ( "src='" + imageUri.toString() + "'") +
-                        " onerror='this.style.display=\"none\"' id='image' " + viewportContent + "/>" + "</div>" +
-                        "</body>" + "</html>";
-
-        String mime = "text/html";
-        String encoding = "utf-8";
-
-        webView.loadDataWithBaseURL(null, html, mime, encoding, null);
-        webView.requestLayout();
-    }
-
-    /**
-     *  Image rendering subroutine
+     * The animated images are rendered in a gif view, the other ones in a tiled image view.
+     * @param view the page view
+     * @param imageFile the image file
+     * @param imageInfo the image info
      */
-    private String computeCss(String mediaUrl, int thumbnailWidth, int thumbnailHeight, int rotationAngle) {
-        String css = "body { background-color: #000; height: 100%; width: 100%; margin: 0px; padding: 0px; }" +
-                ".wrap { position: absolute; left: 0px; right: 0px; width: 100%; height: 100%; " +
-                "display: -webkit-box; -webkit-box-pack: center; -webkit-box-align: center; " +
-                "display: box; box-pack: center; box-align: center; } ";
-
-        Uri mediaUri = null;
-
-        try {
-            mediaUri = Uri.parse(mediaUrl);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "## computeCss() : Uri.parse failed " + e.getMessage());
-        }
-
-        if (null == mediaUri) {
-            return css;
-        }
-
-        // the rotation angle must be retrieved from the exif metadata
-        if (rotationAngle == Integer.MAX_VALUE) {
-            if (null != mediaUrl) {
-                rotationAngle = ImageUtils.getRotationAngleForBitmap(mContext, mediaUri);
-            }
-        }
-
-        if (rotationAngle != 0) {
-            // get the image size to scale it to fill in the device screen.
-            int imageWidth = thumbnailWidth;
-            int imageHeight = thumbnailHeight;
+    private void loadImage(View view, File imageFile, SlidableMediaInfo imageInfo) {
+        VectorTiledImageView imageView = (VectorTiledImageView)view.findViewById(R.id.media_slider_image_view);
+        GifImageView gifView = (GifImageView)view.findViewById(R.id.media_slider_gif_view);
 
+        if (MIME_TYPE_GIF.equals(imageInfo.mMimeType)) {
             try {
-                FileInputStream imageStream = new FileInputStream(new File(mediaUri.getPath()));
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                options.outWidth = -1;
-                options.outHeight = -1;
-
-                // get the full size bitmap
-                Bitmap fullSizeBitmap = null;
-                try {
-                    fullSizeBitmap = BitmapFactory.decodeStream(imageStream, null, options);
-                } catch (OutOfMemoryError e) {
-                    Log.e(LOG_TAG, "## computeCss() : BitmapFactory.decodeStream failed " + e.getMessage());
-                }
-
-                imageWidth = options.outWidth;
-                imageHeight =  options.outHeight;
-
-                imageStream.close();
-                fullSizeBitmap.recycle();
+                gifView.setImageDrawable(new GifDrawable(imageFile));
+                gifView.setVisibility(View.VISIBLE);
+                imageView.setVisibility(View.GONE);
+                return;
             } catch (Exception e) {
-                Log.e(LOG_TAG, "## computeCss() : failed " + e.getMessage());
+                // the thumbnail is not an animated image
+                Log.d(LOG_TAG, "## loadImage() : not a gif " + e.getMessage());
             }
-
-            String cssRotation = calcCssRotation(rotationAngle, imageWidth, imageHeight);
-
-            css += "#image { " + cssRotation + " } ";
-            css += "#thumbnail { " + cssRotation + " } ";
         }
 
-        return css;
+        gifView.setVisibility(View.GONE);
+        imageView.setVisibility(View.VISIBLE);
+        imageView.setImageFile(imageFile.getPath(), (Integer.MAX_VALUE == imageInfo.mRotationAngle) ? VectorTiledImageView.EXIF_ROTATION_ANGLE : imageInfo.mRotationAngle);
     }
 
-    private String calcCssRotation(int rot, int imageWidth, int imageHeight) {
-        if (rot == 90 || rot == 180 || rot == 270) {
-            Point displaySize = getDisplaySize();
-            double scale = Math.min((double)imageWidth / imageHeight, (double)displaySize.y / displaySize.x);
-
-            final String rot180 = "-webkit-transform: rotate(180deg);";
+    @Override
+    public void destroyItem(ViewGroup container, int position, Object object) {
+        View view = (View) object;
 
-            switch (rot) {
-                case 90:
-                    return "-webkit-transform-origin: 50% 50%; -webkit-transform: rotate(90deg) scale(" + scale + " , " + scale + ");";
-                case 180:
-                    return rot180;
-                case 270:
-                    return "-webkit-transform-origin: 50% 50%; -webkit-transform: rotate(270deg) scale(" + scale + " , " + scale + ");";
-            }
-        }
-        return "";
-    }
+        // release the decoded images
+        ((VectorTiledImageView)view.findViewById(R.id.media_slider_image_view)).recycle();
 
-    @SuppressLint("NewApi")
-    private Point getDisplaySize() {
-        Point size = new Point();
-        WindowManager w = ((Activity)mContext).getWindowManager();
+        GifImageView gifView = (GifImageView)view.findViewById(R.id.media_slider_gif_view);
 
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)    {
-            w.getDefaultDisplay().getSize(size);
-        } else {
-            Display d = w.getDefaultDisplay();
-            size.x = d.getWidth();
-            size.y = d.getHeight();
+        if (gifView.getDrawable() instanceof GifDrawable) {
+            ((GifDrawable) gifView.getDrawable()).recycle();
+            gifView.setImageDrawable(null);
         }
 
-        return size;
-    }
-
-    @Override
-    public void destroyItem(ViewGroup container, int position, Object object) {
-        container.removeView((View) object);
+        container.removeView(view);
     }
 }
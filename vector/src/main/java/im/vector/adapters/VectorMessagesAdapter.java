@@ -22,6 +22,7 @@ import android.content.Context;
 import android.graphics.Color;
 import android.os.Build;
 import android.support.v4.content.ContextCompat;
+import android.text.SpannableString;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import org.matrix.androidsdk.util.Log;
@@ -47,6 +48,7 @@ import org.matrix.androidsdk.db.MXMediasCache;
 import org.matrix.androidsdk.listeners.IMXMediaDownloadListener;
 import org.matrix.androidsdk.listeners.IMXMediaUploadListener;
 import org.matrix.androidsdk.rest.model.EncryptedEventContent;
+import org.matrix.androidsdk.rest.model.EventContent;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.Message;
 import org.matrix.androidsdk.rest.model.PowerLevels;
@@ -70,6 +72,7 @@ import java.util.Date;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TimeZone;
 
 /**
  * An adapter which can display room information.
@@ -101,20 +104,31 @@ public class VectorMessagesAdapter extends MessagesAdapter {
     // events listeners
     private VectorMessagesAdapterActionsListener mVectorMessagesAdapterEventsListener = null;
 
-    // current date : used to compute the day header
-    private Date mReferenceDate = new Date();
+    // current day number : used to compute the day header
+    private long mReferenceDay = 0;
 
-    // day date of each message
-    // the hours, minutes and seconds are removed
-    private ArrayList<Date> mMessagesDateList = new ArrayList<>();
+    // day number (days since epoch in the local timezone) of each message
+    // only the appended or prepended rows are computed on refresh
+    private long[] mMessagesDayList = new long[0];
+    private int mMessagesDayCount = 0;
+
+    // the first and the last rows of the computed day list
+    private MessageRow mMessagesDayFirstRow = null;
+    private MessageRow mMessagesDayLastRow = null;
+
+    // true when the day list must be fully rebuilt (row removed or updated)
+    private boolean mIsMessagesDayListDirty = true;
 
     // when the adapter is used in search mode
     // the searched message should be highlighted
     private String mSearchedEventId = null;
 
-    // formatted time by event id
+    // rendered items (formatted time, day header, body...) by event id
     // it avoids computing them several times
-    private final HashMap<String, String> mEventFormattedTsMap = new HashMap<>();
+    private final MessagesAdapterRenderCache mRenderCache = new MessagesAdapterRenderCache();
+
+    // the searched pattern
+    private String mSearchPattern;
 
     // define the e2e icon to use for a dedicated eventId
     private HashMap<String, Integer> mE2eIconByEventId = new HashMap<>();
@@ -164,7 +178,123 @@ public class VectorMessagesAdapter extends MessagesAdapter {
      * the parent fragment is paused.
      */
     public void onPause() {
-        mEventFormattedTsMap.clear();
+        Log.d(LOG_TAG, "## onPause() : render cache hit rate " + mRenderCache.getHitRate() + " (" + mRenderCache.getHitsCount() + " hits / " + mRenderCache.getMissesCount() + " misses)");
+        mRenderCache.invalidateAll();
+    }
+
+    /**
+     * @return the render cache hits count
+     */
+    public int getRenderCacheHitsCount() {
+        return mRenderCache.getHitsCount();
+    }
+
+    /**
+     * @return the render cache misses count
+     */
+    public int getRenderCacheMissesCount() {
+        return mRenderCache.getMissesCount();
+    }
+
+    /**
+     * Provides the URLs displayed in an event body.
+     * @param event the event
+     * @return the URLs list, null if the event has not been rendered yet.
+     */
+    public List<String> getEventUrls(Event event) {
+        return mRenderCache.getUrls(event);
+    }
+
+    @Override
+    public void setSearchPattern(String pattern) {
+        // the searched pattern is highlighted in the rendered bodies
+        if (!TextUtils.equals(pattern, mSearchPattern)) {
+            mSearchPattern = pattern;
+            mRenderCache.invalidateAll();
+        }
+
+        super.setSearchPattern(pattern);
+    }
+
+    /**
+     * Tells if a member event updates the display name or the avatar of a joined member.
+     * The joins and the leaves do not update the rendering of the other events.
+     * @param event the event
+     * @return true if the rendered events must be refreshed
+     */
+    private static boolean isMemberProfileUpdate(Event event) {
+        if ((null == event) || !TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
+            return false;
+        }
+
+        EventContent content = event.getEventContent();
+        EventContent prevContent = event.getPrevContent();
+
+        if ((null == content) || (null == prevContent)
+                || !TextUtils.equals(content.membership, RoomMember.MEMBERSHIP_JOIN)
+                || !TextUtils.equals(prevContent.membership, RoomMember.MEMBERSHIP_JOIN)) {
+            return false;
+        }
+
+        return !TextUtils.equals(content.displayname, prevContent.displayname) || !TextUtils.equals(content.avatar_url, prevContent.avatar_url);
+    }
+
+    @Override
+    public void add(Event event, RoomState roomState) {
+        // a member event might update a display name
+        if (isMemberProfileUpdate(event)) {
+            mRenderCache.invalidateAll();
+        }
+
+        super.add(event, roomState);
+    }
+
+    @Override
+    public void addToFront(Event event, RoomState roomState) {
+        if (isMemberProfileUpdate(event)) {
+            mRenderCache.invalidateAll();
+        }
+
+        super.addToFront(event, roomState);
+    }
+
+    @Override
+    public void updateEventById(Event event, String oldEventId) {
+        // redacted or decrypted event
+        mRenderCache.invalidate(oldEventId);
+
+        if (null != event) {
+            mRenderCache.invalidate(event.eventId);
+        }
+
+        // the timestamp might have been updated
+        mIsMessagesDayListDirty = true;
+        super.updateEventById(event, oldEventId);
+    }
+
+    @Override
+    public void removeEventById(String eventId) {
+        mRenderCache.invalidate(eventId);
+        mIsMessagesDayListDirty = true;
+        super.removeEventById(eventId);
+    }
+
+    @Override
+    public void removeRow(MessageRow row) {
+        mIsMessagesDayListDirty = true;
+        super.removeRow(row);
+    }
+
+    @Override
+    public void remove(MessageRow row) {
+        mIsMessagesDayListDirty = true;
+        super.remove(row);
+    }
+
+    @Override
+    public void clear() {
+        mIsMessagesDayListDirty = true;
+        super.clear();
     }
 
     /**
@@ -224,7 +354,8 @@ public class VectorMessagesAdapter extends MessagesAdapter {
      */
     @Override
     protected String getFormattedTimestamp(Event event) {
-        String res = mEventFormattedTsMap.get(event.eventId);
+        MessagesAdapterRenderCache.RenderedEvent renderedEvent = mRenderCache.get(event);
+        String res = (null != renderedEvent) ? renderedEvent.mFormattedTs : null;
 
         if (null != res) {
             return res;
@@ -236,14 +367,20 @@ public class VectorMessagesAdapter extends MessagesAdapter {
             res = " ";
         }
 
-        mEventFormattedTsMap.put(event.eventId, res);
+        if (null != renderedEvent) {
+            renderedEvent.mFormattedTs = res;
+        }
 
         return res;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        View view = super.getView(position, convertView, parent);
+        View view = getCachedTextView(position, convertView);
+
+        if (null == view) {
+            view = super.getView(position, convertView, parent);
+        }
 
         if (null != view) {
             view.setBackgroundColor(Color.TRANSPARENT);
@@ -296,6 +433,34 @@ public class VectorMessagesAdapter extends MessagesAdapter {
     }
 
 
+    /**
+     * Bind a text row with its cached body, to avoid formatting it again.
+     * @param position the row position
+     * @param convertView the recycled view
+     * @return the bound view, null if the body is not cached.
+     */
+    private View getCachedTextView(int position, View convertView) {
+        if ((null == convertView) || (position >= getCount()) || (ROW_TYPE_TEXT != getItemViewType(position))) {
+            return null;
+        }
+
+        MessagesAdapterRenderCache.RenderedEvent renderedEvent = mRenderCache.get(getItem(position).getEvent());
+        TextView bodyTextView = (TextView) convertView.findViewById(org.matrix.androidsdk.R.id.messagesAdapter_body);
+
+        if ((null == renderedEvent) || (null == renderedEvent.mBody) || (null == bodyTextView)) {
+            return null;
+        }
+
+        // the link movement method is shared by the text rows
+        bodyTextView.setText(renderedEvent.mBody);
+        bodyTextView.setTextColor(renderedEvent.mBodyTextColor);
+
+        manageSubView(position, convertView, convertView.findViewById(org.matrix.androidsdk.R.id.messagesAdapter_text_layout), ROW_TYPE_TEXT);
+        addContentViewListeners(convertView, bodyTextView, position);
+
+        return convertView;
+    }
+
     /**
      * Retrieves the MXDevice info from an event id
      * @param eventId the event id
@@ -405,21 +570,67 @@ public class VectorMessagesAdapter extends MessagesAdapter {
     @Override
     public void notifyDataSetChanged() {
         // the event with invalid timestamp must be pushed at the end of the history
-        this.setNotifyOnChange(false);
-        List<MessageRow> undeliverableEvents = new ArrayList<>();
+        refreshUndeliverableTail();
+
+        // build messages day numbers
+        refreshMessagesDayList();
 
-        for(int i = 0; i < getCount(); i++) {
-            MessageRow row = getItem(i);
-            Event event = row.getEvent();
+        manageCryptoEvents();
+
+        //  do not refresh the room when the application is in background
+        // on large rooms, it drains a lot of battery
+        if (!VectorApp.isAppInBackground()) {
+            super.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Tells if an event must be displayed in the undeliverable events tail.
+     * @param event the event
+     * @return true if the event is undeliverable
+     */
+    private static boolean isUndeliverable(Event event) {
+        return (null != event) && (!event.isValidOriginServerTs() || event.isUnkownDevice());
+    }
+
+    /**
+     * Push the undeliverable events at the end of the history.
+     * The rows are only moved when an undeliverable event is found out of the tail segment.
+     */
+    private void refreshUndeliverableTail() {
+        int count = getCount();
+
+        // the tail segment is the undeliverable rows at the end of the history
+        int tailStart = count;
+
+        while ((tailStart > 0) && isUndeliverable(getItem(tailStart - 1).getEvent())) {
+            tailStart--;
+        }
 
-            if ((null != event) && (!event.isValidOriginServerTs() || event.isUnkownDevice())) {
-                undeliverableEvents.add(row);
-                removeRow(row);
-                i--;
+        // check if there are some misplaced undeliverable events
+        boolean hasMisplacedEvents = false;
+
+        for (int index = 0; index < tailStart; index++) {
+            if (isUndeliverable(getItem(index).getEvent())) {
+                hasMisplacedEvents = true;
+                break;
             }
         }
 
-        if (undeliverableEvents.size() > 0) {
+        if (hasMisplacedEvents) {
+            this.setNotifyOnChange(false);
+            List<MessageRow> undeliverableEvents = new ArrayList<>();
+
+            for (int i = 0; i < getCount(); i++) {
+                MessageRow row = getItem(i);
+
+                if (isUndeliverable(row.getEvent())) {
+                    undeliverableEvents.add(row);
+                    removeRow(row);
+                    i--;
+                }
+            }
+
             try {
                 Collections.sort(undeliverableEvents, new Comparator<MessageRow>() {
                     @Override
@@ -429,41 +640,100 @@ public class VectorMessagesAdapter extends MessagesAdapter {
                     }
                 });
             } catch (Exception e) {
-                Log.e(LOG_TAG, "## notifyDataSetChanged () : failed to sort undeliverableEvents " + e.getMessage());
+                Log.e(LOG_TAG, "## refreshUndeliverableTail () : failed to sort undeliverableEvents " + e.getMessage());
             }
 
             this.addAll(undeliverableEvents);
+            this.setNotifyOnChange(true);
+
+            mIsMessagesDayListDirty = true;
         }
+    }
 
-        this.setNotifyOnChange(true);
+    /**
+     * Compute the local day number of a timestamp.
+     * @param ts the timestamp
+     * @param timeZone the local timezone
+     * @return the number of days since epoch
+     */
+    private static long dayNumber(long ts, TimeZone timeZone) {
+        return (ts + timeZone.getOffset(ts)) / AdapterUtils.MS_IN_DAY;
+    }
 
-        // build messages timestamps
-        ArrayList<Date> dates = new ArrayList<>();
+    /**
+     * Refresh the day number of each row.
+     * When the rows have only been appended or prepended since the latest refresh,
+     * only these rows are computed.
+     */
+    private void refreshMessagesDayList() {
+        TimeZone timeZone = TimeZone.getDefault();
+        long today = dayNumber(System.currentTimeMillis(), timeZone);
+        int count = getCount();
 
-        Date latestDate = AdapterUtils.zeroTimeDate(new Date());
+        synchronized (this) {
+            int prependedCount = -1;
+
+            // check if the previous rows are still in the same order
+            if (!mIsMessagesDayListDirty && (mReferenceDay == today) && (mMessagesDayCount > 0) && (count >= mMessagesDayCount)) {
+                for (int index = 0; index <= (count - mMessagesDayCount); index++) {
+                    if (getItem(index) == mMessagesDayFirstRow) {
+                        if ((getItem(index + mMessagesDayCount - 1) == mMessagesDayLastRow) && mMessagesDayFirstRow.getEvent().isValidOriginServerTs()) {
+                            prependedCount = index;
+                        }
+                        break;
+                    }
+                }
+            }
 
-        for(int index = 0; index < this.getCount(); index++) {
-            MessageRow row = getItem(index);
-            Event event = row.getEvent();
+            long[] dayList = mMessagesDayList;
 
-            if (event.isValidOriginServerTs()) {
-                latestDate = AdapterUtils.zeroTimeDate(new Date(event.getOriginServerTs()));
+            if (dayList.length < count) {
+                dayList = new long[Math.max(count, dayList.length * 2)];
             }
 
-            dates.add(latestDate);
-        }
+            int startIndex;
+            long latestDay = today;
 
-        synchronized (this) {
-            mMessagesDateList = dates;
-            mReferenceDate = new Date();
-        }
+            if (prependedCount < 0) {
+                startIndex = 0;
+            } else {
+                // shift the known rows
+                if ((prependedCount > 0) || (dayList != mMessagesDayList)) {
+                    System.arraycopy(mMessagesDayList, 0, dayList, prependedCount, mMessagesDayCount);
+                }
 
-        manageCryptoEvents();
+                // compute the prepended rows
+                for (int index = 0; index < prependedCount; index++) {
+                    Event event = getItem(index).getEvent();
 
-        //  do not refresh the room when the application is in background
-        // on large rooms, it drains a lot of battery
-        if (!VectorApp.isAppInBackground()) {
-            super.notifyDataSetChanged();
+                    if (event.isValidOriginServerTs()) {
+                        latestDay = dayNumber(event.getOriginServerTs(), timeZone);
+                    }
+
+                    dayList[index] = latestDay;
+                }
+
+                startIndex = prependedCount + mMessagesDayCount;
+                latestDay = dayList[startIndex - 1];
+            }
+
+            // compute the appended rows
+            for (int index = startIndex; index < count; index++) {
+                Event event = getItem(index).getEvent();
+
+                if (event.isValidOriginServerTs()) {
+                    latestDay = dayNumber(event.getOriginServerTs(), timeZone);
+                }
+
+                dayList[index] = latestDay;
+            }
+
+            mMessagesDayList = dayList;
+            mMessagesDayCount = count;
+            mMessagesDayFirstRow = (count > 0) ? getItem(0) : null;
+            mMessagesDayLastRow = (count > 0) ? getItem(count - 1) : null;
+            mReferenceDay = today;
+            mIsMessagesDayListDirty = false;
         }
     }
 
@@ -492,29 +762,51 @@ public class VectorMessagesAdapter extends MessagesAdapter {
     }
 
     protected String headerMessage(int position) {
-        Date prevMessageDate = null;
-        Date messageDate = null;
+        long prevMessageDay = -1;
+        long messageDay;
+        long referenceDay;
+        Event event = null;
 
         synchronized (this) {
-            if ((position > 0) && (position < mMessagesDateList.size())) {
-                prevMessageDate = mMessagesDateList.get(position -1);
+            // sanity check
+            if ((position < 0) || (position >= mMessagesDayCount)) {
+                return null;
             }
-            if (position < mMessagesDateList.size()) {
-                messageDate = mMessagesDateList.get(position);
+
+            if (position > 0) {
+                prevMessageDay = mMessagesDayList[position - 1];
             }
-        }
 
-        // sanity check
-        if (null == messageDate) {
-            return null;
+            messageDay = mMessagesDayList[position];
+            referenceDay = mReferenceDay;
+
+            if (position < getCount()) {
+                event = getItem(position).getEvent();
+            }
         }
 
         // same day or get the oldest message
-        if ((null != prevMessageDate) && 0 == (prevMessageDate.getTime() - messageDate.getTime())) {
+        if ((position > 0) && (prevMessageDay == messageDay)) {
             return null;
         }
 
-        return dateDiff(messageDate, (mReferenceDate.getTime() - messageDate.getTime()) / AdapterUtils.MS_IN_DAY);
+        long nbrDays = referenceDay - messageDay;
+        MessagesAdapterRenderCache.RenderedEvent renderedEvent = mRenderCache.get(event);
+
+        if ((null != renderedEvent) && (renderedEvent.mHeaderDaysDiff == nbrDays) && (null != renderedEvent.mHeaderText)) {
+            return renderedEvent.mHeaderText;
+        }
+
+        // the date is only allocated to format the header text
+        long dayStartTs = messageDay * AdapterUtils.MS_IN_DAY;
+        String header = dateDiff(new Date(dayStartTs - TimeZone.getDefault().getOffset(dayStartTs)), nbrDays);
+
+        if (null != renderedEvent) {
+            renderedEvent.mHeaderText = header;
+            renderedEvent.mHeaderDaysDiff = nbrDays;
+        }
+
+        return header;
     }
 
     @Override
@@ -878,6 +1170,18 @@ public class VectorMessagesAdapter extends MessagesAdapter {
         // mother class implementation
         boolean isMergedView = super.manageSubView(position, convertView, subView, msgType);
 
+        // keep the formatted body
+        if (ROW_TYPE_TEXT == msgType) {
+            MessagesAdapterRenderCache.RenderedEvent renderedEvent = mRenderCache.get(event);
+            TextView bodyTextView = (TextView) convertView.findViewById(org.matrix.androidsdk.R.id.messagesAdapter_body);
+
+            if ((null != renderedEvent) && (null == renderedEvent.mBody) && (null != bodyTextView)) {
+                // copy it as the text view buffer receives the selection spans
+                renderedEvent.mBody = new SpannableString(bodyTextView.getText());
+                renderedEvent.mBodyTextColor = bodyTextView.getCurrentTextColor();
+            }
+        }
+
         // remove the message separator when it is not required
         View view = convertView.findViewById(org.matrix.androidsdk.R.id.messagesAdapter_message_separator);
         if (null != view) {
@@ -1080,9 +1384,6 @@ public class VectorMessagesAdapter extends MessagesAdapter {
         return formatStats(context, stats.mUploadedSize, stats.mFileSize, stats.mEstimatedRemainingTime);
     }
 
-    //
-    private final HashMap<String, String> mMediaDownloadIdByEventId = new HashMap<>();
-
     /**
      * Tells if the downloadId is the media download id.
      * @param event the event
@@ -1090,7 +1391,8 @@ public class VectorMessagesAdapter extends MessagesAdapter {
      * @return true if the media is downloading (not the thumbnail)
      */
     private boolean isMediaDownloading(Event event, String downloadId) {
-        String mediaDownloadId = mMediaDownloadIdByEventId.get(event.eventId);
+        MessagesAdapterRenderCache.RenderedEvent renderedEvent = mRenderCache.get(event);
+        String mediaDownloadId = (null != renderedEvent) ? renderedEvent.mMediaDownloadId : null;
 
         if (null == mediaDownloadId) {
             mediaDownloadId = "";
@@ -1113,7 +1415,9 @@ public class VectorMessagesAdapter extends MessagesAdapter {
                 }
             }
 
-            mMediaDownloadIdByEventId.put(event.eventId, mediaDownloadId);
+            if (null != renderedEvent) {
+                renderedEvent.mMediaDownloadId = mediaDownloadId;
+            }
         }
 
         return TextUtils.equals(mediaDownloadId, downloadId);
@@ -57,6 +57,7 @@ import java.util.List;
 import im.vector.Matrix;
 import im.vector.PublicRoomsManager;
 import im.vector.R;
+import im.vector.util.VectorTracer;
 import im.vector.util.VectorUtils;
 
 /**
@@ -533,39 +534,47 @@ public class VectorRoomSummaryAdapter extends BaseExpandableListAdapter {
                 return;
             }
 
-            // update/retrieve the complete summary list
-            ArrayList<RoomSummary> roomSummariesCompleteList = new ArrayList<>(dataHandler.getStore().getSummaries());
+            VectorTracer.Span span = VectorTracer.beginSpan(VectorTracer.SPAN_ROOMS_LIST_BUILD);
+            int roomsCount = 0;
 
-            // define comparator logic
-            Comparator<RoomSummary> summaryComparator = new Comparator<RoomSummary>() {
-                public int compare(RoomSummary aLeftObj, RoomSummary aRightObj) {
-                    int retValue;
-                    long deltaTimestamp;
+            try {
+                // update/retrieve the complete summary list
+                ArrayList<RoomSummary> roomSummariesCompleteList = new ArrayList<>(dataHandler.getStore().getSummaries());
 
-                    if((null == aLeftObj) || (null == aLeftObj.getLatestReceivedEvent())){
-                        retValue = 1;
-                    }
-                    else if((null == aRightObj) || (null == aRightObj.getLatestReceivedEvent())){
-                        retValue = -1;
-                    }
-                    else if((deltaTimestamp = aRightObj.getLatestReceivedEvent().getOriginServerTs() - aLeftObj.getLatestReceivedEvent().getOriginServerTs()) > 0) {
-                        retValue = 1;
-                    }
-                    else if (deltaTimestamp < 0) {
-                        retValue = -1;
-                    }
-                    else {
-                        retValue = 0;
-                    }
+                // define comparator logic
+                Comparator<RoomSummary> summaryComparator = new Comparator<RoomSummary>() {
+                    public int compare(RoomSummary aLeftObj, RoomSummary aRightObj) {
+                        int retValue;
+                        long deltaTimestamp;
 
-                    return retValue;
-                }
-            };
+                        if((null == aLeftObj) || (null == aLeftObj.getLatestReceivedEvent())){
+                            retValue = 1;
+                        }
+                        else if((null == aRightObj) || (null == aRightObj.getLatestReceivedEvent())){
+                            retValue = -1;
+                        }
+                        else if((deltaTimestamp = aRightObj.getLatestReceivedEvent().getOriginServerTs() - aLeftObj.getLatestReceivedEvent().getOriginServerTs()) > 0) {
+                            retValue = 1;
+                        }
+                        else if (deltaTimestamp < 0) {
+                            retValue = -1;
+                        }
+                        else {
+                            retValue = 0;
+                        }
 
-            Collections.sort(roomSummariesCompleteList, summaryComparator);
+                        return retValue;
+                    }
+                };
+
+                Collections.sort(roomSummariesCompleteList, summaryComparator);
 
-            // init data model used to be be displayed in the list view
-            mSummaryListByGroupPosition = buildSummariesByGroups(roomSummariesCompleteList);
+                // init data model used to be be displayed in the list view
+                mSummaryListByGroupPosition = buildSummariesByGroups(roomSummariesCompleteList);
+                roomsCount = roomSummariesCompleteList.size();
+            } finally {
+                span.end(roomsCount + " rooms");
+            }
         }
     }
 
@@ -649,7 +658,7 @@ public class VectorRoomSummaryAdapter extends BaseExpandableListAdapter {
      * @param aTargetView view to apply the background
      * @param aBackgroundColor background colour
      */
-    private static void setUnreadBackground(View aTargetView, int aBackgroundColor) {
+    static void setUnreadBackground(View aTargetView, int aBackgroundColor) {
         if(null != aTargetView) {
             GradientDrawable shape = new GradientDrawable();
             shape.setShape(GradientDrawable.RECTANGLE);
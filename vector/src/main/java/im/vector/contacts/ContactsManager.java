@@ -47,6 +47,7 @@ import java.util.Set;
 import im.vector.Matrix;
 import im.vector.VectorApp;
 import im.vector.util.PhoneNumberUtils;
+import im.vector.util.VectorTracer;
 
 /**
  * Manage the local contacts
@@ -419,6 +420,7 @@ public class ContactsManager implements SharedPreferences.OnSharedPreferenceChan
         Thread t = new Thread(new Runnable() {
             public void run() {
                 long t0 = System.currentTimeMillis();
+                VectorTracer.Span span = VectorTracer.beginSpan(VectorTracer.SPAN_CONTACTS_LOAD);
                 ContentResolver cr = mContext.getContentResolver();
                 HashMap<String, Contact> dict = new HashMap<>();
 
@@ -554,6 +556,8 @@ public class ContactsManager implements SharedPreferences.OnSharedPreferenceChan
                     mIsPopulating = false;
                 }
 
+                span.end(mContactsList.size() + " contacts");
+
                 if (0 != mContactsList.size()) {
                     long delta = System.currentTimeMillis() - t0;
 
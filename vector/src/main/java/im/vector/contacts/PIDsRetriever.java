@@ -36,6 +36,8 @@ import java.util.Map;
 import java.util.Set;
 
 import im.vector.Matrix;
+import im.vector.util.VectorRequestScheduler;
+import im.vector.util.VectorTracer;
 
 /**
  * retrieve the contact matrix IDs
@@ -211,58 +213,71 @@ public class PIDsRetriever {
             final List<String> medias = new ArrayList<>(lookupMap.values());
             Collection<MXSession> sessions = Matrix.getInstance(context.getApplicationContext()).getSessions();
 
+            VectorTracer.incrementCounter(VectorTracer.COUNTER_LOOKED_UP_PIDS, fRequestedMediums.size());
+
             for (MXSession session : sessions) {
                 final String accountId = session.getCredentials().userId;
+                final VectorTracer.Span span = VectorTracer.beginAsyncSpan(VectorTracer.SPAN_PIDS_LOOKUP);
+
+                final MXSession fSession = session;
 
-                session.lookup3Pids(fRequestedMediums, medias, new ApiCallback<List<String>>() {
+                // the lookup is not displayed
+                VectorRequestScheduler.getInstance().schedule(VectorRequestScheduler.PRIORITY_BACKGROUND, new VectorRequestScheduler.IScheduledRequest() {
                     @Override
-                    public void onSuccess(final List<String> pids) {
-                        Log.e(LOG_TAG, "lookup3Pids success " + pids.size());
-                        // update the local cache
-                        for(int index = 0; index < fRequestedMediums.size(); index++) {
-                            String medium = fRequestedMediums.get(index);
-                            String mxId = pids.get(index);
-
-                            if (!TextUtils.isEmpty(mxId)) {
-                                mMatrixIdsByMedium.put(medium, new Contact.MXID(mxId, accountId));
+                    public void send(Runnable onDone) {
+                        fSession.lookup3Pids(fRequestedMediums, medias, VectorRequestScheduler.releaseOnDone(onDone, new ApiCallback<List<String>>() {
+                            @Override
+                            public void onSuccess(final List<String> pids) {
+                                Log.e(LOG_TAG, "lookup3Pids success " + pids.size());
+                                span.end(pids.size() + " pids");
+                                // update the local cache
+                                for(int index = 0; index < fRequestedMediums.size(); index++) {
+                                    String medium = fRequestedMediums.get(index);
+                                    String mxId = pids.get(index);
+
+                                    if (!TextUtils.isEmpty(mxId)) {
+                                        mMatrixIdsByMedium.put(medium, new Contact.MXID(mxId, accountId));
+                                    }
+                                }
+
+                                retrieveMatrixIds(contacts);
+
+                                // warn the listener of the update
+                                if (null != mListener) {
+                                    mListener.onSuccess(accountId);
+                                }
                             }
-                        }
-
-                        retrieveMatrixIds(contacts);
-
-                        // warn the listener of the update
-                        if (null != mListener) {
-                            mListener.onSuccess(accountId);
-                        }
-                    }
-
-                    /**
-                     * Common error routine
-                     * @param errorMessage the error message
-                     */
-                    private void onError(String errorMessage) {
-                        Log.e(LOG_TAG, "## retrieveMatrixIds() : failed " + errorMessage);
 
-                        if (null != mListener) {
-                            mListener.onFailure(accountId);
-                        }
-                    }
+                            /**
+                             * Common error routine
+                             * @param errorMessage the error message
+                             */
+                            private void onError(String errorMessage) {
+                                Log.e(LOG_TAG, "## retrieveMatrixIds() : failed " + errorMessage);
+                                span.end("failed");
+
+                                if (null != mListener) {
+                                    mListener.onFailure(accountId);
+                                }
+                            }
 
-                    // ignore the network errors
-                    // will be checked again later
-                    @Override
-                    public void onNetworkError(Exception e) {
-                        onError(e.getMessage());
-                    }
+                            // ignore the network errors
+                            // will be checked again later
+                            @Override
+                            public void onNetworkError(Exception e) {
+                                onError(e.getMessage());
+                            }
 
-                    @Override
-                    public void onMatrixError(MatrixError e) {
-                        onError(e.getMessage());
-                    }
+                            @Override
+                            public void onMatrixError(MatrixError e) {
+                                onError(e.getMessage());
+                            }
 
-                    @Override
-                    public void onUnexpectedError(Exception e) {
-                        onError(e.getMessage());
+                            @Override
+                            public void onUnexpectedError(Exception e) {
+                                onError(e.getMessage());
+                            }
+                        }));
                     }
                 });
             }
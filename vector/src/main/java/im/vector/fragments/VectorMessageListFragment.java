@@ -850,6 +850,7 @@ public class VectorMessageListFragment extends MatrixMessageListFragment impleme
                 info.mMimeType = imageMessage.getMimeType();
                 info.mIdentifier = row.getEvent().eventId;
                 info.mEncryptedFileInfo = imageMessage.file;
+                info.mMediaSize = ((null != imageMessage.info) && (null != imageMessage.info.size)) ? imageMessage.info.size : -1;
                 res.add(info);
             } else if (Message.MSGTYPE_VIDEO.equals(message.msgtype)) {
                 SlidableMediaInfo info = new SlidableMediaInfo();
@@ -860,6 +861,7 @@ public class VectorMessageListFragment extends MatrixMessageListFragment impleme
                 info.mThumbnailUrl = (null != videoMessage.info) ? videoMessage.info.thumbnail_url : null;
                 info.mMimeType = videoMessage.getVideoMimeType();
                 info.mEncryptedFileInfo = videoMessage.file;
+                info.mMediaSize = ((null != videoMessage.info) && (null != videoMessage.info.size)) ? videoMessage.info.size : -1;
                 res.add(info);
             }
         }
@@ -43,6 +43,7 @@ import im.vector.VectorApp;
 import im.vector.activity.CommonActivityUtils;
 import im.vector.activity.VectorRoomActivity;
 import im.vector.adapters.VectorPublicRoomsAdapter;
+import im.vector.util.VectorRequestScheduler;
 
 import java.util.HashMap;
 import java.util.List;
@@ -84,6 +85,9 @@ public class VectorPublicRoomsListFragment extends Fragment {
     protected final AbsListView.OnScrollListener mScrollListener = new AbsListView.OnScrollListener() {
         @Override
         public void onScrollStateChanged(AbsListView view, int scrollState) {
+            // defer the background requests while the user is scrolling
+            VectorRequestScheduler.getInstance().onUserInteraction();
+
             //check only when the user scrolls the content
             if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
                 int lastVisibleRow = mRecentsListView.getLastVisiblePosition();
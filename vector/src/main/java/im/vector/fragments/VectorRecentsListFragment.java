@@ -58,6 +58,7 @@ import im.vector.activity.VectorPublicRoomsActivity;
 import im.vector.activity.VectorRoomActivity;
 import im.vector.adapters.VectorRoomSummaryAdapter;
 import im.vector.services.EventStreamService;
+import im.vector.util.VectorRequestScheduler;
 import im.vector.view.RecentsExpandableListView;
 
 import java.util.HashMap;
@@ -272,6 +273,8 @@ public class VectorRecentsListFragment extends Fragment implements VectorRoomSum
 
             @Override
             public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // defer the background requests while the user is scrolling
+                VectorRequestScheduler.getInstance().onUserInteraction();
             }
 
             // latest cell offset Y
@@ -22,6 +22,8 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 
 import org.matrix.androidsdk.MXDataHandler;
@@ -38,13 +40,16 @@ import org.matrix.androidsdk.rest.model.PushersResponse;
 import im.vector.Matrix;
 import im.vector.R;
 import im.vector.activity.CommonActivityUtils;
+import im.vector.util.VectorRequestScheduler;
 import retrofit.RetrofitError;
 
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -68,6 +73,13 @@ public final class GcmRegistrationManager {
     private static final String PREFS_SYNC_TIMEOUT = "GcmRegistrationManager.PREFS_SYNC_TIMEOUT";
     private static final String PREFS_SYNC_DELAY = "GcmRegistrationManager.PREFS_SYNC_DELAY";
 
+    // the last successful pusher registration of each session
+    private static final String PREFS_PUSHER_STATE_KEY_PREFIX = "GcmRegistrationManager.PREFS_PUSHER_STATE.";
+
+    // the pusher requests backoff : 1s, 2s, 4s, 8s
+    private static final long PUSHER_REQUEST_RETRY_DELAY_MS = 1000;
+    private static final int PUSHER_REQUEST_MAX_ATTEMPTS = 5;
+
     private static final String DEFAULT_PUSHER_APP_ID = "im.vector.app.android";
     private static final String DEFAULT_PUSHER_URL = "https://matrix.org/_matrix/push/v1/notify";
     private static final String DEFAULT_PUSHER_FILE_TAG = "mobile";
@@ -97,6 +109,92 @@ public final class GcmRegistrationManager {
         void onThirdPartyUnregistrationFailed();
     }
 
+    /**
+     * A pusher request, which can be sent several times.
+     */
+    private interface IPusherRequest {
+        void send(ApiCallback<Void> callback);
+    }
+
+    /**
+     * Aggregate the results of the pusher requests sent in parallel for several sessions.
+     */
+    private abstract static class PusherRequestsAggregator {
+        // the requests which are not complete
+        private int mPendingCount;
+        // the failed requests
+        private int mFailuresCount = 0;
+        // true if a request failed with an HTTP 500 error
+        private boolean mHas500Error = false;
+
+        PusherRequestsAggregator(int count) {
+            mPendingCount = count;
+        }
+
+        /**
+         * Called when all the requests are complete.
+         * @param failuresCount the failed requests count
+         * @param has500Error true if a request failed with an HTTP 500 error
+         */
+        abstract void onComplete(int failuresCount, boolean has500Error);
+
+        /**
+         * Provide the callback of a request.
+         * @param onDone an optional runnable to run when the request is complete
+         * @return the callback
+         */
+        ApiCallback<Void> getCallback(final Runnable onDone) {
+            return new ApiCallback<Void>() {
+                @Override
+                public void onSuccess(Void info) {
+                    onRequestDone(false, false, onDone);
+                }
+
+                @Override
+                public void onNetworkError(Exception e) {
+                    onRequestDone(true, false, onDone);
+                }
+
+                @Override
+                public void onMatrixError(MatrixError e) {
+                    onRequestDone(true, false, onDone);
+                }
+
+                @Override
+                public void onUnexpectedError(Exception e) {
+                    onRequestDone(true, 500 == getHttpStatus(e), onDone);
+                }
+            };
+        }
+
+        /**
+         * A request is complete.
+         * @param isFailed true if the request failed
+         * @param is500Error true if the request failed with an HTTP 500 error
+         * @param onDone an optional runnable to run
+         */
+        private void onRequestDone(boolean isFailed, boolean is500Error, Runnable onDone) {
+            boolean isComplete;
+
+            synchronized (this) {
+                if (isFailed) {
+                    mFailuresCount++;
+                }
+
+                mHas500Error |= is500Error;
+                isComplete = (0 == --mPendingCount);
+            }
+
+            if (null != onDone) {
+                onDone.run();
+            }
+
+            if (isComplete) {
+                onComplete(mFailuresCount, mHas500Error);
+            }
+        }
+    }
+
     private String mPusherAppName = null;
     private String mPusherLang = null;
 
@@ -133,6 +231,9 @@ public final class GcmRegistrationManager {
     // 3 states : null not initialized (retrieved by flavor)
     private static Boolean mUseGCM;
 
+    // to retry the pusher requests
+    private final Handler mUIHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Constructor
      * @param appContext the application context.
@@ -216,7 +317,7 @@ public final class GcmRegistrationManager {
                 }
             });
 
-            unregister(new ArrayList<>(Matrix.getInstance(mContext).getSessions()), 0);
+            unregisterSessions(new ArrayList<>(Matrix.getInstance(mContext).getSessions()));
         } else if (mRegistrationState == RegistrationState.UNREGISTRATED) {
             Log.d(LOG_TAG, "checkPusherRegistration : try to register to GCM server");
 
@@ -408,72 +509,203 @@ public final class GcmRegistrationManager {
     }
 
     /**
-     * Manage the 500 http error case.
+     * Compute the pusher description of a session.
+     * It is saved after a successful registration to skip the unchanged registrations.
+     * @param session the session
+     * @param registrationToken the registration token
+     * @return the pusher description
+     */
+    private String computePusherState(final MXSession session, final String registrationToken) {
+        return TextUtils.join("|", new String[]{registrationToken, DEFAULT_PUSHER_APP_ID, computePushTag(session), mPusherLang, mPusherAppName, mBasePusherDeviceName, DEFAULT_PUSHER_URL});
+    }
+
+    /**
+     * Tells if the current pusher of a session has already been registered.
+     * @param session the session
+     * @return true if the last successful registration has the same pusher description
      */
-    private void manage500Error() {
-        Log.d(LOG_TAG, "got a 500 error -> reset the registration and try again");
+    private boolean isPusherRegistered(final MXSession session) {
+        return TextUtils.equals(getGcmSharedPreferences().getString(PREFS_PUSHER_STATE_KEY_PREFIX + session.getMyUserId(), null), computePusherState(session, mRegistrationToken));
+    }
+
+    /**
+     * Save the last successful pusher registration of a session.
+     * @param session the session
+     * @param pusherState the pusher description, null when the pusher has been removed
+     */
+    private void setPusherState(final MXSession session, final String pusherState) {
+        SharedPreferences.Editor editor = getGcmSharedPreferences().edit();
+
+        if (null == pusherState) {
+            editor.remove(PREFS_PUSHER_STATE_KEY_PREFIX + session.getMyUserId());
+        } else {
+            editor.putString(PREFS_PUSHER_STATE_KEY_PREFIX + session.getMyUserId(), pusherState);
+        }
+
+        if (!editor.commit()) {
+            Log.e(LOG_TAG, "## setPusherState() : commit failed");
+        }
+    }
+
+    /**
+     * Forget the pushers registrations of all the sessions.
+     */
+    private void clearPusherStates() {
+        SharedPreferences preferences = getGcmSharedPreferences();
+        SharedPreferences.Editor editor = preferences.edit();
+
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(PREFS_PUSHER_STATE_KEY_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+
+        if (!editor.commit()) {
+            Log.e(LOG_TAG, "## clearPusherStates() : commit failed");
+        }
+    }
+
+    /**
+     * Provide the HTTP status of a request error.
+     * @param e the error
+     * @return the HTTP status, -1 if there is none
+     */
+    private static int getHttpStatus(final Exception e) {
+        if (e instanceof RetrofitError) {
+            RetrofitError retrofitError = (RetrofitError) e;
 
-        Timer relaunchTimer = new Timer();
+            if (null != retrofitError.getResponse()) {
+                return retrofitError.getResponse().getStatus();
+            }
+        }
 
-        // wait 5 seconds before registering
-        relaunchTimer.schedule(new TimerTask() {
+        return -1;
+    }
+
+    /**
+     * Send a pusher request.
+     * The network errors and the server errors are retried with an exponential backoff.
+     * @param session the session
+     * @param description the request description
+     * @param request the request
+     * @param attempt the attempt index
+     * @param callback the asynchronous callback
+     */
+    private void sendPusherRequest(final MXSession session, final String description, final IPusherRequest request, final int attempt, final ApiCallback<Void> callback) {
+        request.send(new ApiCallback<Void>() {
             @Override
-            public void run() {
-                if (RegistrationState.GCM_REGISTRED == mRegistrationState) {
-                    if (null != mRegistrationToken) {
-                        mRegistrationState = RegistrationState.SERVER_REGISTERED;
+            public void onSuccess(Void info) {
+                callback.onSuccess(info);
+            }
+
+            /**
+             * Send the request again after a delay.
+             * @param message the error message
+             * @return true if the request will be sent again
+             */
+            private boolean retry(final String message) {
+                if (!session.isAlive() || ((attempt + 1) >= PUSHER_REQUEST_MAX_ATTEMPTS)) {
+                    return false;
+                }
+
+                long delay = PUSHER_REQUEST_RETRY_DELAY_MS << attempt;
+
+                Log.e(LOG_TAG, "## sendPusherRequest() : " + description + " of " + session.getMyUserId() + " failed (" + message + ") -> retry in " + delay + " ms");
+
+                mUIHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendPusherRequest(session, description, request, attempt + 1, callback);
                     }
+                }, delay);
 
-                    if (RegistrationState.SERVER_REGISTERED == mRegistrationState) {
+                return true;
+            }
 
-                        Log.d(LOG_TAG, "500 error : unregister first");
+            @Override
+            public void onNetworkError(Exception e) {
+                if (!retry(e.getLocalizedMessage())) {
+                    callback.onNetworkError(e);
+                }
+            }
 
-                        unregister(new ThirdPartyRegistrationListener() {
-                            @Override
-                            public void onThirdPartyRegistered() {
-                            }
+            @Override
+            public void onMatrixError(MatrixError e) {
+                callback.onMatrixError(e);
+            }
 
-                            @Override
-                            public void onThirdPartyRegistrationFailed() {
-                            }
+            @Override
+            public void onUnexpectedError(Exception e) {
+                // an HTTP error 500 issue has been reported several times
+                // it seems that the server is either rebooting
+                // or the GCM key seems triggering error on server side.
+                if ((getHttpStatus(e) < 500) || !retry(e.getLocalizedMessage())) {
+                    callback.onUnexpectedError(e);
+                }
+            }
+        });
+    }
 
-                            @Override
-                            public void onThirdPartyUnregistered() {
-                                Log.d(LOG_TAG, "500 error : onThirdPartyUnregistered");
+    /**
+     * Manage the 500 http error case, when the retries did not succeed.
+     */
+    private void manage500Error() {
+        Log.d(LOG_TAG, "got a 500 error -> reset the registration and try again");
 
-                                setStoredRegistrationToken(null);
-                                mRegistrationState = RegistrationState.UNREGISTRATED;
-                                register(null);
-                            }
+        if (RegistrationState.GCM_REGISTRED == mRegistrationState) {
+            if (null != mRegistrationToken) {
+                mRegistrationState = RegistrationState.SERVER_REGISTERED;
+            }
 
-                            @Override
-                            public void onThirdPartyUnregistrationFailed() {
-                                Log.d(LOG_TAG, "500 error : onThirdPartyUnregistrationFailed");
+            if (RegistrationState.SERVER_REGISTERED == mRegistrationState) {
 
-                                setStoredRegistrationToken(null);
-                                mRegistrationState = RegistrationState.UNREGISTRATED;
-                                register(null);
-                            }
-                        });
+                Log.d(LOG_TAG, "500 error : unregister first");
 
-                    } else {
-                        Log.d(LOG_TAG, "500 error : no GCM key");
+                unregister(new ThirdPartyRegistrationListener() {
+                    @Override
+                    public void onThirdPartyRegistered() {
+                    }
+
+                    @Override
+                    public void onThirdPartyRegistrationFailed() {
+                    }
+
+                    @Override
+                    public void onThirdPartyUnregistered() {
+                        Log.d(LOG_TAG, "500 error : onThirdPartyUnregistered");
 
                         setStoredRegistrationToken(null);
                         mRegistrationState = RegistrationState.UNREGISTRATED;
                         register(null);
                     }
-                }
+
+                    @Override
+                    public void onThirdPartyUnregistrationFailed() {
+                        Log.d(LOG_TAG, "500 error : onThirdPartyUnregistrationFailed");
+
+                        setStoredRegistrationToken(null);
+                        mRegistrationState = RegistrationState.UNREGISTRATED;
+                        register(null);
+                    }
+                });
+
+            } else {
+                Log.d(LOG_TAG, "500 error : no GCM key");
+
+                setStoredRegistrationToken(null);
+                mRegistrationState = RegistrationState.UNREGISTRATED;
+                register(null);
             }
-        }, 5000);
+        }
     }
 
     /**
      * Register the session to the 3rd-party app server
      * @param session the session to register.
-     * @param listener the registration listener
+     * @param append false to remove the pushers of the other users with the same push key
+     * @param callback the asynchronous callback
      */
-    private void registerToThirdPartyServer(final MXSession session, boolean append, final ThirdPartyRegistrationListener listener) {
+    private void registerToThirdPartyServer(final MXSession session, final boolean append, final ApiCallback<Void> callback) {
         // test if the push server registration is allowed
         if (!areDeviceNotificationsAllowed() || !useGCM()) {
             if (!areDeviceNotificationsAllowed()) {
@@ -482,86 +714,48 @@ public final class GcmRegistrationManager {
                 Log.d(LOG_TAG, "registerPusher : GCM is disabled.");
             }
 
-            if (null != listener) {
-                try {
-                    listener.onThirdPartyRegistrationFailed();
-                }  catch (Exception e) {
-                    Log.e(LOG_TAG, "registerToThirdPartyServer failed " + e.getLocalizedMessage());
-                }
-            }
-
-            // fallback to the GCM_REGISTRED state
-            // thus, the client will try again to register with checkRegistrations.
-            mRegistrationState = RegistrationState.GCM_REGISTRED;
-
+            callback.onUnexpectedError(new IllegalStateException("the pusher registration is not allowed"));
             return;
         }
 
         Log.d(LOG_TAG, "registerToThirdPartyServer of " + session.getMyUserId());
 
-        session.getPushersRestClient()
-                .addHttpPusher(mRegistrationToken, DEFAULT_PUSHER_APP_ID, computePushTag(session),
-                        mPusherLang, mPusherAppName, mBasePusherDeviceName,
-                        DEFAULT_PUSHER_URL, append, new ApiCallback<Void>() {
-                            @Override
-                            public void onSuccess(Void info) {
-                                Log.d(LOG_TAG, "registerToThirdPartyServer succeeded");
-
-                                if (null != listener) {
-                                    try {
-                                        listener.onThirdPartyRegistered();
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "onSessionRegistered failed " + e.getLocalizedMessage());
-                                    }
-                                }
-                            }
-
-                            private void onError(final String message) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer failed" + session.getMyUserId() + " (" + message + ")");
-
-                                // fallback to the GCM_REGISTRED state
-                                // thus, the client will try again to register with checkRegistrations.
-                                mRegistrationState = RegistrationState.GCM_REGISTRED;
-
-                                if (null != listener) {
-                                    try {
-                                        listener.onThirdPartyRegistrationFailed();
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "onThirdPartyRegistrationFailed failed " + e.getLocalizedMessage());
-                                    }
-                                }
-                            }
-
-                            @Override
-                            public void onNetworkError(Exception e) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer onNetworkError " + e.getLocalizedMessage());
-                                onError(e.getLocalizedMessage());
-                            }
+        final String registrationToken = mRegistrationToken;
 
-                            @Override
-                            public void onMatrixError(MatrixError e) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer onMatrixError " + e.errcode);
-                                onError(e.getLocalizedMessage());
-                            }
+        sendPusherRequest(session, "registerToThirdPartyServer", new IPusherRequest() {
+            @Override
+            public void send(ApiCallback<Void> requestCallback) {
+                session.getPushersRestClient()
+                        .addHttpPusher(registrationToken, DEFAULT_PUSHER_APP_ID, computePushTag(session),
+                                mPusherLang, mPusherAppName, mBasePusherDeviceName,
+                                DEFAULT_PUSHER_URL, append, requestCallback);
+            }
+        }, 0, new ApiCallback<Void>() {
+            @Override
+            public void onSuccess(Void info) {
+                Log.d(LOG_TAG, "registerToThirdPartyServer succeeded");
+                setPusherState(session, computePusherState(session, registrationToken));
+                callback.onSuccess(null);
+            }
 
-                            @Override
-                            public void onUnexpectedError(Exception e) {
-                                Log.e(LOG_TAG, "registerToThirdPartyServer onUnexpectedError " + e.getLocalizedMessage());
-                                onError(e.getLocalizedMessage());
+            @Override
+            public void onNetworkError(Exception e) {
+                Log.e(LOG_TAG, "registerToThirdPartyServer onNetworkError " + session.getMyUserId() + " " + e.getLocalizedMessage());
+                callback.onNetworkError(e);
+            }
 
-                                // track the 500 HTTP error
-                                if (e instanceof RetrofitError) {
-                                    RetrofitError retrofitError = (RetrofitError)e;
+            @Override
+            public void onMatrixError(MatrixError e) {
+                Log.e(LOG_TAG, "registerToThirdPartyServer onMatrixError " + session.getMyUserId() + " " + e.errcode);
+                callback.onMatrixError(e);
+            }
 
-                                    // an HTTP error 500 issue has been reported several times
-                                    // it seems that the server is either rebooting
-                                    // or the GCM key seems triggering error on server side.
-                                    if ((null != retrofitError.getResponse()) && (500 == retrofitError.getResponse().getStatus())) {
-                                        manage500Error();
-                                    }
-                                }
-                            }
-                        });
+            @Override
+            public void onUnexpectedError(Exception e) {
+                Log.e(LOG_TAG, "registerToThirdPartyServer onUnexpectedError " + session.getMyUserId() + " " + e.getLocalizedMessage());
+                callback.onUnexpectedError(e);
+            }
+        });
     }
 
     /**
@@ -571,49 +765,64 @@ public final class GcmRegistrationManager {
      */
     public void refreshPushersList(List<MXSession> sessions, final ApiCallback<Void> callback) {
         if ((null != sessions) && (sessions.size() > 0)) {
-            sessions.get(0).getPushersRestClient().getPushers(new ApiCallback<PushersResponse>() {
+            final MXSession session = sessions.get(0);
+
+            // the pushers list is only displayed in the settings
+            int priority = (null == callback) ? VectorRequestScheduler.PRIORITY_BACKGROUND : VectorRequestScheduler.PRIORITY_INTERACTIVE;
 
+            VectorRequestScheduler.getInstance().schedule(priority, new VectorRequestScheduler.IScheduledRequest() {
                 @Override
-                public void onSuccess(PushersResponse pushersResponse) {
-                    if (null == pushersResponse.pushers) {
-                        mPushersList = new ArrayList<>();
-                    } else {
-                        mPushersList = new ArrayList<>(pushersResponse.pushers);
+                public void send(Runnable onDone) {
+                    session.getPushersRestClient().getPushers(VectorRequestScheduler.releaseOnDone(onDone, new ApiCallback<PushersResponse>() {
+
+                        @Override
+                        public void onSuccess(PushersResponse pushersResponse) {
+                            Pusher selfPusher = null;
+
+                            if (null == pushersResponse.pushers) {
+                                mPushersList = new ArrayList<>();
+                            } else {
+                                mPushersList = new ArrayList<>(pushersResponse.pushers);
 
-                        // move the self pusher to the top of the list
-                        Pusher selfPusher = null;
+                                // move the self pusher to the top of the list
+                                for(Pusher pusher : mPushersList) {
+                                    if (TextUtils.equals(pusher.pushkey, getGCMRegistrationToken())) {
+                                        selfPusher = pusher;
+                                        break;
+                                    }
+                                }
 
-                        for(Pusher pusher : mPushersList) {
-                            if (TextUtils.equals(pusher.pushkey, getGCMRegistrationToken())) {
-                                selfPusher = pusher;
-                                break;
+                                if (null != selfPusher) {
+                                    mPushersList.remove(selfPusher);
+                                    mPushersList.add(0, selfPusher);
+                                }
                             }
-                        }
 
-                        if (null != selfPusher) {
-                            mPushersList.remove(selfPusher);
-                            mPushersList.add(0, selfPusher);
-                        }
-                    }
+                            // the server has dropped the pusher of this device (e.g. logout from another client)
+                            if (null == selfPusher) {
+                                setPusherState(session, null);
+                            }
 
-                    if (null != callback) {
-                        callback.onSuccess(null);
-                    }
-                }
+                            if (null != callback) {
+                                callback.onSuccess(null);
+                            }
+                        }
 
-                @Override
-                public void onNetworkError(Exception e) {
-                    Log.e(LOG_TAG, "refreshPushersList failed " + e.getLocalizedMessage());
-                }
+                        @Override
+                        public void onNetworkError(Exception e) {
+                            Log.e(LOG_TAG, "refreshPushersList failed " + e.getLocalizedMessage());
+                        }
 
-                @Override
-                public void onMatrixError(MatrixError e) {
-                    Log.e(LOG_TAG, "refreshPushersList failed " + e.getLocalizedMessage());
-                }
+                        @Override
+                        public void onMatrixError(MatrixError e) {
+                            Log.e(LOG_TAG, "refreshPushersList failed " + e.getLocalizedMessage());
+                        }
 
-                @Override
-                public void onUnexpectedError(Exception e) {
-                    Log.e(LOG_TAG, "refreshPushersList failed " + e.getLocalizedMessage());
+                        @Override
+                        public void onUnexpectedError(Exception e) {
+                            Log.e(LOG_TAG, "refreshPushersList failed " + e.getLocalizedMessage());
+                        }
+                    }));
                 }
             });
         }
@@ -622,6 +831,7 @@ public final class GcmRegistrationManager {
     /**
      * Force to register the sessions to the third party servers.
      * The GCM registration must have been done and there is no pending registration.
+     * The sessions whose pusher has not changed since their last registration are skipped.
      * @param listener the listener
      */
     public void forceSessionsRegistration(final ThirdPartyRegistrationListener listener) {
@@ -679,7 +889,7 @@ public final class GcmRegistrationManager {
             // check if the notifications must be displayed
             if (useGCM() && areDeviceNotificationsAllowed()) {
                 mRegistrationState = RegistrationState.SERVER_REGISTRATING;
-                registerToThirdPartyServer(new ArrayList<>(Matrix.getInstance(mContext).getSessions()), 0);
+                registerSessions(new ArrayList<>(Matrix.getInstance(mContext).getSessions()));
             } else {
                 dispatchOnThirdPartyRegistrationFailed();
             }
@@ -687,56 +897,104 @@ public final class GcmRegistrationManager {
     }
 
     /**
-     * Recursive method to register a MXSessions list.
+     * Register a MXSessions list.
+     * The sessions are registered in parallel and the unchanged registrations are skipped.
      * @param sessions the sessions list.
-     * @param index the index of the MX sessions to register.
      */
-    private void registerToThirdPartyServer(final ArrayList<MXSession> sessions, final int index) {
-        // reach this end of the list ?
-        if (index >= sessions.size()) {
-            Log.d(LOG_TAG, "registerSessions : all the sessions are registered");
-            mRegistrationState = RegistrationState.SERVER_REGISTERED;
-            dispatchOnThirdPartyRegistered();
-
-            // get the pushers list
-            refreshPushersList(sessions, null);
-
-            // the notifications have been disabled while registering them
-            if (useGCM() && !areDeviceNotificationsAllowed()) {
-                // remove them
-                unregister(null);
+    private void registerSessions(final ArrayList<MXSession> sessions) {
+        // the sessions to register, by home server
+        Map<String, List<MXSession>> sessionsByHomeServer = new LinkedHashMap<>();
+        // the home servers with unchanged registrations
+        Set<String> registeredHomeServers = new HashSet<>();
+        int count = 0;
+
+        for (MXSession session : sessions) {
+            String homeServer = session.getHomeserverConfig().getHomeserverUri().toString();
+
+            if (isPusherRegistered(session)) {
+                Log.d(LOG_TAG, "registerSessions : session " + session.getMyUserId() + " is already registred");
+                registeredHomeServers.add(homeServer);
             } else {
-                CommonActivityUtils.onGcmUpdate(mContext);
+                if (!sessionsByHomeServer.containsKey(homeServer)) {
+                    sessionsByHomeServer.put(homeServer, new ArrayList<MXSession>());
+                }
+
+                sessionsByHomeServer.get(homeServer).add(session);
+                count++;
             }
+        }
 
+        if (0 == count) {
+            onSessionsRegistered(sessions, 0, false);
             return;
         }
 
-        final MXSession session = sessions.get(index);
-
-        registerToThirdPartyServer(session, (index > 0), new ThirdPartyRegistrationListener() {
+        final PusherRequestsAggregator aggregator = new PusherRequestsAggregator(count) {
             @Override
-            public void onThirdPartyRegistered() {
-                Log.d(LOG_TAG, "registerSessions : session " + session.getMyUserId() + " is registred");
-                registerToThirdPartyServer(sessions, index + 1);
+            void onComplete(int failuresCount, boolean has500Error) {
+                onSessionsRegistered(sessions, failuresCount, has500Error);
             }
+        };
 
-            @Override
-            public void onThirdPartyRegistrationFailed() {
-                Log.d(LOG_TAG, "registerSessions : onSessionRegistrationFailed " + session.getMyUserId());
+        for (Map.Entry<String, List<MXSession>> entry : sessionsByHomeServer.entrySet()) {
+            final List<MXSession> homeServerSessions = entry.getValue();
 
-                mRegistrationState = RegistrationState.GCM_REGISTRED;
-                dispatchOnThirdPartyRegistrationFailed();
+            if (registeredHomeServers.contains(entry.getKey())) {
+                // do not remove the unchanged pushers of this home server
+                for (MXSession session : homeServerSessions) {
+                    registerToThirdPartyServer(session, true, aggregator.getCallback(null));
+                }
+            } else {
+                // the first registration removes the pushers of the other users with the same push key
+                // so the other sessions of this home server are registered when it is done.
+                registerToThirdPartyServer(homeServerSessions.get(0), false, aggregator.getCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 1; i < homeServerSessions.size(); i++) {
+                            registerToThirdPartyServer(homeServerSessions.get(i), true, aggregator.getCallback(null));
+                        }
+                    }
+                }));
             }
+        }
+    }
 
-            @Override
-            public void onThirdPartyUnregistered() {
-            }
+    /**
+     * The sessions registrations are done.
+     * @param sessions the sessions list.
+     * @param failuresCount the failed registrations count
+     * @param has500Error true if a registration failed with an HTTP 500 error
+     */
+    private void onSessionsRegistered(final ArrayList<MXSession> sessions, int failuresCount, boolean has500Error) {
+        if (0 != failuresCount) {
+            Log.d(LOG_TAG, "registerSessions : " + failuresCount + " sessions registrations failed");
 
-            @Override
-            public void onThirdPartyUnregistrationFailed() {
+            // fallback to the GCM_REGISTRED state
+            // thus, the client will try again to register with checkRegistrations.
+            mRegistrationState = RegistrationState.GCM_REGISTRED;
+            dispatchOnThirdPartyRegistrationFailed();
+
+            if (has500Error) {
+                manage500Error();
             }
-        });
+
+            return;
+        }
+
+        Log.d(LOG_TAG, "registerSessions : all the sessions are registered");
+        mRegistrationState = RegistrationState.SERVER_REGISTERED;
+        dispatchOnThirdPartyRegistered();
+
+        // get the pushers list
+        refreshPushersList(sessions, null);
+
+        // the notifications have been disabled while registering them
+        if (useGCM() && !areDeviceNotificationsAllowed()) {
+            // remove them
+            unregister(null);
+        } else {
+            CommonActivityUtils.onGcmUpdate(mContext);
+        }
     }
 
     /**
@@ -755,53 +1013,55 @@ public final class GcmRegistrationManager {
             dispatchOnThirdPartyUnregistrationFailed();
         } else {
             mRegistrationState = RegistrationState.SERVER_UNREGISTRATING;
-            unregister(new ArrayList<>(Matrix.getInstance(mContext).getSessions()), 0);
+            unregisterSessions(new ArrayList<>(Matrix.getInstance(mContext).getSessions()));
         }
     }
 
     /**
-     * Recursive method to unregister a MXSessions list.
+     * Unregister a MXSessions list.
+     * The sessions are unregistered in parallel.
      * @param sessions the sessions list.
-     * @param index the index of the MX sessions to register.
      */
-    private void unregister(final ArrayList<MXSession> sessions, final int index) {
-        // reach this end of the list ?
-        if (index >= sessions.size()) {
-            mRegistrationState = RegistrationState.GCM_REGISTRED;
-
-            // trigger a registration if the user disabled thme while the unregistration was processing
-            if (useGCM() && areDeviceNotificationsAllowed() && Matrix.hasValidSessions() ) {
-                register(null);
-            } else {
-                CommonActivityUtils.onGcmUpdate(mContext);
-            }
-
-            dispatchOnThirdPartyUnregistered();
+    private void unregisterSessions(final ArrayList<MXSession> sessions) {
+        if (sessions.isEmpty()) {
+            onSessionsUnregistered(0);
             return;
         }
 
-        MXSession session = sessions.get(index);
-
-        unregister(session , new ThirdPartyRegistrationListener() {
+        PusherRequestsAggregator aggregator = new PusherRequestsAggregator(sessions.size()) {
             @Override
-            public void onThirdPartyRegistered() {
+            void onComplete(int failuresCount, boolean has500Error) {
+                onSessionsUnregistered(failuresCount);
             }
+        };
 
-            @Override
-            public void onThirdPartyRegistrationFailed() {
-            }
+        for (MXSession session : sessions) {
+            removePusher(session, aggregator.getCallback(null));
+        }
+    }
 
-            @Override
-            public void onThirdPartyUnregistered() {
-                unregister(sessions, index+1);
-            }
+    /**
+     * The sessions unregistrations are done.
+     * @param failuresCount the failed unregistrations count
+     */
+    private void onSessionsUnregistered(int failuresCount) {
+        if (0 != failuresCount) {
+            Log.d(LOG_TAG, "unregisterSessions : " + failuresCount + " sessions unregistrations failed");
+            mRegistrationState = RegistrationState.SERVER_REGISTERED;
+            dispatchOnThirdPartyUnregistrationFailed();
+            return;
+        }
 
-            @Override
-            public void onThirdPartyUnregistrationFailed() {
-                mRegistrationState = RegistrationState.SERVER_REGISTERED;
-                dispatchOnThirdPartyUnregistrationFailed();
-            }
-        });
+        mRegistrationState = RegistrationState.GCM_REGISTRED;
+
+        // trigger a registration if the user disabled thme while the unregistration was processing
+        if (useGCM() && areDeviceNotificationsAllowed() && Matrix.hasValidSessions() ) {
+            register(null);
+        } else {
+            CommonActivityUtils.onGcmUpdate(mContext);
+        }
+
+        dispatchOnThirdPartyUnregistered();
     }
 
     /**
@@ -813,6 +1073,11 @@ public final class GcmRegistrationManager {
         session.getPushersRestClient().removeHttpPusher(pusher.pushkey, pusher.appId, pusher.profileTag, pusher.lang, pusher.appDisplayName, pusher.deviceDisplayName, pusher.data.get("url"), new ApiCallback<Void>() {
             @Override
             public void onSuccess(Void info) {
+                // the self pusher has been removed
+                if (TextUtils.equals(pusher.pushkey, mRegistrationToken) && TextUtils.equals(pusher.profileTag, computePushTag(session))) {
+                    setPusherState(session, null);
+                }
+
                 refreshPushersList(new ArrayList<>(Matrix.getInstance(mContext).getSessions()), callback);
             }
 
@@ -845,57 +1110,93 @@ public final class GcmRegistrationManager {
      * @param listener the listener
      */
     public void unregister(final MXSession session, final ThirdPartyRegistrationListener listener) {
-        Log.d(LOG_TAG, "unregister " + session.getMyUserId());
+        // the server drops the pushers of the device when the session is logged out,
+        // even if the removal request fails (offline, server error...)
+        setPusherState(session, null);
 
-        session.getPushersRestClient()
-                .removeHttpPusher(mRegistrationToken, DEFAULT_PUSHER_APP_ID, computePushTag(session),
-                        mPusherLang, mPusherAppName, mBasePusherDeviceName,
-                        DEFAULT_PUSHER_URL, new ApiCallback<Void>() {
-                            @Override
-                            public void onSuccess(Void info) {
-                                Log.d(LOG_TAG, "unregisterSession succeeded");
-
-                                if (null != listener) {
-                                    try {
-                                        listener.onThirdPartyUnregistered();
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "unregister : onThirdPartyUnregistered " + e.getLocalizedMessage());
-                                    }
-                                }
-                            }
+        removePusher(session, new ApiCallback<Void>() {
+            @Override
+            public void onSuccess(Void info) {
+                if (null != listener) {
+                    try {
+                        listener.onThirdPartyUnregistered();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "unregister : onThirdPartyUnregistered " + e.getLocalizedMessage());
+                    }
+                }
+            }
 
-                            private void onError(final String message) {
-                                if (session.isAlive()) {
-                                    Log.e(LOG_TAG, "fail to unregister " + session.getMyUserId() + " (" + message + ")");
+            private void onError() {
+                if (session.isAlive() && (null != listener)) {
+                    try {
+                        listener.onThirdPartyUnregistrationFailed();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "unregister : onThirdPartyUnregistrationFailed " + e.getLocalizedMessage());
+                    }
+                }
+            }
 
-                                    if (null != listener) {
-                                        try {
-                                            listener.onThirdPartyUnregistrationFailed();
-                                        } catch (Exception e) {
-                                            Log.e(LOG_TAG, "unregister : onThirdPartyUnregistrationFailed " + e.getLocalizedMessage());
-                                        }
-                                    }
-                                }
-                            }
+            @Override
+            public void onNetworkError(Exception e) {
+                onError();
+            }
 
-                            @Override
-                            public void onNetworkError(Exception e) {
-                                Log.e(LOG_TAG, "unregisterSession onNetworkError " + e.getMessage());
-                                onError(e.getLocalizedMessage());
-                            }
+            @Override
+            public void onMatrixError(MatrixError e) {
+                onError();
+            }
 
-                            @Override
-                            public void onMatrixError(MatrixError e) {
-                                Log.e(LOG_TAG, "unregisterSession onMatrixError " + e.errcode);
-                                onError(e.getLocalizedMessage());
-                            }
+            @Override
+            public void onUnexpectedError(Exception e) {
+                onError();
+            }
+        });
+    }
 
-                            @Override
-                            public void onUnexpectedError(Exception e) {
-                                Log.e(LOG_TAG, "unregisterSession onUnexpectedError " + e.getMessage());
-                                onError(e.getLocalizedMessage());
-                            }
-                        });
+    /**
+     * Remove the pusher of a session from the 3rd-party app server
+     * @param session the session.
+     * @param callback the asynchronous callback
+     */
+    private void removePusher(final MXSession session, final ApiCallback<Void> callback) {
+        Log.d(LOG_TAG, "unregister " + session.getMyUserId());
+
+        final String registrationToken = mRegistrationToken;
+
+        sendPusherRequest(session, "unregisterSession", new IPusherRequest() {
+            @Override
+            public void send(ApiCallback<Void> requestCallback) {
+                session.getPushersRestClient()
+                        .removeHttpPusher(registrationToken, DEFAULT_PUSHER_APP_ID, computePushTag(session),
+                                mPusherLang, mPusherAppName, mBasePusherDeviceName,
+                                DEFAULT_PUSHER_URL, requestCallback);
+            }
+        }, 0, new ApiCallback<Void>() {
+            @Override
+            public void onSuccess(Void info) {
+                Log.d(LOG_TAG, "unregisterSession succeeded");
+                setPusherState(session, null);
+                callback.onSuccess(null);
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                Log.e(LOG_TAG, "unregisterSession onNetworkError " + session.getMyUserId() + " " + e.getMessage());
+                callback.onNetworkError(e);
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                Log.e(LOG_TAG, "unregisterSession onMatrixError " + session.getMyUserId() + " " + e.errcode);
+                callback.onMatrixError(e);
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                Log.e(LOG_TAG, "unregisterSession onUnexpectedError " + session.getMyUserId() + " " + e.getMessage());
+                callback.onUnexpectedError(e);
+            }
+        });
     }
 
     //================================================================================
@@ -1148,6 +1449,7 @@ public final class GcmRegistrationManager {
                 setStoredRegistrationToken(null);
                 mRegistrationToken = null;
                 mRegistrationState = RegistrationState.UNREGISTRATED;
+                clearPusherStates();
 
                 if (clearRegistrationToken) {
                     GCMHelper.clearRegistrationToken();
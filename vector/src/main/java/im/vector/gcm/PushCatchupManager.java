@@ -0,0 +1,497 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.gcm;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.EventContext;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import im.vector.Matrix;
+import im.vector.VectorApp;
+import im.vector.activity.CommonActivityUtils;
+import im.vector.services.EventStreamService;
+
+/**
+ * Manage the catch-up triggered by a push.
+ * The pushed event is notified from the push payload, or from its event context when the payload has no content,
+ * instead of triggering a full catch-up of every session.
+ * The full catch-up is deferred until the batching window is closed (or done by the event stream if the application is resumed).
+ *
+ * The pushes are buffered for a short time : they are deduplicated by event id and grouped by room,
+ * so a burst of pushes triggers one decryption pass and one context request per room,
+ * and one notification refresh.
+ *
+ * The device is kept awake during the ingest window and the context requests,
+ * and the deferred full catch-up is triggered by an alarm, as the device may sleep once the push has been handled.
+ */
+public class PushCatchupManager {
+    private static final String LOG_TAG = "PushCatchupManager";
+
+    // the delay before the full catch-up once a push has been received
+    private static final long FULL_CATCHUP_DELAY_MS = 60 * 1000;
+
+    // the pushes ingest window
+    private static final long INGEST_WINDOW_MS = 500;
+
+    // the number of remembered pushed event ids to ignore the duplicated pushes
+    private static final int MAX_RECENT_EVENT_IDS = 200;
+
+    // the max time to keep the device awake for the ingest window and the context requests
+    private static final long WAKE_LOCK_TIMEOUT_MS = 30 * 1000;
+
+    // the time to keep the device awake to start the full catch-up triggered by the alarm
+    private static final long CATCHUP_WAKE_LOCK_TIMEOUT_MS = 10 * 1000;
+
+    private static final String ACTION_FULL_CATCHUP = "im.vector.gcm.PushCatchupManager.ACTION_FULL_CATCHUP";
+
+    /**
+     * A buffered push.
+     */
+    private static class PendingPush {
+        final String mRoomId;
+        final String mEventId;
+        final Event mEvent;
+
+        // true if the event can be retrieved from the server
+        final boolean mIsCatchupAllowed;
+
+        PendingPush(String roomId, String eventId, Event event, boolean isCatchupAllowed) {
+            mRoomId = roomId;
+            mEventId = eventId;
+            mEvent = event;
+            mIsCatchupAllowed = isCatchupAllowed;
+        }
+    }
+
+    private static PushCatchupManager mInstance = null;
+
+    private final Handler mUIHandler = new Handler(Looper.getMainLooper());
+
+    // true when a full catch-up is scheduled
+    private boolean mIsFullCatchupScheduled = false;
+
+    // the number of pushes handled by a targeted catch-up in the current window
+    private int mTargetedCatchupsCount = 0;
+
+    // the buffered pushes by event id
+    private final LinkedHashMap<String, PendingPush> mPendingPushes = new LinkedHashMap<>();
+
+    // the latest pushed event ids
+    private final LinkedHashMap<String, Boolean> mRecentEventIds = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RECENT_EVENT_IDS;
+        }
+    };
+
+    // the pending context requests count
+    private int mPendingRequestsCount = 0;
+
+    private Context mContext;
+
+    // keep the device awake during the ingest window and the context requests
+    private PowerManager.WakeLock mWakeLock;
+
+    // the full catch-up alarm
+    private PendingIntent mFullCatchupIntent;
+
+    private final BroadcastReceiver mFullCatchupReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // the receiver is registered on the main thread
+            Log.d(LOG_TAG, "## fullCatchup() : the window is closed after " + mTargetedCatchupsCount + " targeted catchups");
+            fullCatchup(mContext);
+
+            // the device is only awake while the alarm is received
+            acquireWakeLock(CATCHUP_WAKE_LOCK_TIMEOUT_MS);
+        }
+    };
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @return the instance
+     */
+    public static PushCatchupManager getInstance() {
+        if (null == mInstance) {
+            mInstance = new PushCatchupManager();
+        }
+
+        return mInstance;
+    }
+
+    /**
+     * A push has been received.
+     * It must be called from the UI thread.
+     * @param context the context
+     * @param roomId the pushed room id
+     * @param eventId the pushed event id
+     * @param pushedEvent the event built from the push payload, null if there is no content
+     * @param isCatchupAllowed false when the background sync is disabled : only the push payload is notified
+     */
+    public void onPush(Context context, String roomId, String eventId, Event pushedEvent, boolean isCatchupAllowed) {
+        mContext = context.getApplicationContext();
+
+        EventStreamService eventStreamService = EventStreamService.getInstance();
+        // TODO the session id should be provided by the server
+        MXSession session = Matrix.getInstance(mContext).getDefaultSession();
+
+        if ((null == eventStreamService) || (null == session) || !session.isAlive() || TextUtils.isEmpty(roomId) || TextUtils.isEmpty(eventId)) {
+            if (isCatchupAllowed) {
+                fullCatchup(mContext);
+            } else {
+                Log.d(LOG_TAG, "## onPush() : cannot notify the push");
+            }
+            return;
+        }
+
+        if (isCatchupAllowed && !VectorApp.isAppInBackground()) {
+            fullCatchup(mContext);
+            return;
+        }
+
+        // the same event can be pushed several times
+        if (mRecentEventIds.containsKey(eventId)) {
+            Log.d(LOG_TAG, "## onPush() : " + eventId + " has already been pushed");
+            return;
+        }
+
+        mRecentEventIds.put(eventId, true);
+
+        // the event has already been received by the event stream
+        if (null != session.getDataHandler().getStore().getEvent(eventId, roomId)) {
+            Log.d(LOG_TAG, "## onPush() : " + eventId + " is already known");
+            return;
+        }
+
+        if (isCatchupAllowed) {
+            scheduleFullCatchup();
+        }
+
+        if (mPendingPushes.isEmpty()) {
+            acquireWakeLock(WAKE_LOCK_TIMEOUT_MS);
+            mUIHandler.postDelayed(mFlushRunnable, INGEST_WINDOW_MS);
+        }
+
+        mPendingPushes.put(eventId, new PendingPush(roomId, eventId, ((null != pushedEvent) && (null != pushedEvent.getContent())) ? pushedEvent : null, isCatchupAllowed));
+    }
+
+    /**
+     * Notify the buffered pushes, room by room.
+     */
+    private void flush() {
+        EventStreamService eventStreamService = EventStreamService.getInstance();
+        MXSession session = Matrix.getInstance(mContext).getDefaultSession();
+
+        Map<String, List<PendingPush>> pushesByRoomId = new LinkedHashMap<>();
+
+        for (PendingPush pendingPush : mPendingPushes.values()) {
+            List<PendingPush> roomPushes = pushesByRoomId.get(pendingPush.mRoomId);
+
+            if (null == roomPushes) {
+                roomPushes = new ArrayList<>();
+                pushesByRoomId.put(pendingPush.mRoomId, roomPushes);
+            }
+
+            roomPushes.add(pendingPush);
+        }
+
+        Log.d(LOG_TAG, "## flush() : " + mPendingPushes.size() + " pushes in " + pushesByRoomId.size() + " rooms");
+        mPendingPushes.clear();
+
+        if ((null == eventStreamService) || (null == session) || !session.isAlive()) {
+            Log.e(LOG_TAG, "## flush() : the session or the event stream service is not anymore valid");
+            releaseWakeLockIfIdle();
+            return;
+        }
+
+        List<Event> events = new ArrayList<>();
+
+        for (String roomId : pushesByRoomId.keySet()) {
+            List<PendingPush> roomPushes = pushesByRoomId.get(roomId);
+            List<String> missingEventIds = new ArrayList<>();
+            boolean isCatchupAllowed = false;
+
+            for (PendingPush pendingPush : roomPushes) {
+                if (null != pendingPush.mEvent) {
+                    events.add(pendingPush.mEvent);
+                } else if (pendingPush.mIsCatchupAllowed) {
+                    missingEventIds.add(pendingPush.mEventId);
+                    isCatchupAllowed = true;
+                }
+            }
+
+            if (isCatchupAllowed) {
+                retrieveEvents(session, roomId, missingEventIds);
+            }
+        }
+
+        notifyEvents(session, events);
+        releaseWakeLockIfIdle();
+    }
+
+    /**
+     * Retrieve some events of a room with one request.
+     * The context of the latest event is requested with enough events before it to include the other ones.
+     * @param session the session
+     * @param roomId the room id
+     * @param eventIds the event ids, in the pushes order
+     */
+    private void retrieveEvents(final MXSession session, final String roomId, final List<String> eventIds) {
+        final String lastEventId = eventIds.get(eventIds.size() - 1);
+
+        Log.d(LOG_TAG, "## retrieveEvents() : retrieve " + eventIds.size() + " events in " + roomId);
+
+        mPendingRequestsCount++;
+
+        // the limit is shared between the events before and after
+        session.getRoomsApiClient().getContextOfEvent(roomId, lastEventId, 2 * (eventIds.size() - 1), new ApiCallback<EventContext>() {
+            @Override
+            public void onSuccess(EventContext eventContext) {
+                onRequestDone();
+
+                if ((null == eventContext) || (null == eventContext.event)) {
+                    onError("no event");
+                    return;
+                }
+
+                HashMap<String, Event> eventsById = new HashMap<>();
+                eventsById.put(eventContext.event.eventId, eventContext.event);
+
+                if (null != eventContext.eventsBefore) {
+                    for (Event event : eventContext.eventsBefore) {
+                        eventsById.put(event.eventId, event);
+                    }
+                }
+
+                List<Event> events = new ArrayList<>();
+
+                for (String eventId : eventIds) {
+                    Event event = eventsById.get(eventId);
+
+                    // the missing events will be retrieved by the full catchup
+                    if (null != event) {
+                        if (null == event.roomId) {
+                            event.roomId = roomId;
+                        }
+
+                        events.add(event);
+                    }
+                }
+
+                notifyEvents(session, events);
+                releaseWakeLockIfIdle();
+            }
+
+            private void onRequestDone() {
+                mPendingRequestsCount = Math.max(0, mPendingRequestsCount - 1);
+            }
+
+            private void onError(String errorMessage) {
+                Log.e(LOG_TAG, "## retrieveEvents() : getContextOfEvent failed " + errorMessage);
+                fullCatchup(mContext);
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                onRequestDone();
+                onError(e.getMessage());
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                onRequestDone();
+                onError(e.getMessage());
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                onRequestDone();
+                onError(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Notify some events, grouped by room.
+     * The notification is refreshed once.
+     * @param session the session
+     * @param events the events
+     */
+    private void notifyEvents(MXSession session, List<Event> events) {
+        EventStreamService eventStreamService = EventStreamService.getInstance();
+
+        // the session might have been logged out
+        if (events.isEmpty() || !session.isAlive() || (null == eventStreamService)) {
+            return;
+        }
+
+        boolean isCryptoEnabled = session.isCryptoEnabled();
+        HashMap<String, RoomState> roomStateByRoomId = new HashMap<>();
+
+        for (Event event : events) {
+            // the calls must ring as soon as possible
+            if (TextUtils.equals(event.getType(), Event.EVENT_TYPE_CALL_INVITE)) {
+                Log.d(LOG_TAG, "## notifyEvents() : call invitation");
+                fullCatchup(mContext);
+                continue;
+            }
+
+            if (!roomStateByRoomId.containsKey(event.roomId)) {
+                Room room = session.getDataHandler().getRoom(event.roomId, false);
+                roomStateByRoomId.put(event.roomId, (null != room) ? room.getLiveState() : null);
+            }
+
+            if (isCryptoEnabled && TextUtils.equals(event.getType(), Event.EVENT_TYPE_MESSAGE_ENCRYPTED)) {
+                session.getCrypto().decryptEvent(event, null);
+            }
+
+            mTargetedCatchupsCount++;
+
+            eventStreamService.prepareNotification(event, roomStateByRoomId.get(event.roomId), session.getDataHandler().getBingRulesManager().fulfilledBingRule(event));
+        }
+
+        eventStreamService.refreshMessagesNotification();
+    }
+
+    /**
+     * Schedule a full catch-up at the end of the batching window.
+     */
+    private void scheduleFullCatchup() {
+        if (mIsFullCatchupScheduled) {
+            return;
+        }
+
+        mIsFullCatchupScheduled = true;
+
+        if (null == mFullCatchupIntent) {
+            Intent intent = new Intent(ACTION_FULL_CATCHUP);
+            intent.setPackage(mContext.getPackageName());
+            mFullCatchupIntent = PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+
+        mContext.registerReceiver(mFullCatchupReceiver, new IntentFilter(ACTION_FULL_CATCHUP));
+
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        long triggerTime = SystemClock.elapsedRealtime() + FULL_CATCHUP_DELAY_MS;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime, mFullCatchupIntent);
+        } else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime, mFullCatchupIntent);
+        }
+    }
+
+    /**
+     * Cancel the scheduled full catch-up.
+     */
+    private void cancelFullCatchup() {
+        if (!mIsFullCatchupScheduled) {
+            return;
+        }
+
+        mIsFullCatchupScheduled = false;
+
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(mFullCatchupIntent);
+
+        try {
+            mContext.unregisterReceiver(mFullCatchupReceiver);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## cancelFullCatchup() : unregisterReceiver failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keep the device awake.
+     * @param timeout the max time in ms
+     */
+    private void acquireWakeLock(long timeout) {
+        if (null == mWakeLock) {
+            PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        mWakeLock.acquire(timeout);
+    }
+
+    /**
+     * Let the device sleep when there is no buffered push and no pending context request.
+     */
+    private void releaseWakeLockIfIdle() {
+        if (mPendingPushes.isEmpty() && (0 == mPendingRequestsCount) && (null != mWakeLock) && mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    /**
+     * Trigger a full catch-up of the sessions.
+     * It is ignored when the application is in foreground, the event stream is running.
+     * The buffered pushes which can be retrieved by the catch-up are discarded.
+     * @param context the context
+     */
+    private void fullCatchup(Context context) {
+        cancelFullCatchup();
+        mTargetedCatchupsCount = 0;
+
+        Iterator<PendingPush> iterator = mPendingPushes.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().mIsCatchupAllowed) {
+                iterator.remove();
+            }
+        }
+
+        if (mPendingPushes.isEmpty()) {
+            mUIHandler.removeCallbacks(mFlushRunnable);
+            releaseWakeLockIfIdle();
+        }
+
+        CommonActivityUtils.catchupEventStream(context);
+    }
+}
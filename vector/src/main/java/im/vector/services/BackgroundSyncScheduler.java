@@ -0,0 +1,468 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.services;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import im.vector.util.VectorTracer;
+
+/**
+ * Adaptive background sync, used when the application is in background without GCM.
+ * The busy sessions keep their event stream running.
+ * The quiet sessions are paused and caught up in shared wake windows, with an interval
+ * which widens while they stay quiet. Nothing is throttled on charger and Wi-Fi.
+ * The wake windows are triggered by an alarm, so they also happen while the device sleeps or dozes,
+ * and the device is kept awake until the sessions have synced.
+ */
+class BackgroundSyncScheduler {
+    private static final String LOG_TAG = "BackgroundSyncScheduler";
+
+    // a session without live events for this delay is throttled
+    private static final long QUIET_DELAY_MS = 2 * 60 * 1000;
+
+    // the throttled sync interval bounds
+    private static final long MIN_SYNC_INTERVAL_MS = 30 * 1000;
+    private static final long MAX_SYNC_INTERVAL_MS = 10 * 60 * 1000;
+
+    // the max duration of a wake window
+    private static final long WAKE_WINDOW_TIMEOUT_MS = 60 * 1000;
+
+    // the delay between two checks of the sessions activity
+    private static final long CHECK_DELAY_MS = 30 * 1000;
+
+    // the wake window alarm action
+    private static final String ACTION_WAKE_WINDOW = "im.vector.services.BackgroundSyncScheduler.ACTION_WAKE_WINDOW";
+
+    /**
+     * The scheduling state of a session.
+     */
+    private class SessionState {
+        final MXSession mSession;
+
+        // true when the event stream is paused by the scheduler
+        boolean mIsThrottled = false;
+
+        // the current sync interval when it is throttled
+        long mSyncInterval = MIN_SYNC_INTERVAL_MS;
+
+        // the next sync time when it is throttled
+        long mNextSyncTime;
+
+        // the last live event time
+        long mLastActivityTime = System.currentTimeMillis();
+
+        // true when the session syncs in the current wake window
+        boolean mIsSyncing = false;
+
+        // the live events received while syncing
+        int mSyncEventsCount = 0;
+
+        final MXEventListener mEventsListener = new MXEventListener() {
+            @Override
+            public void onLiveEvent(Event event, RoomState roomState) {
+                mLastActivityTime = System.currentTimeMillis();
+                mSyncEventsCount++;
+            }
+
+            @Override
+            public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSessionSynced(SessionState.this);
+                    }
+                });
+            }
+        };
+
+        SessionState(MXSession session) {
+            mSession = session;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // the scheduled sessions
+    private final List<SessionState> mSessionStates = new ArrayList<>();
+
+    // the wake window in progress
+    private long mWakeWindowStartTime = 0;
+    private int mSyncingSessionsCount = 0;
+
+    private final Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkSessions();
+        }
+    };
+
+    // keep the device awake during a wake window
+    private PowerManager.WakeLock mWakeLock;
+
+    // the wake window alarm
+    private final PendingIntent mWakeWindowIntent;
+
+    private final BroadcastReceiver mWakeWindowReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // the receiver is registered on the main thread
+            openWakeWindow();
+        }
+    };
+
+    private final Runnable mWakeWindowTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.e(LOG_TAG, "## wakeWindowTimeout() : " + mSyncingSessionsCount + " sessions did not sync");
+
+            long now = System.currentTimeMillis();
+
+            for (SessionState sessionState : mSessionStates) {
+                if (sessionState.mIsSyncing) {
+                    sessionState.mIsSyncing = false;
+
+                    // e.g. no network : back off as if the session was quiet
+                    sessionState.mSyncInterval = Math.min(sessionState.mSyncInterval * 2, MAX_SYNC_INTERVAL_MS);
+                    sessionState.mNextSyncTime = now + sessionState.mSyncInterval;
+                }
+            }
+
+            closeWakeWindow();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param context the context
+     */
+    BackgroundSyncScheduler(Context context) {
+        mContext = context.getApplicationContext();
+
+        Intent intent = new Intent(ACTION_WAKE_WINDOW);
+        intent.setPackage(mContext.getPackageName());
+        mWakeWindowIntent = PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Start to schedule the sessions syncs.
+     * It can be called from any thread.
+     * @param sessions the sessions
+     */
+    void start(final List<MXSession> sessions) {
+        final List<MXSession> fSessions = new ArrayList<>(sessions);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSessionStates.isEmpty()) {
+                    Log.d(LOG_TAG, "## start() : already started");
+                    return;
+                }
+
+                Log.d(LOG_TAG, "## start() : " + fSessions.size() + " sessions");
+
+                mContext.registerReceiver(mWakeWindowReceiver, new IntentFilter(ACTION_WAKE_WINDOW));
+
+                for (MXSession session : fSessions) {
+                    if (session.isAlive()) {
+                        SessionState sessionState = new SessionState(session);
+                        session.getDataHandler().addListener(sessionState.mEventsListener);
+                        mSessionStates.add(sessionState);
+                    }
+                }
+
+                checkSessions();
+            }
+        });
+    }
+
+    /**
+     * Stop the scheduling.
+     * It can be called from any thread.
+     * @param resumeStreams true to resume the event streams which were paused by the scheduler
+     */
+    void stop(final boolean resumeStreams) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSessionStates.isEmpty()) {
+                    return;
+                }
+
+                Log.d(LOG_TAG, "## stop() : resumeStreams " + resumeStreams);
+
+                mHandler.removeCallbacks(mCheckRunnable);
+                mHandler.removeCallbacks(mWakeWindowTimeoutRunnable);
+                cancelWakeWindowAlarm();
+                releaseWakeLock();
+
+                try {
+                    mContext.unregisterReceiver(mWakeWindowReceiver);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## stop() : unregisterReceiver failed " + e.getMessage());
+                }
+
+                for (SessionState sessionState : mSessionStates) {
+                    if (sessionState.mSession.isAlive()) {
+                        sessionState.mSession.getDataHandler().removeListener(sessionState.mEventsListener);
+
+                        if (resumeStreams && sessionState.mIsThrottled) {
+                            sessionState.mSession.resumeEventStream();
+                        }
+                    }
+                }
+
+                mSessionStates.clear();
+                mWakeWindowStartTime = 0;
+                mSyncingSessionsCount = 0;
+            }
+        });
+    }
+
+    /**
+     * @return true if the device is charging and connected to a Wi-Fi network
+     */
+    private boolean isChargingOnWifi() {
+        Intent batteryIntent = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean isCharging = (null != batteryIntent) && (0 != batteryIntent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0));
+
+        if (!isCharging) {
+            return false;
+        }
+
+        ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = (null != connectivityManager) ? connectivityManager.getActiveNetworkInfo() : null;
+
+        return (null != networkInfo) && networkInfo.isConnected() && (ConnectivityManager.TYPE_WIFI == networkInfo.getType());
+    }
+
+    /**
+     * Throttle the quiet sessions, release the other ones and schedule the next wake window.
+     */
+    private void checkSessions() {
+        long now = System.currentTimeMillis();
+        boolean isChargingOnWifi = isChargingOnWifi();
+
+        for (SessionState sessionState : mSessionStates) {
+            if (!sessionState.mSession.isAlive() || sessionState.mIsSyncing) {
+                continue;
+            }
+
+            if (!sessionState.mIsThrottled && !isChargingOnWifi && ((now - sessionState.mLastActivityTime) > QUIET_DELAY_MS)) {
+                Log.d(LOG_TAG, "## checkSessions() : throttle " + sessionState.mSession.getMyUserId());
+
+                sessionState.mSession.pauseEventStream();
+                sessionState.mIsThrottled = true;
+                sessionState.mSyncInterval = MIN_SYNC_INTERVAL_MS;
+                sessionState.mNextSyncTime = now + sessionState.mSyncInterval;
+            } else if (sessionState.mIsThrottled && isChargingOnWifi) {
+                Log.d(LOG_TAG, "## checkSessions() : charging on Wi-Fi, release " + sessionState.mSession.getMyUserId());
+                release(sessionState);
+            }
+        }
+
+        scheduleWakeWindow();
+
+        mHandler.removeCallbacks(mCheckRunnable);
+        mHandler.postDelayed(mCheckRunnable, CHECK_DELAY_MS);
+    }
+
+    /**
+     * Resume the event stream of a throttled session.
+     * @param sessionState the session state
+     */
+    private void release(SessionState sessionState) {
+        sessionState.mIsThrottled = false;
+        sessionState.mLastActivityTime = System.currentTimeMillis();
+        sessionState.mSession.resumeEventStream();
+    }
+
+    /**
+     * Schedule the next wake window at the earliest sync time of the throttled sessions.
+     */
+    private void scheduleWakeWindow() {
+        // a window is in progress
+        if (0 != mWakeWindowStartTime) {
+            return;
+        }
+
+        long nextSyncTime = Long.MAX_VALUE;
+
+        for (SessionState sessionState : mSessionStates) {
+            if (sessionState.mIsThrottled) {
+                nextSyncTime = Math.min(nextSyncTime, sessionState.mNextSyncTime);
+            }
+        }
+
+        if (Long.MAX_VALUE == nextSyncTime) {
+            cancelWakeWindowAlarm();
+        } else {
+            setWakeWindowAlarm(Math.max(0, nextSyncTime - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Trigger the wake window after a delay, even if the device sleeps.
+     * @param delay the delay in ms
+     */
+    private void setWakeWindowAlarm(long delay) {
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        long triggerTime = SystemClock.elapsedRealtime() + delay;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime, mWakeWindowIntent);
+        } else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerTime, mWakeWindowIntent);
+        }
+    }
+
+    /**
+     * Cancel the wake window alarm.
+     */
+    private void cancelWakeWindowAlarm() {
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(mWakeWindowIntent);
+    }
+
+    /**
+     * Keep the device awake until the wake window is closed.
+     */
+    private void acquireWakeLock() {
+        if (null == mWakeLock) {
+            PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        // the window timeout releases it anyway
+        mWakeLock.acquire(WAKE_WINDOW_TIMEOUT_MS + CHECK_DELAY_MS);
+    }
+
+    /**
+     * Let the device sleep.
+     */
+    private void releaseWakeLock() {
+        if ((null != mWakeLock) && mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    /**
+     * Catch up the throttled sessions in the same window.
+     * A session joins the window when its sync is due within half of its interval,
+     * so that the sessions syncs are aligned and the radio wakes up once.
+     */
+    private void openWakeWindow() {
+        // stopped or a window is in progress
+        if (mSessionStates.isEmpty() || (0 != mWakeWindowStartTime)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (SessionState sessionState : mSessionStates) {
+            if (sessionState.mIsThrottled && sessionState.mSession.isAlive() && ((sessionState.mNextSyncTime - now) <= (sessionState.mSyncInterval / 2))) {
+                sessionState.mIsSyncing = true;
+                sessionState.mSyncEventsCount = 0;
+                mSyncingSessionsCount++;
+            }
+        }
+
+        if (0 == mSyncingSessionsCount) {
+            scheduleWakeWindow();
+            return;
+        }
+
+        Log.d(LOG_TAG, "## openWakeWindow() : " + mSyncingSessionsCount + " sessions");
+
+        mWakeWindowStartTime = now;
+        acquireWakeLock();
+        mHandler.postDelayed(mWakeWindowTimeoutRunnable, WAKE_WINDOW_TIMEOUT_MS);
+
+        for (SessionState sessionState : mSessionStates) {
+            if (sessionState.mIsSyncing) {
+                sessionState.mSession.catchupEventStream();
+            }
+        }
+    }
+
+    /**
+     * A session has processed a sync response.
+     * @param sessionState the session state
+     */
+    private void onSessionSynced(SessionState sessionState) {
+        if (!sessionState.mIsSyncing || !mSessionStates.contains(sessionState)) {
+            return;
+        }
+
+        sessionState.mIsSyncing = false;
+
+        if (sessionState.mSyncEventsCount > 0) {
+            // the session is active again, stream its events
+            Log.d(LOG_TAG, "## onSessionSynced() : " + sessionState.mSyncEventsCount + " events, release " + sessionState.mSession.getMyUserId());
+            release(sessionState);
+        } else {
+            sessionState.mSyncInterval = Math.min(sessionState.mSyncInterval * 2, MAX_SYNC_INTERVAL_MS);
+            sessionState.mNextSyncTime = System.currentTimeMillis() + sessionState.mSyncInterval;
+        }
+
+        if (0 == --mSyncingSessionsCount) {
+            closeWakeWindow();
+        }
+    }
+
+    /**
+     * All the sessions of the wake window have synced.
+     */
+    private void closeWakeWindow() {
+        long awakeDuration = System.currentTimeMillis() - mWakeWindowStartTime;
+
+        Log.d(LOG_TAG, "## closeWakeWindow() : the radio was awake for " + awakeDuration + " ms");
+        VectorTracer.recordSpan(VectorTracer.SPAN_BACKGROUND_SYNC, awakeDuration, null);
+        VectorTracer.incrementCounter(VectorTracer.COUNTER_BACKGROUND_SYNC_WINDOWS, 1);
+
+        mHandler.removeCallbacks(mWakeWindowTimeoutRunnable);
+        mWakeWindowStartTime = 0;
+        mSyncingSessionsCount = 0;
+
+        scheduleWakeWindow();
+        releaseWakeLock();
+    }
+}
@@ -72,6 +72,7 @@ import im.vector.activity.VectorHomeActivity;
 import im.vector.gcm.GcmRegistrationManager;
 import im.vector.util.NotificationUtils;
 import im.vector.util.VectorCallSoundManager;
+import im.vector.util.VectorTracer;
 
 /**
  * A foreground service in charge of controlling whether the event stream is running or not.
@@ -143,8 +144,17 @@ public class EventStreamService extends Service {
 
     /**
      * The current state.
+     * The transitions counts and the time spent in each state are traced.
      */
-    private StreamAction mServiceState = StreamAction.IDLE;
+    private final EventStreamStateMachine mServiceState = new EventStreamStateMachine(new EventStreamStateMachine.ITransitionListener() {
+        @Override
+        public void onTransition(StreamAction fromState, StreamAction toState, long duration) {
+            Log.d(LOG_TAG, "setState from " + fromState + " to " + toState + " after " + duration + " ms");
+
+            VectorTracer.recordSpan(VectorTracer.SPAN_STREAM_STATE_PREFIX + fromState, duration, "to " + toState);
+            VectorTracer.incrementCounter(VectorTracer.COUNTER_STREAM_TRANSITIONS_PREFIX + fromState + "_" + toState, 1);
+        }
+    });
 
     /**
      * store the notifications description
@@ -180,6 +190,11 @@ public class EventStreamService extends Service {
      */
     private boolean mSuspendWhenStarted = false;
 
+    /**
+     * Adaptive background sync when GCM is not used.
+     */
+    private BackgroundSyncScheduler mBackgroundSyncScheduler;
+
     /**
      * @return the event stream instance
      */
@@ -305,6 +320,9 @@ public class EventStreamService extends Service {
 
         @Override
         public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
+            // the pending catchup is done
+            mServiceState.onCatchupDone();
+
             getNotificationsHandler().post(new Runnable() {
                 @Override
                 public void run() {
@@ -314,7 +332,9 @@ public class EventStreamService extends Service {
             });
 
             // do not suspend the application if there is some active calls
-            if ((StreamAction.CATCHUP == mServiceState) || (StreamAction.PAUSE == mServiceState)) {
+            StreamAction state = mServiceState.getState();
+
+            if ((StreamAction.CATCHUP == state) || (StreamAction.PAUSE == state)) {
                 boolean hasActiveCalls = false;
 
                 for (MXSession session : mSessions) {
@@ -328,7 +348,7 @@ public class EventStreamService extends Service {
                 if (hasActiveCalls) {
                     Log.d(LOG_TAG, "onLiveEventsChunkProcessed : Catchup again because there are active calls");
                     catchup(false);
-                } else if (StreamAction.CATCHUP == mServiceState) {
+                } else if (StreamAction.CATCHUP == state) {
                     Log.d(LOG_TAG, "onLiveEventsChunkProcessed : no Active call");
 
                     // in some race conditions
@@ -400,17 +420,19 @@ public class EventStreamService extends Service {
 
             boolean restart = false;
 
-            if (StreamAction.AUTO_RESTART == mServiceState) {
+            StreamAction state = mServiceState.getState();
+
+            if (StreamAction.AUTO_RESTART == state) {
                 Log.e(LOG_TAG, "onStartCommand : auto restart in progress ignore current command");
                 return START_STICKY;
             } else if (null == intent) {
                 Log.e(LOG_TAG, "onStartCommand : null intent -> restart the service");
                 restart = true;
-            } else if  (StreamAction.IDLE == mServiceState) {
+            } else if  (StreamAction.IDLE == state) {
                 Log.e(LOG_TAG, "onStartCommand : automatically restart the service");
                 restart = true;
             } else {
-                Log.e(LOG_TAG, "onStartCommand : EXTRA_AUTO_RESTART_ACTION has been set but mServiceState = " + mServiceState);
+                Log.e(LOG_TAG, "onStartCommand : EXTRA_AUTO_RESTART_ACTION has been set but mServiceState = " + state);
             }
 
             if (restart) {
@@ -436,7 +458,7 @@ public class EventStreamService extends Service {
                 start();
 
                 // if the service successfully restarts
-                if (StreamAction.START == mServiceState) {
+                if (StreamAction.START == mServiceState.getState()) {
                     // update the state to a dedicated one
                     setServiceState(StreamAction.AUTO_RESTART);
                 }
@@ -542,19 +564,33 @@ public class EventStreamService extends Service {
      * @return the current state
      */
     private StreamAction getServiceState() {
-        Log.d(LOG_TAG, "getState " + mServiceState);
+        StreamAction state = mServiceState.getState();
+        Log.d(LOG_TAG, "getState " + state);
 
-        return mServiceState;
+        return state;
     }
 
     /**
      * Update the current thread state.
+     * The transitions which are not defined in the transitions table are rejected.
      *
      * @param newState the new state.
+     * @return true if the service is in the new state
      */
-    private void setServiceState(StreamAction newState) {
-        Log.d(LOG_TAG, "setState from " + mServiceState + " to " + newState);
-        mServiceState = newState;
+    private boolean setServiceState(StreamAction newState) {
+        StreamAction currentState = mServiceState.getState();
+
+        if (currentState == newState) {
+            // coalesce the duplicated requests
+            Log.d(LOG_TAG, "setState : already in " + newState);
+        }
+
+        if (!mServiceState.setState(newState)) {
+            Log.e(LOG_TAG, "setState : invalid transition from " + mServiceState.getState() + " to " + newState);
+            return false;
+        }
+
+        return true;
     }
 
     /**
@@ -567,6 +603,8 @@ public class EventStreamService extends Service {
         if (state == StreamAction.START) {
             Log.e(LOG_TAG, "start : Already started.");
 
+            stopBackgroundSyncScheduler(true);
+
             for (MXSession session : mSessions) {
                 session.refreshNetworkConnection();
             }
@@ -674,6 +712,8 @@ public class EventStreamService extends Service {
             stopForeground(true);
         }
 
+        stopBackgroundSyncScheduler(false);
+
         if (mSessions != null) {
             for (MXSession session : mSessions) {
                 if (session.isAlive()) {
@@ -699,6 +739,8 @@ public class EventStreamService extends Service {
         if ((StreamAction.START == state) || (StreamAction.RESUME == state)) {
             Log.d(LOG_TAG, "onStartCommand pause from state " + state);
 
+            stopBackgroundSyncScheduler(false);
+
             if (mSessions != null) {
                 for (MXSession session : mSessions) {
                     session.pauseEventStream();
@@ -735,6 +777,16 @@ public class EventStreamService extends Service {
         }
 
         if (canCatchup) {
+            if (!mServiceState.startCatchup()) {
+                if (mServiceState.isCatchupPending()) {
+                    Log.d(LOG_TAG, "catchup : coalesced with the pending one");
+                    VectorTracer.incrementCounter(VectorTracer.COUNTER_COALESCED_CATCHUPS, 1);
+                } else {
+                    Log.e(LOG_TAG, "catchup : invalid transition from " + mServiceState.getState());
+                }
+                return;
+            }
+
             if (mSessions != null) {
                 for (MXSession session : mSessions) {
                     session.catchupEventStream();
@@ -742,8 +794,6 @@ public class EventStreamService extends Service {
             } else {
                 Log.e(LOG_TAG, "catchup no session");
             }
-
-            setServiceState(StreamAction.CATCHUP);
         } else {
             Log.d(LOG_TAG, "No catchup is triggered because there is already a running event thread");
         }
@@ -755,6 +805,8 @@ public class EventStreamService extends Service {
     private void resume() {
         Log.d(LOG_TAG, "## resume : resume the service");
 
+        stopBackgroundSyncScheduler(false);
+
         if (mSessions != null) {
             for (MXSession session : mSessions) {
                 session.resumeEventStream();
@@ -764,6 +816,36 @@ public class EventStreamService extends Service {
         setServiceState(StreamAction.START);
     }
 
+    /**
+     * Start the adaptive background sync.
+     * It is used when the application is in background and GCM is not used.
+     * The quiet sessions are synced less often than the busy ones.
+     */
+    public void startBackgroundSyncScheduler() {
+        StreamAction state = getServiceState();
+
+        if (((StreamAction.START == state) || (StreamAction.RESUME == state)) && (null != mSessions)) {
+            if (null == mBackgroundSyncScheduler) {
+                mBackgroundSyncScheduler = new BackgroundSyncScheduler(getApplicationContext());
+            }
+
+            mBackgroundSyncScheduler.start(mSessions);
+        } else {
+            Log.d(LOG_TAG, "## startBackgroundSyncScheduler() : invalid state " + state);
+        }
+    }
+
+    /**
+     * Stop the adaptive background sync.
+     *
+     * @param resumeStreams true to resume the event streams paused by the scheduler
+     */
+    private void stopBackgroundSyncScheduler(boolean resumeStreams) {
+        if (null != mBackgroundSyncScheduler) {
+            mBackgroundSyncScheduler.stop(resumeStreams);
+        }
+    }
+
     /**
      * The GCM status has been updated (i.e disabled or enabled).
      */
@@ -1101,6 +1183,20 @@ public class EventStreamService extends Service {
      * Must always be called in getNotificationsHandler() thread.
      */
     public void refreshMessagesNotification() {
+        VectorTracer.Span span = VectorTracer.beginSpan(VectorTracer.SPAN_NOTIFICATION_REFRESH);
+        VectorTracer.incrementCounter(VectorTracer.COUNTER_NOTIFICATION_REFRESHES, 1);
+
+        try {
+            refreshMessagesNotificationInternal();
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Refresh the messages notification.
+     */
+    private void refreshMessagesNotificationInternal() {
         final NotificationManagerCompat nm = NotificationManagerCompat.from(EventStreamService.this);
 
         NotificationUtils.NotifiedEvent eventToNotify = getEventToNotify();
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.services;
+
+import android.os.SystemClock;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import im.vector.services.EventStreamService.StreamAction;
+
+/**
+ * The event stream service state.
+ * It is updated with compareAndSet because the actions are triggered from the intents, the GCM callbacks and the events listeners.
+ * The transitions which are not defined in the transitions table are rejected and the duplicated catchup requests are coalesced.
+ */
+class EventStreamStateMachine {
+    /**
+     * The transitions listener.
+     */
+    interface ITransitionListener {
+        /**
+         * A transition has been done.
+         * It is called on the thread which triggered it.
+         * @param fromState the previous state
+         * @param toState the new state
+         * @param duration the time spent in the previous state in ms
+         */
+        void onTransition(StreamAction fromState, StreamAction toState, long duration);
+    }
+
+    // a catchup request is coalesced with the pending one when it has been sent less than this delay ago
+    static final long CATCHUP_COALESCING_DELAY_MS = 30 * 1000;
+
+    // the allowed transitions from each state
+    private static final EnumMap<StreamAction, EnumSet<StreamAction>> mAllowedTransitions = new EnumMap<>(StreamAction.class);
+
+    static {
+        mAllowedTransitions.put(StreamAction.IDLE, EnumSet.of(StreamAction.START, StreamAction.CATCHUP, StreamAction.STOP));
+        mAllowedTransitions.put(StreamAction.STOP, EnumSet.of(StreamAction.START, StreamAction.CATCHUP));
+        mAllowedTransitions.put(StreamAction.START, EnumSet.of(StreamAction.PAUSE, StreamAction.CATCHUP, StreamAction.STOP, StreamAction.AUTO_RESTART));
+        mAllowedTransitions.put(StreamAction.AUTO_RESTART, EnumSet.of(StreamAction.START, StreamAction.CATCHUP, StreamAction.STOP));
+        mAllowedTransitions.put(StreamAction.PAUSE, EnumSet.of(StreamAction.START, StreamAction.CATCHUP, StreamAction.STOP));
+        mAllowedTransitions.put(StreamAction.CATCHUP, EnumSet.of(StreamAction.START, StreamAction.PAUSE, StreamAction.STOP));
+        // RESUME and GCM_STATUS_UPDATE are actions, not states
+        mAllowedTransitions.put(StreamAction.RESUME, EnumSet.noneOf(StreamAction.class));
+        mAllowedTransitions.put(StreamAction.GCM_STATUS_UPDATE, EnumSet.noneOf(StreamAction.class));
+    }
+
+    // the current state
+    private final AtomicReference<StreamAction> mState = new AtomicReference<>(StreamAction.IDLE);
+
+    // the time when the current state has been entered (elapsed realtime)
+    private final AtomicLong mStateStartTime = new AtomicLong(SystemClock.elapsedRealtime());
+
+    // the pending catchup request time (elapsed realtime), 0 when there is none
+    private final AtomicLong mPendingCatchupTime = new AtomicLong(0);
+
+    private final ITransitionListener mTransitionListener;
+
+    /**
+     * Constructor
+     * @param listener the transitions listener
+     */
+    EventStreamStateMachine(ITransitionListener listener) {
+        mTransitionListener = listener;
+    }
+
+    /**
+     * Tells if a transition is defined in the transitions table.
+     * @param fromState the current state
+     * @param toState the new state
+     * @return true if the transition is allowed
+     */
+    static boolean isAllowedTransition(StreamAction fromState, StreamAction toState) {
+        return mAllowedTransitions.get(fromState).contains(toState);
+    }
+
+    /**
+     * @return the current state
+     */
+    StreamAction getState() {
+        return mState.get();
+    }
+
+    /**
+     * Update the current state.
+     * The request is coalesced when the machine is already in this state.
+     * @param newState the new state.
+     * @return true if the machine is in the new state, false if the transition is not allowed
+     */
+    boolean setState(StreamAction newState) {
+        while (true) {
+            StreamAction currentState = mState.get();
+
+            if (currentState == newState) {
+                return true;
+            }
+
+            if (!isAllowedTransition(currentState, newState)) {
+                return false;
+            }
+
+            if (mState.compareAndSet(currentState, newState)) {
+                long now = SystemClock.elapsedRealtime();
+                long duration = now - mStateStartTime.getAndSet(now);
+
+                if (null != mTransitionListener) {
+                    mTransitionListener.onTransition(currentState, newState, duration);
+                }
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Enter the catchup state, unless a catchup is already pending.
+     * @return true if the caller must trigger the catchup, false if the request is coalesced or not allowed
+     */
+    boolean startCatchup() {
+        long now = SystemClock.elapsedRealtime();
+        long pendingCatchupTime = mPendingCatchupTime.get();
+
+        // a catchup is already in progress
+        if ((0 != pendingCatchupTime) && ((now - pendingCatchupTime) < CATCHUP_COALESCING_DELAY_MS)) {
+            return false;
+        }
+
+        // another thread has just triggered a catchup
+        if (!mPendingCatchupTime.compareAndSet(pendingCatchupTime, now)) {
+            return false;
+        }
+
+        if (!setState(StreamAction.CATCHUP)) {
+            mPendingCatchupTime.set(0);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if a catchup is pending
+     */
+    boolean isCatchupPending() {
+        return 0 != mPendingCatchupTime.get();
+    }
+
+    /**
+     * The pending catchup is done.
+     */
+    void onCatchupDone() {
+        mPendingCatchupTime.set(0);
+    }
+}
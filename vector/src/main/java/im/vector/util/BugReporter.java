@@ -17,17 +17,19 @@
 
 package im.vector.util;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 import android.app.Activity;
@@ -106,6 +108,10 @@ public class BugReporter {
     private static final String LOG_CAT_ERROR_FILENAME = "logcatError.log";
     private static final String LOG_CAT_FILENAME = "logcat.log";
     private static final String LOG_CAT_SCREENSHOT_FILENAME = "screenshot.png";
+    private static final String TRACES_FILENAME = "traces.log";
+
+    // the max number of logs compressed in parallel
+    private static final int MAX_PARALLEL_COMPRESSIONS = 3;
 
 
     // the http client
@@ -133,31 +139,77 @@ public class BugReporter {
             @Override
             protected String doInBackground(Void... voids) {
                 String serverError = null;
+                long startTime = System.currentTimeMillis();
+
+                // compress the logs in parallel
+                ExecutorService compressionExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_COMPRESSIONS);
+                List<Future<CompressedLog>> compressionFutures = new ArrayList<>();
+                List<CompressedLog> compressedLogs = new ArrayList<>();
+
+                try {
+                    if (withDevicesLogs) {
+                        List<File> files = org.matrix.androidsdk.util.Log.addLogFiles(new ArrayList<File>());
+
+                        for (final File f : files) {
+                            compressionFutures.add(compressionExecutor.submit(new Callable<CompressedLog>() {
+                                @Override
+                                public CompressedLog call() {
+                                    return mIsCancelled ? null : compressFile(f);
+                                }
+                            }));
+                        }
+                    }
+
+                    if (withDevicesLogs) {
+                        final File tracesFile = new File(context.getCacheDir(), TRACES_FILENAME);
+
+                        compressionFutures.add(compressionExecutor.submit(new Callable<CompressedLog>() {
+                            @Override
+                            public CompressedLog call() {
+                                CompressedLog compressedLog = null;
+
+                                if (!mIsCancelled && VectorTracer.dumpToFile(tracesFile)) {
+                                    compressedLog = compressFile(tracesFile);
+                                }
 
-                List<File> gzippedFiles = new ArrayList<>();
+                                tracesFile.delete();
+                                return compressedLog;
+                            }
+                        }));
+                    }
 
-                if (withDevicesLogs) {
-                    List<File> files = org.matrix.androidsdk.util.Log.addLogFiles(new ArrayList<File>());
+                    if (withCrashLogs || withDevicesLogs) {
+                        compressionFutures.add(compressionExecutor.submit(new Callable<CompressedLog>() {
+                            @Override
+                            public CompressedLog call() {
+                                return mIsCancelled ? null : compressLogCat(false);
+                            }
+                        }));
+                    }
 
-                    for (File f : files) {
-                        if (!mIsCancelled) {
-                            File gzippedFile = compressFile(f);
+                    for (Future<CompressedLog> future : compressionFutures) {
+                        try {
+                            CompressedLog compressedLog = future.get();
 
-                            if (null != gzippedFile) {
-                                gzippedFiles.add(gzippedFile);
+                            if (null != compressedLog) {
+                                compressedLogs.add(compressedLog);
                             }
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "## sendBugReport() : compression failed " + e.getMessage());
                         }
                     }
+                } finally {
+                    compressionExecutor.shutdownNow();
                 }
 
-                if (!mIsCancelled && (withCrashLogs || withDevicesLogs)) {
-                    File gzippedLogcat = saveLogCat(context, false);
+                long compressedSize = 0;
 
-                    if (null != gzippedLogcat) {
-                        gzippedFiles.add(gzippedLogcat);
-                    }
+                for (CompressedLog compressedLog : compressedLogs) {
+                    compressedSize += compressedLog.mData.length;
                 }
 
+                Log.d(LOG_TAG, "## sendBugReport() : " + compressedLogs.size() + " logs compressed to " + compressedSize + " bytes in " + (System.currentTimeMillis() - startTime) + " ms");
+
                 MXSession session = Matrix.getInstance(context).getDefaultSession();
 
                 String deviceId = null;
@@ -191,30 +243,24 @@ public class BugReporter {
                             .addFormDataPart("device", Build.MODEL.trim())
                             .addFormDataPart("os", Build.VERSION.INCREMENTAL + " " + Build.VERSION.RELEASE + " " + Build.VERSION.CODENAME);
 
-                    // add the gzipped files
-                    for (File file : gzippedFiles) {
-                        builder.addFormDataPart("compressed-log", file.getName(), RequestBody.create(MediaType.parse("application/octet-stream"), file));
+                    // add the gzipped logs
+                    for (CompressedLog compressedLog : compressedLogs) {
+                        builder.addFormDataPart("compressed-log", compressedLog.mName, RequestBody.create(MediaType.parse("application/octet-stream"), compressedLog.mData));
                     }
 
                     if (withScreenshot) {
                         Bitmap bitmap = takeScreenshot();
 
                         if (null != bitmap) {
-                            File logCatScreenshotFile = new File(context.getCacheDir().getAbsolutePath(), LOG_CAT_SCREENSHOT_FILENAME);
-
-                            if (logCatScreenshotFile.exists()) {
-                                logCatScreenshotFile.delete();
-                            }
-
                             try {
-                                FileOutputStream fos = new FileOutputStream(logCatScreenshotFile);
-                                bitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
-                                fos.flush();
-                                fos.close();
+                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                                bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
 
-                                builder.addFormDataPart("file", logCatScreenshotFile.getName(), RequestBody.create(MediaType.parse("application/octet-stream"), logCatScreenshotFile));
+                                builder.addFormDataPart("file", LOG_CAT_SCREENSHOT_FILENAME, RequestBody.create(MediaType.parse("application/octet-stream"), outputStream.toByteArray()));
                             } catch (Exception e) {
-                                Log.e(LOG_TAG, "## saveLogCat() : fail to write logcat" + e.toString());
+                                Log.e(LOG_TAG, "## sendBugReport() : fail to compress the screenshot " + e.toString());
+                            } catch (OutOfMemoryError oom) {
+                                Log.e(LOG_TAG, "## sendBugReport() : fail to compress the screenshot " + oom.getMessage());
                             }
                         }
                     }
@@ -577,37 +623,31 @@ public class BugReporter {
     //==============================================================================================================
 
     /**
-     * Save the logcat
+     * Compress the logcat.
+     * The logcat output is piped into the gzip stream.
      *
-     * @param context       the context
-     * @param isErrorLogcat true to save the error logcat
-     * @return the file if the operation succeeds
+     * @param isErrorLogcat true to compress the error logcat
+     * @return the compressed logcat, null if the operation fails
      */
-    private static File saveLogCat(Context context, boolean isErrorLogcat) {
-        File logCatErrFile = new File(context.getCacheDir().getAbsolutePath(), isErrorLogcat ? LOG_CAT_ERROR_FILENAME : LOG_CAT_FILENAME);
-
-        if (logCatErrFile.exists()) {
-            logCatErrFile.delete();
-        }
-
+    private static CompressedLog compressLogCat(boolean isErrorLogcat) {
         try {
-            FileOutputStream fos = new FileOutputStream(logCatErrFile);
-            OutputStreamWriter osw = new OutputStreamWriter(fos);
-            getLogCatError(osw, isErrorLogcat);
-            osw.close();
-
-            fos.flush();
-            fos.close();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            GZIPOutputStream gos = new GZIPOutputStream(outputStream, BUFFER_SIZE);
+            getLogCatError(gos, isErrorLogcat);
+            gos.close();
 
-            return compressFile(logCatErrFile);
+            Log.d(LOG_TAG, "## compressLogCat() : logcat compressed to " + outputStream.size() + " bytes");
+            return new CompressedLog((isErrorLogcat ? LOG_CAT_ERROR_FILENAME : LOG_CAT_FILENAME) + ".gz", outputStream.toByteArray());
         } catch (Exception e) {
-            Log.e(LOG_TAG, "## saveLogCat() : fail to write logcat" + e.toString());
+            Log.e(LOG_TAG, "## compressLogCat() : fail to write logcat" + e.toString());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## compressLogCat() : fail to write logcat" + oom.getMessage());
         }
 
         return null;
     }
 
-    private static final int BUFFER_SIZE = 1024 * 1024 * 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private static final String[] LOGCAT_CMD_ERROR = new String[]{
             "logcat", ///< Run 'logcat' command
@@ -727,10 +767,10 @@ public class BugReporter {
     /**
      * Retrieves the logs
      *
-     * @param streamWriter  the stream writer
+     * @param outputStream  the output stream
      * @param isErrorLogCat true to save the error logs
      */
-    private static void getLogCatError(OutputStreamWriter streamWriter, boolean isErrorLogCat) {
+    private static void getLogCatError(OutputStream outputStream, boolean isErrorLogCat) {
         Process logcatProc;
 
         try {
@@ -739,21 +779,20 @@ public class BugReporter {
             return;
         }
 
-        BufferedReader reader = null;
+        InputStream inputStream = null;
         try {
-            String separator = System.getProperty("line.separator");
-            reader = new BufferedReader(new InputStreamReader(logcatProc.getInputStream()), BUFFER_SIZE);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                streamWriter.append(line);
-                streamWriter.append(separator);
+            inputStream = logcatProc.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, len);
             }
         } catch (IOException e) {
             Log.e(LOG_TAG, "getLog fails with " + e.getLocalizedMessage());
         } finally {
-            if (reader != null) {
+            if (inputStream != null) {
                 try {
-                    reader.close();
+                    inputStream.close();
                 } catch (IOException e) {
                     Log.e(LOG_TAG, "getLog fails with " + e.getLocalizedMessage());
                 }
@@ -766,49 +805,55 @@ public class BugReporter {
     //==============================================================================================================
 
     /**
-     * GZip a file
+     * A compressed log
+     */
+    private static class CompressedLog {
+        // the part filename
+        final String mName;
+
+        // the gzipped content
+        final byte[] mData;
+
+        CompressedLog(String name, byte[] data) {
+            mName = name;
+            mData = data;
+        }
+    }
+
+    /**
+     * GZip a file in memory
      *
      * @param fin the input file
      * @return the gzipped file
      */
-    private static File compressFile(File fin) {
+    private static CompressedLog compressFile(File fin) {
         Log.d(LOG_TAG, "## compressFile() : compress " + fin.getName());
 
-        File dstFile = new File(fin.getParent(), fin.getName() + ".gz");
-
-        if (dstFile.exists()) {
-            dstFile.delete();
-        }
-
-        FileOutputStream fos = null;
         GZIPOutputStream gos = null;
         InputStream inputStream = null;
         try {
-            fos = new FileOutputStream(dstFile);
-            gos = new GZIPOutputStream(fos);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            gos = new GZIPOutputStream(outputStream, BUFFER_SIZE);
 
             inputStream = new FileInputStream(fin);
             int n;
 
-            byte[] buffer = new byte[2048];
+            byte[] buffer = new byte[BUFFER_SIZE];
             while ((n = inputStream.read(buffer)) != -1) {
                 gos.write(buffer, 0, n);
             }
 
             gos.close();
-            inputStream.close();
+            gos = null;
 
-            Log.d(LOG_TAG, "## compressFile() : " + fin.length() + " compressed to " + dstFile.length() + " bytes");
-            return dstFile;
+            Log.d(LOG_TAG, "## compressFile() : " + fin.length() + " compressed to " + outputStream.size() + " bytes");
+            return new CompressedLog(fin.getName() + ".gz", outputStream.toByteArray());
         } catch (Exception e) {
             Log.e(LOG_TAG, "## compressFile() failed " + e.getMessage());
         } catch (OutOfMemoryError oom) {
             Log.e(LOG_TAG, "## compressFile() failed " + oom.getMessage());
         } finally {
             try {
-                if (null != fos) {
-                    fos.close();
-                }
                 if (null != gos) {
                     gos.close();
                 }
@@ -34,7 +34,6 @@ import org.matrix.androidsdk.util.Log;
 import android.webkit.MimeTypeMap;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -424,29 +423,12 @@ public class SharedDataItem implements Parcelable {
         try {
             File file = new File(folder, filename);
 
-            // if the file exits, delete it
-            if (file.exists()) {
-                file.delete();
+            // the file is overwritten if it exists
+            if (VectorFileUtils.copy(stream, file) >= 0) {
+                fileUri = Uri.fromFile(file);
             }
 
-            FileOutputStream fos = new FileOutputStream(file.getPath());
-
-            try {
-                byte[] buf = new byte[1024 * 32];
-
-                int len;
-                while ((len = stream.read(buf)) != -1) {
-                    fos.write(buf, 0, len);
-                }
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "## saveFile failed " + e.getMessage());
-            }
-
-            fos.flush();
-            fos.close();
             stream.close();
-
-            fileUri = Uri.fromFile(file);
         } catch (Exception e) {
             Log.e(LOG_TAG, "## saveFile failed " + e.getMessage());
         }
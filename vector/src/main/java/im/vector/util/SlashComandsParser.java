@@ -249,9 +249,9 @@ public class SlashComandsParser {
 
                 if (messageParts.length >= 2) {
                     if (TextUtils.equals(messageParts[1], "on")) {
-                        VectorApp.getInstance().mMarkdownParser.setEnable(true);
+                        VectorApp.getInstance().getMarkdownParser().setEnable(true);
                     } else if (TextUtils.equals(messageParts[1], "off")) {
-                        VectorApp.getInstance().mMarkdownParser.setEnable(false);
+                        VectorApp.getInstance().getMarkdownParser().setEnable(false);
                     }
                 }
             }
@@ -30,6 +30,9 @@ public class SlidableMediaInfo implements Serializable {
     public String mMimeType;
     public EncryptedFileInfo mEncryptedFileInfo;
 
+    // the declared media size in bytes, -1 if it is unknown
+    public long mMediaSize = -1;
+
     // exif infos
     public int mRotationAngle = 0;
     public int mOrientation = 0;
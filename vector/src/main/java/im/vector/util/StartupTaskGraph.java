@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Run the application initializers according to their dependencies.
+ * A task starts when all its dependencies are done, the independent background tasks run in parallel.
+ * Each task is timed.
+ */
+public class StartupTaskGraph {
+    private static final String LOG_TAG = "StartupTaskGraph";
+
+    // the max number of background tasks which run at the same time
+    private static final int MAX_PARALLEL_TASKS = 2;
+
+    /**
+     * A startup task.
+     */
+    private static class Task {
+        final String mName;
+        final boolean mOnMainThread;
+        final Runnable mRunnable;
+        final String[] mDependencies;
+
+        // the tasks which wait for this one
+        final List<Task> mDependents = new ArrayList<>();
+
+        // the number of dependencies which are not done
+        int mPendingDependenciesCount;
+
+        Task(String name, boolean onMainThread, Runnable runnable, String[] dependencies) {
+            mName = name;
+            mOnMainThread = onMainThread;
+            mRunnable = runnable;
+            mDependencies = dependencies;
+        }
+    }
+
+    private final LinkedHashMap<String, Task> mTasks = new LinkedHashMap<>();
+
+    private final Handler mUIHandler = new Handler(Looper.getMainLooper());
+
+    private ExecutorService mExecutor;
+
+    // the number of tasks which are not done
+    private int mPendingTasksCount;
+
+    private long mStartTime;
+
+    /**
+     * Add a task.
+     * @param name the task name
+     * @param onMainThread true if the task must run on the main thread
+     * @param runnable the task
+     * @param dependencies the names of the tasks which must be done before this one
+     * @return this graph
+     */
+    public StartupTaskGraph addTask(String name, boolean onMainThread, Runnable runnable, String... dependencies) {
+        if (mTasks.containsKey(name)) {
+            throw new IllegalArgumentException("The task " + name + " is already defined");
+        }
+
+        mTasks.put(name, new Task(name, onMainThread, runnable, dependencies));
+        return this;
+    }
+
+    /**
+     * Start the tasks without dependencies.
+     * The other ones are started when their dependencies are done.
+     */
+    public void start() {
+        List<Task> readyTasks = new ArrayList<>();
+
+        synchronized (this) {
+            for (Task task : mTasks.values()) {
+                for (String dependency : task.mDependencies) {
+                    Task dependencyTask = mTasks.get(dependency);
+
+                    if (null == dependencyTask) {
+                        throw new IllegalArgumentException("The task " + task.mName + " depends on the unknown task " + dependency);
+                    }
+
+                    dependencyTask.mDependents.add(task);
+                }
+
+                task.mPendingDependenciesCount = task.mDependencies.length;
+
+                if (0 == task.mPendingDependenciesCount) {
+                    readyTasks.add(task);
+                }
+            }
+
+            if (readyTasks.isEmpty() && !mTasks.isEmpty()) {
+                throw new IllegalArgumentException("The startup tasks have a dependency cycle");
+            }
+
+            mPendingTasksCount = mTasks.size();
+            mStartTime = System.currentTimeMillis();
+
+            mExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_TASKS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "StartupTask");
+                }
+            });
+        }
+
+        for (Task task : readyTasks) {
+            dispatch(task);
+        }
+    }
+
+    /**
+     * Run a task on its thread.
+     * @param task the task
+     */
+    private void dispatch(final Task task) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                runTask(task);
+            }
+        };
+
+        if (task.mOnMainThread) {
+            mUIHandler.post(runnable);
+        } else {
+            mExecutor.execute(runnable);
+        }
+    }
+
+    /**
+     * Run a task and start the tasks which were waiting for it.
+     * @param task the task
+     */
+    private void runTask(Task task) {
+        long startTime = System.currentTimeMillis();
+
+        try {
+            task.mRunnable.run();
+        } catch (Exception e) {
+            // the dependent tasks are run anyway, as they were before
+            Log.e(LOG_TAG, "## runTask() : " + task.mName + " failed " + e.getMessage());
+        }
+
+        Log.d(LOG_TAG, "## runTask() : " + task.mName + " done in " + (System.currentTimeMillis() - startTime) + " ms (" + (task.mOnMainThread ? "main thread" : "background") + ")");
+
+        List<Task> readyTasks = new ArrayList<>();
+        boolean isComplete;
+
+        synchronized (this) {
+            for (Task dependent : task.mDependents) {
+                if (0 == --dependent.mPendingDependenciesCount) {
+                    readyTasks.add(dependent);
+                }
+            }
+
+            isComplete = (0 == --mPendingTasksCount);
+        }
+
+        for (Task readyTask : readyTasks) {
+            dispatch(readyTask);
+        }
+
+        if (isComplete) {
+            Log.d(LOG_TAG, "## runTask() : the startup tasks are done in " + (System.currentTimeMillis() - mStartTime) + " ms");
+            mExecutor.shutdown();
+        }
+    }
+}
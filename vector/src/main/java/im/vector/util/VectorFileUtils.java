@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.system.Os;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Files copy helpers.
+ * The copies are done in the kernel when it is possible (hard link, FileChannel.transferTo)
+ * and through a reused direct buffer otherwise, so that no heap buffer is allocated.
+ */
+public class VectorFileUtils {
+    private static final String LOG_TAG = "VectorFileUtils";
+
+    // the copy buffer size
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    // the copy buffers are reused by each thread
+    private static final ThreadLocal<ByteBuffer> mCopyBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Copy a file.
+     * A hard link is created when both files are on the same mount point,
+     * the content is copied by the kernel otherwise.
+     * The destination file is overwritten if it exists.
+     * @param srcFile the source file
+     * @param dstFile the destination file
+     * @return true if the file has been copied
+     */
+    public static boolean copyFile(File srcFile, File dstFile) {
+        if ((null == srcFile) || (null == dstFile) || !srcFile.exists()) {
+            return false;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        if (linkFile(srcFile, dstFile)) {
+            Log.d(LOG_TAG, "## copyFile() : " + dstFile.getName() + " linked in " + (System.currentTimeMillis() - startTime) + " ms");
+            return true;
+        }
+
+        FileInputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(srcFile);
+            return copy(inputStream, dstFile) >= 0;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## copyFile() : failed " + e.getMessage());
+        } finally {
+            if (null != inputStream) {
+                try {
+                    inputStream.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## copyFile() : close failed " + e.getMessage());
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Create a hard link to a file.
+     * It fails if the files are not on the same mount point or if the filesystem does not support it.
+     * @param srcFile the source file
+     * @param dstFile the destination file
+     * @return true if the link has been created
+     */
+    @SuppressLint("NewApi")
+    private static boolean linkFile(File srcFile, File dstFile) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        try {
+            if (dstFile.exists() && !dstFile.delete()) {
+                return false;
+            }
+
+            Os.link(srcFile.getAbsolutePath(), dstFile.getAbsolutePath());
+            return true;
+        } catch (Exception e) {
+            // cross devices link or unsupported filesystem
+            Log.d(LOG_TAG, "## linkFile() : cannot link " + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Copy a stream into a file.
+     * The stream is not closed.
+     * @param inputStream the stream to copy
+     * @param dstFile the destination file, it is overwritten if it exists.
+     * @return the number of copied bytes, -1 if the copy failed
+     */
+    public static long copy(InputStream inputStream, File dstFile) {
+        if ((null == inputStream) || (null == dstFile)) {
+            return -1;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long copiedBytes = -1;
+        FileOutputStream outputStream = null;
+
+        try {
+            outputStream = new FileOutputStream(dstFile);
+            FileChannel outChannel = outputStream.getChannel();
+
+            if (inputStream instanceof FileInputStream) {
+                copiedBytes = transfer(((FileInputStream) inputStream).getChannel(), outChannel);
+            }
+
+            // the stream is not a seekable file (pipe, socket, generic stream...)
+            if (copiedBytes < 0) {
+                copiedBytes = copyByBuffer((inputStream instanceof FileInputStream) ? ((FileInputStream) inputStream).getChannel() : Channels.newChannel(inputStream), outChannel);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## copy() : failed " + e.getMessage());
+            copiedBytes = -1;
+        } finally {
+            if (null != outputStream) {
+                try {
+                    outputStream.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## copy() : close failed " + e.getMessage());
+                }
+            }
+        }
+
+        if (copiedBytes >= 0) {
+            long duration = Math.max(1, System.currentTimeMillis() - startTime);
+            Log.d(LOG_TAG, "## copy() : " + copiedBytes + " bytes copied into " + dstFile.getName() + " in " + duration + " ms (" + (copiedBytes * 1000 / duration) + " bytes/s)");
+        }
+
+        return copiedBytes;
+    }
+
+    /**
+     * Copy a file channel with FileChannel.transferTo.
+     * The bytes which are not transferred are copied through the copy buffer.
+     * @param inChannel the source channel
+     * @param outChannel the destination channel
+     * @return the number of copied bytes, -1 if the source channel is not seekable
+     * @throws IOException the copy failed
+     */
+    private static long transfer(FileChannel inChannel, FileChannel outChannel) throws IOException {
+        long position;
+        long size;
+
+        try {
+            position = inChannel.position();
+            size = inChannel.size();
+        } catch (IOException e) {
+            return -1;
+        }
+
+        // some special files (pipes...) have no size
+        if (size <= 0) {
+            return -1;
+        }
+
+        long count = size - position;
+        long transferred = 0;
+
+        while (transferred < count) {
+            long len = inChannel.transferTo(position + transferred, count - transferred, outChannel);
+
+            if (len <= 0) {
+                break;
+            }
+
+            transferred += len;
+        }
+
+        // the source channel position is not updated by transferTo
+        inChannel.position(position + transferred);
+
+        // transferTo may stop before the end (e.g. some file systems) : copy the remaining bytes
+        if (transferred < count) {
+            transferred += copyByBuffer(inChannel, outChannel);
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Copy a channel through the thread copy buffer.
+     * @param inChannel the source channel
+     * @param outChannel the destination channel
+     * @return the number of copied bytes
+     * @throws IOException the copy failed
+     */
+    private static long copyByBuffer(ReadableByteChannel inChannel, FileChannel outChannel) throws IOException {
+        ByteBuffer buffer = mCopyBuffer.get();
+        long copiedBytes = 0;
+
+        buffer.clear();
+
+        while (inChannel.read(buffer) != -1) {
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                copiedBytes += outChannel.write(buffer);
+            }
+
+            buffer.clear();
+        }
+
+        return copiedBytes;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.util.EventDisplay;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persisted, read-only snapshot of the home rooms list.
+ * It is displayed at startup while the store is loaded and the first sync is done.
+ */
+public class VectorHomeSnapshot {
+    private static final String LOG_TAG = "VectorHomeSnapshot";
+
+    // the snapshot file
+    private static final String SNAPSHOT_FILENAME = "home_snapshot.json";
+
+    // the max number of saved rooms (a screen is enough)
+    private static final int MAX_ROOMS_COUNT = 30;
+
+    /**
+     * A room of the snapshot.
+     */
+    public static class SnapshotRoom {
+        public String mRoomId;
+        public String mDisplayName;
+        public String mAvatarUrl;
+        public String mLastMessage;
+        public long mTimestamp;
+        public int mUnreadCount;
+        public int mNotificationCount;
+        public int mHighlightCount;
+        public boolean mIsHighlighted;
+    }
+
+    /**
+     * @param context the context
+     * @return the snapshot file
+     */
+    private static File getSnapshotFile(Context context) {
+        return new File(context.getFilesDir(), SNAPSHOT_FILENAME);
+    }
+
+    /**
+     * Save the rooms list of a session.
+     * The rooms are read on the caller thread, the file is written in background.
+     * @param context the context
+     * @param session the session
+     */
+    public static void save(Context context, MXSession session) {
+        if ((null == session) || !session.isAlive() || !session.getDataHandler().isInitialSyncComplete()) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final String userId = session.getMyUserId();
+        final List<SnapshotRoom> rooms = new ArrayList<>();
+
+        try {
+            List<RoomSummary> summaries = new ArrayList<>(session.getDataHandler().getStore().getSummaries());
+
+            Collections.sort(summaries, new Comparator<RoomSummary>() {
+                @Override
+                public int compare(RoomSummary lhs, RoomSummary rhs) {
+                    long lhsTs = (null == lhs.getLatestReceivedEvent()) ? 0 : lhs.getLatestReceivedEvent().getOriginServerTs();
+                    long rhsTs = (null == rhs.getLatestReceivedEvent()) ? 0 : rhs.getLatestReceivedEvent().getOriginServerTs();
+                    return (lhsTs > rhsTs) ? -1 : ((lhsTs < rhsTs) ? 1 : 0);
+                }
+            });
+
+            for (RoomSummary summary : summaries) {
+                if (rooms.size() >= MAX_ROOMS_COUNT) {
+                    break;
+                }
+
+                Room room = session.getDataHandler().getStore().getRoom(summary.getRoomId());
+
+                if (null == room) {
+                    continue;
+                }
+
+                SnapshotRoom snapshotRoom = new SnapshotRoom();
+                snapshotRoom.mRoomId = room.getRoomId();
+                snapshotRoom.mDisplayName = VectorUtils.getRoomDisplayName(appContext, session, room);
+                snapshotRoom.mAvatarUrl = room.getAvatarUrl();
+                snapshotRoom.mUnreadCount = summary.getUnreadEventsCount();
+                snapshotRoom.mHighlightCount = room.getHighlightCount();
+                snapshotRoom.mNotificationCount = session.getDataHandler().getBingRulesManager().isRoomMentionOnly(room) ? room.getHighlightCount() : room.getNotificationCount();
+                snapshotRoom.mIsHighlighted = summary.isHighlighted();
+
+                if (null != summary.getLatestReceivedEvent()) {
+                    snapshotRoom.mTimestamp = summary.getLatestReceivedEvent().getOriginServerTs();
+
+                    EventDisplay eventDisplay = new EventDisplay(appContext, summary.getLatestReceivedEvent(), summary.getLatestRoomState());
+                    eventDisplay.setPrependMessagesWithAuthor(true);
+                    CharSequence text = eventDisplay.getTextualDisplay();
+
+                    snapshotRoom.mLastMessage = (null == text) ? null : text.toString();
+                }
+
+                rooms.add(snapshotRoom);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## save() : failed " + e.getMessage());
+            return;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(appContext, userId, rooms);
+            }
+        });
+    }
+
+    /**
+     * Write the snapshot file.
+     * @param context the context
+     * @param userId the user id
+     * @param rooms the rooms
+     */
+    private static synchronized void write(Context context, String userId, List<SnapshotRoom> rooms) {
+        File file = getSnapshotFile(context);
+        File tmpFile = new File(file.getParent(), file.getName() + ".tmp");
+
+        try {
+            JSONArray jsonRooms = new JSONArray();
+
+            for (SnapshotRoom room : rooms) {
+                JSONObject jsonRoom = new JSONObject();
+                jsonRoom.put("roomId", room.mRoomId);
+                jsonRoom.put("displayName", room.mDisplayName);
+                jsonRoom.putOpt("avatarUrl", room.mAvatarUrl);
+                jsonRoom.putOpt("lastMessage", room.mLastMessage);
+                jsonRoom.put("ts", room.mTimestamp);
+                jsonRoom.put("unread", room.mUnreadCount);
+                jsonRoom.put("notifications", room.mNotificationCount);
+                jsonRoom.put("highlights", room.mHighlightCount);
+                jsonRoom.put("highlighted", room.mIsHighlighted);
+                jsonRooms.put(jsonRoom);
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("userId", userId);
+            json.put("rooms", jsonRooms);
+
+            OutputStream outputStream = new FileOutputStream(tmpFile);
+            outputStream.write(json.toString().getBytes("UTF-8"));
+            outputStream.close();
+
+            // never leave a partial snapshot
+            if (!tmpFile.renameTo(file)) {
+                Log.e(LOG_TAG, "## write() : rename failed");
+                tmpFile.delete();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## write() : failed " + e.getMessage());
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Load the snapshot of a user.
+     * @param context the context
+     * @param userId the user id
+     * @return the snapshot rooms, null if there is no snapshot for this user
+     */
+    public static synchronized List<SnapshotRoom> load(Context context, String userId) {
+        File file = getSnapshotFile(context);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            InputStream inputStream = new FileInputStream(file);
+            int offset = 0;
+            int len;
+
+            while ((offset < buffer.length) && ((len = inputStream.read(buffer, offset, buffer.length - offset)) > 0)) {
+                offset += len;
+            }
+
+            inputStream.close();
+
+            JSONObject json = new JSONObject(new String(buffer, 0, offset, "UTF-8"));
+
+            if (!TextUtils.equals(userId, json.optString("userId"))) {
+                return null;
+            }
+
+            JSONArray jsonRooms = json.getJSONArray("rooms");
+            List<SnapshotRoom> rooms = new ArrayList<>();
+
+            for (int i = 0; i < jsonRooms.length(); i++) {
+                JSONObject jsonRoom = jsonRooms.getJSONObject(i);
+                SnapshotRoom room = new SnapshotRoom();
+
+                room.mRoomId = jsonRoom.getString("roomId");
+                room.mDisplayName = jsonRoom.optString("displayName");
+                room.mAvatarUrl = jsonRoom.optString("avatarUrl", null);
+                room.mLastMessage = jsonRoom.optString("lastMessage", null);
+                room.mTimestamp = jsonRoom.optLong("ts");
+                room.mUnreadCount = jsonRoom.optInt("unread");
+                room.mNotificationCount = jsonRoom.optInt("notifications");
+                room.mHighlightCount = jsonRoom.optInt("highlights");
+                room.mIsHighlighted = jsonRoom.optBoolean("highlighted");
+                rooms.add(room);
+            }
+
+            return rooms;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## load() : failed " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Delete the snapshot (e.g. on logout).
+     * @param context the context
+     */
+    public static synchronized void clear(Context context) {
+        File file = getSnapshotFile(context);
+
+        if (file.exists() && !file.delete()) {
+            Log.e(LOG_TAG, "## clear() : cannot delete the snapshot");
+        }
+    }
+}
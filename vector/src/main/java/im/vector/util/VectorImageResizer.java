@@ -0,0 +1,406 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Downscale and rotate images with a bounded memory footprint.
+ * The source image is never fully decoded : it is decoded by horizontal bands with a power of two
+ * sample size, and each band is scaled and rotated into the destination bitmap.
+ * The peak memory is the destination bitmap plus one band, whatever the source resolution.
+ */
+public class VectorImageResizer {
+    private static final String LOG_TAG = "VectorImageResizer";
+
+    // max size of a decoded band
+    private static final int MAX_BAND_BYTES = 2 * 1024 * 1024;
+
+    // max size of the destination bitmap
+    private static final int MAX_DESTINATION_BYTES = (int) Math.min(Runtime.getRuntime().maxMemory() / 4, 32 * 1024 * 1024);
+
+    // ARGB_8888
+    private static final int BYTES_PER_PIXEL = 4;
+
+    // the estimation encodes some tiles of the resized image
+    private static final int ESTIMATION_TILE_SIDE = 256;
+    private static final float[] ESTIMATION_TILE_CENTERS = {0.25f, 0.5f, 0.75f};
+
+    // the JPEG headers size, they are encoded once in the resized image
+    private static final int JPEG_HEADERS_SIZE = 600;
+
+    /**
+     * Output stream which only counts the written bytes.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long mCount = 0;
+
+        @Override
+        public void write(int oneByte) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+            mCount += count;
+        }
+    }
+
+    /**
+     * The worst case is an image format without region decoding support :
+     * the sampled image is decoded at once (bounded by the destination budget).
+     * @return the max memory used to resize an image, in bytes.
+     */
+    public static int getPeakMemoryBudget() {
+        return MAX_DESTINATION_BYTES + Math.max(MAX_BAND_BYTES, MAX_DESTINATION_BYTES);
+    }
+
+    /**
+     * @return the max size of a resized image bitmap, in bytes.
+     */
+    public static int getDestinationBudget() {
+        return MAX_DESTINATION_BYTES;
+    }
+
+    /**
+     * Read the image dimensions without decoding it.
+     * @param filename the image filename
+     * @return the options with outWidth and outHeight set, -1 if the image cannot be read.
+     */
+    public static BitmapFactory.Options decodeBounds(String filename) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.outWidth = -1;
+        options.outHeight = -1;
+
+        try {
+            BitmapFactory.decodeFile(filename, options);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## decodeBounds() : failed " + e.getMessage());
+        }
+
+        return options;
+    }
+
+    /**
+     * Compute the largest power of two sample size which keeps the decoded image larger than the expected one.
+     * @param srcWidth the source width
+     * @param srcHeight the source height
+     * @param dstWidth the expected width
+     * @param dstHeight the expected height
+     * @return the sample size
+     */
+    static int computeSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int sampleSize = 1;
+
+        while (((srcWidth / (sampleSize * 2)) >= dstWidth) && ((srcHeight / (sampleSize * 2)) >= dstHeight)) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Resize an image file and apply a rotation in a single pass.
+     * The result is a JPEG file without EXIF orientation.
+     * @param srcFilename the source image filename
+     * @param dstWidth the expected width, before rotation
+     * @param dstHeight the expected height, before rotation
+     * @param rotationAngle the rotation angle to apply (0, 90, 180 or 270)
+     * @param quality the JPEG quality
+     * @param allowReduction true if the expected size can be reduced to fit the memory budget,
+     *                       false to fail instead (e.g. the user wants the original size)
+     * @param dstFile the destination file
+     * @return true if the destination file has been written.
+     */
+    public static boolean resizeAndRotate(String srcFilename, int dstWidth, int dstHeight, int rotationAngle, int quality, boolean allowReduction, File dstFile) {
+        long startTime = System.currentTimeMillis();
+
+        BitmapFactory.Options bounds = decodeBounds(srcFilename);
+        int srcWidth = bounds.outWidth;
+        int srcHeight = bounds.outHeight;
+
+        if ((srcWidth <= 0) || (srcHeight <= 0) || (dstWidth <= 0) || (dstHeight <= 0)) {
+            Log.e(LOG_TAG, "## resizeAndRotate() : invalid sizes " + srcWidth + "x" + srcHeight + " -> " + dstWidth + "x" + dstHeight);
+            return false;
+        }
+
+        // never upscale
+        if ((dstWidth > srcWidth) || (dstHeight > srcHeight)) {
+            dstWidth = srcWidth;
+            dstHeight = srcHeight;
+        }
+
+        // respect the memory budget
+        long dstBytes = (long) dstWidth * dstHeight * BYTES_PER_PIXEL;
+
+        if (dstBytes > MAX_DESTINATION_BYTES) {
+            if (!allowReduction) {
+                Log.e(LOG_TAG, "## resizeAndRotate() : " + dstWidth + "x" + dstHeight + " does not fit the memory budget");
+                return false;
+            }
+
+            double scale = Math.sqrt((double) MAX_DESTINATION_BYTES / dstBytes);
+            dstWidth = Math.max(1, (int) (dstWidth * scale));
+            dstHeight = Math.max(1, (int) (dstHeight * scale));
+            Log.d(LOG_TAG, "## resizeAndRotate() : the image is reduced to " + dstWidth + "x" + dstHeight + " to fit the memory budget");
+        }
+
+        rotationAngle = ((rotationAngle % 360) + 360) % 360;
+
+        boolean isSwapped = (90 == rotationAngle) || (270 == rotationAngle);
+        int outWidth = isSwapped ? dstHeight : dstWidth;
+        int outHeight = isSwapped ? dstWidth : dstHeight;
+
+        int sampleSize = computeSampleSize(srcWidth, srcHeight, dstWidth, dstHeight);
+
+        // source coordinates -> destination coordinates
+        Matrix srcToDst = new Matrix();
+        srcToDst.setScale((float) dstWidth / srcWidth, (float) dstHeight / srcHeight);
+
+        if (0 != rotationAngle) {
+            srcToDst.postRotate(rotationAngle);
+
+            if (90 == rotationAngle) {
+                srcToDst.postTranslate(outWidth, 0);
+            } else if (180 == rotationAngle) {
+                srcToDst.postTranslate(outWidth, outHeight);
+            } else {
+                srcToDst.postTranslate(0, outHeight);
+            }
+        }
+
+        Bitmap dstBitmap = null;
+        boolean isDone = false;
+
+        try {
+            dstBitmap = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(dstBitmap);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+            BitmapRegionDecoder regionDecoder = null;
+
+            try {
+                regionDecoder = BitmapRegionDecoder.newInstance(srcFilename, false);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## resizeAndRotate() : no region decoder " + e.getMessage());
+            }
+
+            if (null != regionDecoder) {
+                drawByBands(regionDecoder, srcWidth, srcHeight, sampleSize, srcToDst, canvas, paint);
+                regionDecoder.recycle();
+            } else {
+                drawSampled(srcFilename, srcWidth, srcHeight, sampleSize, srcToDst, canvas, paint);
+            }
+
+            FileOutputStream outputStream = new FileOutputStream(dstFile);
+            isDone = dstBitmap.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+            outputStream.close();
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## resizeAndRotate() : out of memory " + oom.getMessage());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## resizeAndRotate() : failed " + e.getMessage());
+        } finally {
+            if (null != dstBitmap) {
+                dstBitmap.recycle();
+            }
+        }
+
+        Log.d(LOG_TAG, "## resizeAndRotate() : " + srcWidth + "x" + srcHeight + " -> " + outWidth + "x" + outHeight + " (sample " + sampleSize + ") in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        return isDone;
+    }
+
+    /**
+     * Estimate the JPEG file size of a resized image.
+     * Some tiles along the image diagonal are resized to the expected scale and encoded :
+     * the file size is extrapolated from their compression ratio.
+     * @param srcFilename the source image filename
+     * @param dstWidth the expected width
+     * @param dstHeight the expected height
+     * @param quality the JPEG quality
+     * @return the estimated size in bytes, -1 if it cannot be estimated
+     */
+    public static long estimateJpegSize(String srcFilename, int dstWidth, int dstHeight, int quality) {
+        BitmapFactory.Options bounds = decodeBounds(srcFilename);
+        int srcWidth = bounds.outWidth;
+        int srcHeight = bounds.outHeight;
+
+        if ((srcWidth <= 0) || (srcHeight <= 0) || (dstWidth <= 0) || (dstHeight <= 0)) {
+            return -1;
+        }
+
+        // never upscale
+        if ((dstWidth > srcWidth) || (dstHeight > srcHeight)) {
+            dstWidth = srcWidth;
+            dstHeight = srcHeight;
+        }
+
+        int tileWidth = Math.min(ESTIMATION_TILE_SIDE, dstWidth);
+        int tileHeight = Math.min(ESTIMATION_TILE_SIDE, dstHeight);
+
+        // the tile size in the source image
+        int srcTileWidth = Math.min(srcWidth, (int) Math.ceil((double) tileWidth * srcWidth / dstWidth));
+        int srcTileHeight = Math.min(srcHeight, (int) Math.ceil((double) tileHeight * srcHeight / dstHeight));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = computeSampleSize(srcTileWidth, srcTileHeight, tileWidth, tileHeight);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        BitmapRegionDecoder regionDecoder = null;
+        Bitmap tile = null;
+        long encodedSize = 0;
+        long encodedPixels = 0;
+
+        try {
+            regionDecoder = BitmapRegionDecoder.newInstance(srcFilename, false);
+
+            tile = Bitmap.createBitmap(tileWidth, tileHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(tile);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+            Matrix matrix = new Matrix();
+            Rect region = new Rect();
+
+            for (float center : ESTIMATION_TILE_CENTERS) {
+                int left = Math.max(0, Math.min(srcWidth - srcTileWidth, (int) (center * srcWidth) - srcTileWidth / 2));
+                int top = Math.max(0, Math.min(srcHeight - srcTileHeight, (int) (center * srcHeight) - srcTileHeight / 2));
+                region.set(left, top, left + srcTileWidth, top + srcTileHeight);
+
+                Bitmap sample = regionDecoder.decodeRegion(region, options);
+
+                if (null != sample) {
+                    matrix.setScale((float) tileWidth / sample.getWidth(), (float) tileHeight / sample.getHeight());
+                    canvas.drawBitmap(sample, matrix, paint);
+                    sample.recycle();
+
+                    CountingOutputStream countingStream = new CountingOutputStream();
+                    tile.compress(Bitmap.CompressFormat.JPEG, quality, countingStream);
+
+                    encodedSize += Math.max(0, countingStream.mCount - JPEG_HEADERS_SIZE);
+                    encodedPixels += tileWidth * tileHeight;
+                }
+
+                // the tile is the whole image
+                if ((srcTileWidth == srcWidth) && (srcTileHeight == srcHeight)) {
+                    break;
+                }
+            }
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## estimateJpegSize() : out of memory " + oom.getMessage());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## estimateJpegSize() : failed " + e.getMessage());
+        } finally {
+            if (null != regionDecoder) {
+                regionDecoder.recycle();
+            }
+
+            if (null != tile) {
+                tile.recycle();
+            }
+        }
+
+        if (0 == encodedPixels) {
+            return -1;
+        }
+
+        return JPEG_HEADERS_SIZE + (encodedSize * dstWidth * dstHeight / encodedPixels);
+    }
+
+    /**
+     * Decode the source image by horizontal bands and draw them into the destination canvas.
+     * @param regionDecoder the source decoder
+     * @param srcWidth the source width
+     * @param srcHeight the source height
+     * @param sampleSize the decoding sample size
+     * @param srcToDst the source to destination matrix
+     * @param canvas the destination canvas
+     * @param paint the drawing paint
+     */
+    private static void drawByBands(BitmapRegionDecoder regionDecoder, int srcWidth, int srcHeight, int sampleSize, Matrix srcToDst, Canvas canvas, Paint paint) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // the band height in source rows, multiple of the sample size
+        int sampledRowBytes = Math.max(1, srcWidth / sampleSize) * BYTES_PER_PIXEL;
+        int bandHeight = Math.max(1, MAX_BAND_BYTES / sampledRowBytes) * sampleSize;
+
+        Rect region = new Rect();
+        Matrix bandToDst = new Matrix();
+
+        for (int top = 0; top < srcHeight; top += bandHeight) {
+            region.set(0, top, srcWidth, Math.min(srcHeight, top + bandHeight));
+
+            Bitmap band = regionDecoder.decodeRegion(region, options);
+
+            if (null != band) {
+                // band coordinates -> source coordinates -> destination coordinates
+                bandToDst.setScale((float) region.width() / band.getWidth(), (float) region.height() / band.getHeight());
+                bandToDst.postTranslate(0, top);
+                bandToDst.postConcat(srcToDst);
+
+                canvas.drawBitmap(band, bandToDst, paint);
+                band.recycle();
+            }
+        }
+    }
+
+    /**
+     * Decode the source image at once with a sample size which fits the band budget.
+     * It is only used when the image format does not support region decoding.
+     * @param srcFilename the source filename
+     * @param srcWidth the source width
+     * @param srcHeight the source height
+     * @param sampleSize the minimum decoding sample size
+     * @param srcToDst the source to destination matrix
+     * @param canvas the destination canvas
+     * @param paint the drawing paint
+     */
+    private static void drawSampled(String srcFilename, int srcWidth, int srcHeight, int sampleSize, Matrix srcToDst, Canvas canvas, Paint paint) {
+        // keep the decoded image in the destination budget
+        while (((long) (srcWidth / sampleSize) * (srcHeight / sampleSize) * BYTES_PER_PIXEL) > MAX_DESTINATION_BYTES) {
+            sampleSize *= 2;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Bitmap bitmap = BitmapFactory.decodeFile(srcFilename, options);
+
+        if (null != bitmap) {
+            Matrix bitmapToDst = new Matrix();
+            bitmapToDst.setScale((float) srcWidth / bitmap.getWidth(), (float) srcHeight / bitmap.getHeight());
+            bitmapToDst.postConcat(srcToDst);
+
+            canvas.drawBitmap(bitmap, bitmapToDst, paint);
+            bitmap.recycle();
+        }
+    }
+}
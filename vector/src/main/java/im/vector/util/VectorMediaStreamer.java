@@ -0,0 +1,793 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Base64;
+
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.rest.model.EncryptedFileInfo;
+import org.matrix.androidsdk.ssl.CertUtil;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Serve a media on a local HTTP server while it is downloading,
+ * so that a MediaPlayer can start playing it before the download completes.
+ * The media is downloaded in a sparse file with HTTP range requests.
+ * A seek far from the download position restarts the download at the seek position.
+ * The encrypted medias are decrypted (AES-CTR) on the fly while they are served.
+ *
+ * The hash of an encrypted media can only be checked once it is fully downloaded,
+ * so the player receives decrypted data which has not been authenticated yet.
+ * It is the price of the streaming : when the hash does not match, the served content is dropped
+ * and the listener is warned so that the playback is stopped.
+ */
+public class VectorMediaStreamer {
+    private static final String LOG_TAG = "VectorMediaStreamer";
+
+    // the read / write chunk size
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // a request farther than this from the download position restarts the download there
+    private static final long SEEK_RESTART_DISTANCE = 512 * 1024;
+
+    // the network timeouts
+    private static final int CONNECTION_TIMEOUT_MS = 30 * 1000;
+
+    // the max number of failed download attempts in a row
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+
+    // AES block size
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    /**
+     * The streamer listener.
+     */
+    public interface IStreamerListener {
+        /**
+         * The downloaded media does not match its hash.
+         * The downloaded content has been deleted.
+         * It is called on the download thread.
+         */
+        void onInvalidMedia();
+    }
+
+    private final MXSession mSession;
+    private final String mDownloadUrl;
+    private final String mMimeType;
+    private final EncryptedFileInfo mEncryptedFileInfo;
+    private final IStreamerListener mListener;
+
+    // the downloaded content (encrypted for the encrypted medias)
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mFileChannel;
+
+    // the decryption parameters
+    private SecretKeySpec mSecretKeySpec;
+    private byte[] mIv;
+
+    // the served path, other paths are rejected
+    private final String mPath = "/" + UUID.randomUUID().toString();
+
+    private ServerSocket mServerSocket;
+
+    // the downloaded segments (start -> end exclusive)
+    private final TreeMap<Long, Long> mSegments = new TreeMap<>();
+
+    // the media length, -1 until it is known
+    private long mContentLength = -1;
+
+    // the download position
+    private long mDownloadPosition = 0;
+
+    // the position requested by a seek
+    private long mRequestedPosition = 0;
+    private boolean mIsRestartRequested = false;
+
+    // the download failed
+    private String mDownloadError = null;
+
+    private volatile boolean mIsStopped = false;
+
+    /**
+     * Constructor
+     * @param context the context
+     * @param session the session
+     * @param mediaUrl the media URL
+     * @param mimeType the media mime type
+     * @param encryptedFileInfo the encryption info, null if the media is not encrypted
+     * @param listener the listener
+     */
+    public VectorMediaStreamer(Context context, MXSession session, String mediaUrl, String mimeType, EncryptedFileInfo encryptedFileInfo, IStreamerListener listener) {
+        mSession = session;
+        mDownloadUrl = session.getContentManager().getDownloadableUrl(mediaUrl);
+        mMimeType = TextUtils.isEmpty(mimeType) ? "application/octet-stream" : mimeType;
+        mEncryptedFileInfo = encryptedFileInfo;
+        mListener = listener;
+        mFile = new File(context.getCacheDir(), "streamedMedia" + mPath.substring(1));
+    }
+
+    //==============================================================================================================
+    // Life cycle
+    //==============================================================================================================
+
+    /**
+     * Start the download and the local server.
+     * @return the URI to play, null if the media cannot be streamed.
+     */
+    public Uri start() {
+        if (null == mDownloadUrl) {
+            return null;
+        }
+
+        try {
+            if (null != mEncryptedFileInfo) {
+                if ((null == mEncryptedFileInfo.key) || (null == mEncryptedFileInfo.key.k) || (null == mEncryptedFileInfo.iv)) {
+                    Log.e(LOG_TAG, "## start() : invalid encryption info");
+                    return null;
+                }
+
+                mSecretKeySpec = new SecretKeySpec(Base64.decode(mEncryptedFileInfo.key.k, Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING), "AES");
+                mIv = Base64.decode(mEncryptedFileInfo.iv, Base64.NO_WRAP | Base64.NO_PADDING);
+
+                if (AES_BLOCK_SIZE != mIv.length) {
+                    Log.e(LOG_TAG, "## start() : invalid iv");
+                    return null;
+                }
+            }
+
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mFileChannel = mRandomAccessFile.getChannel();
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## start() : failed " + e.getMessage());
+            stop();
+            return null;
+        }
+
+        Thread downloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                download();
+            }
+        }, "VectorMediaStreamer-download");
+        downloadThread.start();
+
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "VectorMediaStreamer-server");
+        serverThread.start();
+
+        return Uri.parse("http://127.0.0.1:" + mServerSocket.getLocalPort() + mPath);
+    }
+
+    /**
+     * Stop the download and the local server, and delete the downloaded content.
+     */
+    public void stop() {
+        mIsStopped = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+
+        try {
+            if (null != mServerSocket) {
+                mServerSocket.close();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## stop() : close failed " + e.getMessage());
+        }
+
+        try {
+            if (null != mRandomAccessFile) {
+                mRandomAccessFile.close();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## stop() : close failed " + e.getMessage());
+        }
+
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(LOG_TAG, "## stop() : cannot delete " + mFile.getName());
+        }
+    }
+
+    //==============================================================================================================
+    // Downloaded segments
+    //==============================================================================================================
+
+    /**
+     * Provides the end of the downloaded segment which contains a position.
+     * @param position the position
+     * @return the segment end, position if it is not downloaded.
+     */
+    private synchronized long getAvailableEnd(long position) {
+        Map.Entry<Long, Long> entry = mSegments.floorEntry(position);
+
+        if ((null != entry) && (entry.getValue() > position)) {
+            return entry.getValue();
+        }
+
+        return position;
+    }
+
+    /**
+     * Add a downloaded segment, and merge it with its neighbours.
+     * @param start the segment start
+     * @param end the segment end (exclusive)
+     */
+    private synchronized void addSegment(long start, long end) {
+        Map.Entry<Long, Long> floor = mSegments.floorEntry(start);
+
+        if ((null != floor) && (floor.getValue() >= start)) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+
+        Map.Entry<Long, Long> next = mSegments.ceilingEntry(start);
+
+        while ((null != next) && (next.getKey() <= end)) {
+            end = Math.max(end, next.getValue());
+            mSegments.remove(next.getKey());
+            next = mSegments.ceilingEntry(start);
+        }
+
+        mSegments.put(start, end);
+        notifyAll();
+    }
+
+    /**
+     * Provides the next position to download.
+     * The positions after the requested one are downloaded first.
+     * @return the position, -1 if the media is fully downloaded
+     */
+    private synchronized long getNextMissingPosition() {
+        long position = getAvailableEnd(mRequestedPosition);
+
+        if (mContentLength < 0) {
+            return position;
+        }
+
+        if (position >= mContentLength) {
+            position = getAvailableEnd(0);
+        }
+
+        return (position >= mContentLength) ? -1 : position;
+    }
+
+    /**
+     * A client needs the data at a position.
+     * The download is restarted there if it would not reach it soon.
+     * @param position the position
+     */
+    private synchronized void requestPosition(long position) {
+        if (getAvailableEnd(position) > position) {
+            return;
+        }
+
+        if ((position < mDownloadPosition) || (position > mDownloadPosition + SEEK_RESTART_DISTANCE)) {
+            Log.d(LOG_TAG, "## requestPosition() : restart the download at " + position);
+            mRequestedPosition = position;
+            mIsRestartRequested = true;
+            notifyAll();
+        }
+    }
+
+    //==============================================================================================================
+    // Download
+    //==============================================================================================================
+
+    /**
+     * Download the media until it is complete or the streamer is stopped.
+     */
+    private void download() {
+        int failedAttempts = 0;
+
+        while (!mIsStopped) {
+            long position;
+
+            synchronized (this) {
+                position = getNextMissingPosition();
+                mIsRestartRequested = false;
+            }
+
+            if (position < 0) {
+                Log.d(LOG_TAG, "## download() : the media is downloaded");
+                checkHash();
+                return;
+            }
+
+            try {
+                downloadFrom(position);
+                failedAttempts = 0;
+
+                synchronized (this) {
+                    if ((mContentLength < 0) && !mIsStopped) {
+                        Log.e(LOG_TAG, "## download() : cannot get the media length");
+                        onDownloadError("unknown content length");
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## download() : failed at " + position + " " + e.getMessage());
+
+                if (++failedAttempts >= MAX_DOWNLOAD_ATTEMPTS) {
+                    onDownloadError(e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Download the media from a position until it reaches a downloaded segment,
+     * the end of the media or a seek.
+     * @param position the start position
+     * @throws Exception the download failed
+     */
+    private void downloadFrom(long position) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mDownloadUrl).openConnection();
+
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(CertUtil.newPinnedSSLSocketFactory(mSession.getHomeserverConfig()));
+            ((HttpsURLConnection) connection).setHostnameVerifier(CertUtil.newHostnameVerifier(mSession.getHomeserverConfig()));
+        }
+
+        connection.setConnectTimeout(CONNECTION_TIMEOUT_MS);
+        connection.setReadTimeout(CONNECTION_TIMEOUT_MS);
+        connection.setRequestProperty("Range", "bytes=" + position + "-");
+
+        InputStream inputStream = null;
+
+        try {
+            int responseCode = connection.getResponseCode();
+            boolean isPartial = (HttpURLConnection.HTTP_PARTIAL == responseCode);
+            long requestedPosition = position;
+
+            if (HttpURLConnection.HTTP_PARTIAL == responseCode) {
+                Matcher matcher = CONTENT_RANGE_PATTERN.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+
+                if (!matcher.matches()) {
+                    throw new Exception("invalid content range");
+                }
+
+                position = Long.parseLong(matcher.group(1));
+                setContentLength(Long.parseLong(matcher.group(3)));
+            } else if (HttpURLConnection.HTTP_OK == responseCode) {
+                // the server does not support the ranges
+                // getContentLength() is limited to 2GB
+                position = 0;
+                setContentLength(parseLength(connection.getHeaderField("Content-Length")));
+            } else {
+                throw new Exception("unexpected response " + responseCode);
+            }
+
+            inputStream = connection.getInputStream();
+
+            // the whole media is sent : skip the data before the requested position
+            if (!isPartial) {
+                skip(inputStream, requestedPosition);
+                position = requestedPosition;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            byte[] array = buffer.array();
+
+            while (!mIsStopped) {
+                int len = inputStream.read(array);
+
+                if (len < 0) {
+                    // the media length was not provided (chunked response)
+                    if (!isPartial) {
+                        synchronized (this) {
+                            if (mContentLength < 0) {
+                                setContentLength(position);
+                            }
+                        }
+                    }
+                    break;
+                }
+
+                buffer.clear();
+                buffer.limit(len);
+
+                while (buffer.hasRemaining()) {
+                    mFileChannel.write(buffer, position + buffer.position());
+                }
+
+                synchronized (this) {
+                    addSegment(position, position + len);
+                    position += len;
+                    mDownloadPosition = position;
+
+                    // a seek or a downloaded segment has been reached
+                    // a full response is read until its end, as the same request would send the same data again
+                    // the media length is only known at its end when it is not provided
+                    if ((mIsRestartRequested && (mContentLength >= 0)) || (isPartial && (getAvailableEnd(position) > position))) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if (null != inputStream) {
+                try {
+                    inputStream.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## downloadFrom() : close failed " + e.getMessage());
+                }
+            }
+
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Skip the first bytes of a stream.
+     * @param inputStream the stream
+     * @param count the bytes count
+     * @throws Exception the stream ends before
+     */
+    private void skip(InputStream inputStream, long count) throws Exception {
+        while ((count > 0) && !mIsStopped) {
+            long skipped = inputStream.skip(count);
+
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new Exception("unexpected end of stream");
+                }
+
+                skipped = 1;
+            }
+
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Parse a length header.
+     * @param value the header value
+     * @return the length, -1 if it is not provided
+     */
+    private static long parseLength(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## parseLength() : invalid length " + value);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Update the media length.
+     * @param contentLength the media length
+     */
+    private synchronized void setContentLength(long contentLength) {
+        if (contentLength >= 0) {
+            mContentLength = contentLength;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The download failed.
+     * @param error the error
+     */
+    private synchronized void onDownloadError(String error) {
+        mDownloadError = (null == error) ? "download failed" : error;
+        notifyAll();
+    }
+
+    /**
+     * Check the hash of an encrypted media once it is fully downloaded.
+     * The downloaded content is deleted and the listener is warned if the media has been tampered with.
+     */
+    private void checkHash() {
+        if ((null == mEncryptedFileInfo) || (null == mEncryptedFileInfo.hashes) || !mEncryptedFileInfo.hashes.containsKey("sha256")) {
+            return;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            long position = 0;
+
+            while (position < mContentLength) {
+                buffer.clear();
+                int len = mFileChannel.read(buffer, position);
+
+                if (len <= 0) {
+                    break;
+                }
+
+                digest.update(buffer.array(), 0, len);
+                position += len;
+            }
+
+            String hash = Base64.encodeToString(digest.digest(), Base64.NO_WRAP | Base64.NO_PADDING);
+
+            if (!TextUtils.equals(hash, mEncryptedFileInfo.hashes.get("sha256").replace("=", ""))) {
+                Log.e(LOG_TAG, "## checkHash() : invalid hash");
+                onDownloadError("invalid hash");
+                stop();
+
+                if (null != mListener) {
+                    mListener.onInvalidMedia();
+                }
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## checkHash() : failed " + e.getMessage());
+        }
+    }
+
+    //==============================================================================================================
+    // Server
+    //==============================================================================================================
+
+    /**
+     * Accept the player connections until the streamer is stopped.
+     */
+    private void serve() {
+        while (!mIsStopped) {
+            try {
+                final Socket socket = mServerSocket.accept();
+
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleClient(socket);
+                    }
+                }, "VectorMediaStreamer-client");
+                thread.start();
+            } catch (Exception e) {
+                if (!mIsStopped) {
+                    Log.e(LOG_TAG, "## serve() : accept failed " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Serve a player request.
+     * @param socket the client socket
+     */
+    private void handleClient(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream outputStream = socket.getOutputStream();
+
+            String requestLine = reader.readLine();
+            String rangeHeader = null;
+            String line;
+
+            while (!TextUtils.isEmpty(line = reader.readLine())) {
+                int index = line.indexOf(':');
+
+                if ((index > 0) && "range".equalsIgnoreCase(line.substring(0, index).trim())) {
+                    rangeHeader = line.substring(index + 1).trim();
+                }
+            }
+
+            String[] requestParts = (null == requestLine) ? new String[0] : requestLine.split(" ");
+
+            if ((requestParts.length < 2) || !TextUtils.equals(requestParts[1], mPath)) {
+                writeStatus(outputStream, "404 Not Found");
+                return;
+            }
+
+            long start = 0;
+            long end = -1;
+
+            if (null != rangeHeader) {
+                Matcher matcher = RANGE_PATTERN.matcher(rangeHeader);
+
+                if (matcher.matches()) {
+                    start = Long.parseLong(matcher.group(1));
+
+                    if (!TextUtils.isEmpty(matcher.group(2))) {
+                        end = Long.parseLong(matcher.group(2));
+                    }
+                }
+            }
+
+            requestPosition(start);
+
+            // the response needs the media length
+            synchronized (this) {
+                while ((mContentLength < 0) && (null == mDownloadError) && !mIsStopped) {
+                    wait();
+                }
+            }
+
+            if ((null != mDownloadError) || mIsStopped) {
+                writeStatus(outputStream, "500 Internal Server Error");
+                return;
+            }
+
+            if (start >= mContentLength) {
+                writeStatus(outputStream, "416 Range Not Satisfiable");
+                return;
+            }
+
+            end = ((end < 0) || (end >= mContentLength)) ? (mContentLength - 1) : end;
+
+            StringBuilder headers = new StringBuilder();
+            headers.append((null != rangeHeader) ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Type: ").append(mMimeType).append("\r\n");
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            headers.append("Accept-Ranges: bytes\r\n");
+
+            if (null != rangeHeader) {
+                headers.append("Content-Range: bytes ").append(start).append("-").append(end).append("/").append(mContentLength).append("\r\n");
+            }
+
+            headers.append("Connection: close\r\n\r\n");
+            outputStream.write(headers.toString().getBytes("UTF-8"));
+
+            if (!"HEAD".equals(requestParts[0])) {
+                writeContent(outputStream, start, end);
+            }
+
+            outputStream.flush();
+        } catch (Exception e) {
+            // the player closes the connections when it seeks
+            Log.d(LOG_TAG, "## handleClient() : " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## handleClient() : close failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write a response without content.
+     * @param outputStream the output stream
+     * @param status the status
+     * @throws Exception the write failed
+     */
+    private void writeStatus(OutputStream outputStream, String status) throws Exception {
+        outputStream.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+        outputStream.flush();
+    }
+
+    /**
+     * Write a media range, waiting for the download when it is needed.
+     * @param outputStream the output stream
+     * @param start the first byte position
+     * @param end the last byte position
+     * @throws Exception the write failed
+     */
+    private void writeContent(OutputStream outputStream, long start, long end) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        Cipher cipher = (null != mSecretKeySpec) ? Cipher.getInstance("AES/CTR/NoPadding") : null;
+        long position = start;
+
+        while (position <= end) {
+            long availableEnd;
+
+            synchronized (this) {
+                while (((availableEnd = getAvailableEnd(position)) <= position) && (null == mDownloadError) && !mIsStopped) {
+                    wait();
+                }
+            }
+
+            if ((null != mDownloadError) || mIsStopped) {
+                return;
+            }
+
+            buffer.clear();
+            buffer.limit((int) Math.min(CHUNK_SIZE, Math.min(availableEnd, end + 1) - position));
+
+            int len = mFileChannel.read(buffer, position);
+
+            if (len <= 0) {
+                return;
+            }
+
+            byte[] data = buffer.array();
+
+            if (null != cipher) {
+                data = decrypt(cipher, data, len, position);
+            }
+
+            outputStream.write(data, 0, len);
+            position += len;
+
+            // the player may have seeked on another connection
+            requestPosition(position);
+        }
+    }
+
+    //==============================================================================================================
+    // Decryption
+    //==============================================================================================================
+
+    /**
+     * Decrypt an AES-CTR chunk at any position of the media.
+     * The counter block of a position is the iv incremented by the position block index.
+     * @param cipher the cipher
+     * @param data the encrypted data
+     * @param len the data length
+     * @param position the data position in the media
+     * @return the decrypted data
+     * @throws Exception the decryption failed
+     */
+    private byte[] decrypt(Cipher cipher, byte[] data, int len, long position) throws Exception {
+        byte[] counter = mIv.clone();
+        long blockIndex = position / AES_BLOCK_SIZE;
+        int carry = 0;
+
+        // 128 bits big endian addition
+        for (int i = AES_BLOCK_SIZE - 1; i >= 0; i--) {
+            int sum = (counter[i] & 0xFF) + (int) (blockIndex & 0xFF) + carry;
+            counter[i] = (byte) sum;
+            carry = sum >> 8;
+            blockIndex >>>= 8;
+        }
+
+        cipher.init(Cipher.DECRYPT_MODE, mSecretKeySpec, new IvParameterSpec(counter));
+
+        // skip the position offset in its block
+        int offset = (int) (position % AES_BLOCK_SIZE);
+
+        if (offset > 0) {
+            cipher.update(new byte[offset]);
+        }
+
+        return cipher.update(data, 0, len);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Schedule the network requests sent by the application according to their priority.
+ * Each priority class has its own concurrency limit.
+ * The prefetch requests wait for the interactive ones, the background requests wait for the other ones
+ * and are deferred while the user is scrolling or typing.
+ */
+public class VectorRequestScheduler {
+    private static final String LOG_TAG = "VectorRequestScheduler";
+
+    /**
+     * Priority classes
+     */
+    // the user waits for the response
+    public static final int PRIORITY_INTERACTIVE = 0;
+    // the response will be displayed soon (e.g. next page)
+    public static final int PRIORITY_VISIBLE_PREFETCH = 1;
+    // the response is not displayed
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    // the max number of running requests by priority class
+    private static final int[] MAX_RUNNING_REQUESTS = {4, 2, 1};
+
+    // the background requests are deferred until the user has not scrolled or typed for this delay
+    private static final long USER_INTERACTION_DELAY_MS = 2000;
+
+    // a request which does not call its done callback releases its slot after this delay
+    private static final long REQUEST_TIMEOUT_MS = 60 * 1000;
+
+    /**
+     * A scheduled request.
+     */
+    public interface IScheduledRequest {
+        /**
+         * Send the request.
+         * @param onDone must be called when the request is complete, whatever its result
+         */
+        void send(Runnable onDone);
+    }
+
+    private static VectorRequestScheduler mInstance = null;
+
+    private final Handler mUIHandler = new Handler(Looper.getMainLooper());
+
+    // the pending requests by priority class
+    private final List<LinkedList<IScheduledRequest>> mPendingRequests = new ArrayList<>();
+
+    // the running requests count by priority class
+    private final int[] mRunningRequestsCount = new int[MAX_RUNNING_REQUESTS.length];
+
+    // the last user interaction time (elapsed realtime)
+    private long mLastUserInteractionTime = 0;
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @return the instance
+     */
+    public static synchronized VectorRequestScheduler getInstance() {
+        if (null == mInstance) {
+            mInstance = new VectorRequestScheduler();
+        }
+
+        return mInstance;
+    }
+
+    private VectorRequestScheduler() {
+        for (int i = 0; i < MAX_RUNNING_REQUESTS.length; i++) {
+            mPendingRequests.add(new LinkedList<IScheduledRequest>());
+        }
+    }
+
+    /**
+     * Schedule a request.
+     * It can be called from any thread, the request is sent from the UI thread.
+     * @param priority the priority class
+     * @param request the request
+     */
+    public void schedule(final int priority, final IScheduledRequest request) {
+        if ((priority < 0) || (priority >= MAX_RUNNING_REQUESTS.length)) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+
+        mUIHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingRequests.get(priority).add(request);
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * The user is scrolling or typing : the background requests are deferred.
+     * It must be called from the UI thread.
+     */
+    public void onUserInteraction() {
+        mLastUserInteractionTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Send the pending requests which are allowed to run.
+     */
+    private void dispatch() {
+        mUIHandler.removeCallbacks(mDispatchRunnable);
+
+        for (int priority = 0; priority < MAX_RUNNING_REQUESTS.length; priority++) {
+            LinkedList<IScheduledRequest> requests = mPendingRequests.get(priority);
+
+            // the lower priorities wait for the pending higher priority requests
+            if ((priority > PRIORITY_INTERACTIVE) && !mPendingRequests.get(PRIORITY_INTERACTIVE).isEmpty()) {
+                break;
+            }
+
+            if ((PRIORITY_BACKGROUND == priority) && !requests.isEmpty()) {
+                if ((0 != mRunningRequestsCount[PRIORITY_INTERACTIVE]) || !mPendingRequests.get(PRIORITY_VISIBLE_PREFETCH).isEmpty()) {
+                    break;
+                }
+
+                long remainingDelay = mLastUserInteractionTime + USER_INTERACTION_DELAY_MS - SystemClock.elapsedRealtime();
+
+                if (remainingDelay > 0) {
+                    Log.d(LOG_TAG, "## dispatch() : " + requests.size() + " background requests are deferred");
+                    mUIHandler.postDelayed(mDispatchRunnable, remainingDelay);
+                    break;
+                }
+            }
+
+            while (!requests.isEmpty() && (mRunningRequestsCount[priority] < MAX_RUNNING_REQUESTS[priority])) {
+                send(priority, requests.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Send a request.
+     * @param priority the priority class
+     * @param request the request
+     */
+    private void send(final int priority, IScheduledRequest request) {
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+
+        // release the request slot (UI thread)
+        final Runnable releaseRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mRunningRequestsCount[priority]--;
+                dispatch();
+            }
+        };
+
+        // the request did not complete in time
+        final Runnable timeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (isDone.compareAndSet(false, true)) {
+                    Log.e(LOG_TAG, "## send() : a request of priority " + priority + " did not complete");
+                    releaseRunnable.run();
+                }
+            }
+        };
+
+        final Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                if (isDone.compareAndSet(false, true)) {
+                    mUIHandler.removeCallbacks(timeoutRunnable);
+                    mUIHandler.post(releaseRunnable);
+                }
+            }
+        };
+
+        mRunningRequestsCount[priority]++;
+        mUIHandler.postDelayed(timeoutRunnable, REQUEST_TIMEOUT_MS);
+
+        try {
+            request.send(onDone);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## send() : failed " + e.getMessage());
+            onDone.run();
+        }
+    }
+
+    /**
+     * Wrap a request callback to release the request slot when the request is complete.
+     * @param onDone the scheduler done callback
+     * @param callback the request callback
+     * @param <T> the response type
+     * @return the wrapped callback
+     */
+    public static <T> ApiCallback<T> releaseOnDone(final Runnable onDone, final ApiCallback<T> callback) {
+        return new ApiCallback<T>() {
+            @Override
+            public void onSuccess(T info) {
+                onDone.run();
+                callback.onSuccess(info);
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                onDone.run();
+                callback.onNetworkError(e);
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                onDone.run();
+                callback.onMatrixError(e);
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                onDone.run();
+                callback.onUnexpectedError(e);
+            }
+        };
+    }
+}
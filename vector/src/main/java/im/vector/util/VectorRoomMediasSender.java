@@ -22,7 +22,9 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.HandlerThread;
 import android.support.v4.app.FragmentManager;
@@ -30,6 +32,8 @@ import android.text.Html;
 import android.text.TextUtils;
 import org.matrix.androidsdk.util.Log;
 import android.view.View;
+import android.widget.BaseAdapter;
+import android.widget.ListAdapter;
 import android.widget.Toast;
 
 import org.matrix.androidsdk.db.MXMediasCache;
@@ -38,10 +42,14 @@ import org.matrix.androidsdk.util.ImageUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
-
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import im.vector.R;
 import im.vector.activity.CommonActivityUtils;
@@ -85,9 +93,99 @@ public class VectorRoomMediasSender {
     private static HandlerThread mHandlerThread = null;
     private static android.os.Handler mMediasSendingHandler = null;
 
+    // the medias are prepared (copied in the medias cache, thumbnail, resize) in parallel
+    // but they are sent in the selection order.
+    private static final int MAX_PARALLEL_PREPARATIONS = 3;
+    private static ExecutorService mMediasPreparationExecutor = null;
+
     // pending
+    // it is updated with mPreparedMedias, under the mPreparedMedias lock
     private ArrayList<SharedDataItem> mSharedDataItems;
-    private String mImageCompressionDescription;
+
+    // trace the medias sending
+    private VectorTracer.Span mMediasSendingSpan;
+
+    private volatile String mImageCompressionDescription;
+
+    // when the data saver is enabled, the images are automatically resized to fit in this size (in bytes)
+    // instead of asking the user to select a compression.
+    private static final long DATA_SAVER_IMAGE_BYTES_BUDGET = 1024 * 1024;
+
+    // the pending preparations (same order as mSharedDataItems)
+    private final ArrayList<MediaPreparation> mPreparedMedias = new ArrayList<>();
+
+    /**
+     * A media ready to be sent.
+     */
+    private static class PreparedMedia {
+        // the media mime type
+        String mMimeType;
+        // the media filename
+        String mFilename;
+        // the media url in the medias cache (null if it cannot be read)
+        String mMediaUrl;
+        // the thumbnail url in the medias cache
+        String mThumbnailUrl;
+        // true when the image has already been resized with mImageCompressionDescription
+        boolean mIsResized;
+    }
+
+    /**
+     * A media preparation.
+     * It is not interrupted when it is cancelled, as it would leave a partial file in the medias cache :
+     * the prepared files are deleted when it completes.
+     */
+    private class MediaPreparation implements Callable<PreparedMedia> {
+        private final SharedDataItem mSharedDataItem;
+        private volatile boolean mIsCancelled = false;
+        private Future<PreparedMedia> mFuture;
+
+        /**
+         * Constructor
+         * @param sharedDataItem the item to prepare
+         */
+        MediaPreparation(SharedDataItem sharedDataItem) {
+            mSharedDataItem = sharedDataItem;
+        }
+
+        @Override
+        public PreparedMedia call() throws Exception {
+            long startTime = System.currentTimeMillis();
+            PreparedMedia preparedMedia = prepareMedia(mSharedDataItem);
+
+            if (mIsCancelled) {
+                Log.d(LOG_TAG, "prepareMedias : " + preparedMedia.mFilename + " has been cancelled");
+                deleteMediaFile(preparedMedia.mMediaUrl);
+                deleteMediaFile(preparedMedia.mThumbnailUrl);
+            } else {
+                Log.d(LOG_TAG, "prepareMedias : " + preparedMedia.mFilename + " prepared in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+
+            return preparedMedia;
+        }
+
+        /**
+         * Cancel the preparation.
+         */
+        void cancel() {
+            mIsCancelled = true;
+            mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Delete a file of the medias cache.
+     * @param url the file url
+     */
+    private static void deleteMediaFile(String url) {
+        if (null != url) {
+            File file = new File(Uri.parse(url).getPath());
+
+            if (file.exists() && !file.delete()) {
+                Log.e(LOG_TAG, "deleteMediaFile : cannot delete " + file.getName());
+            }
+        }
+    }
 
     /**
      * Constructor
@@ -103,6 +201,17 @@ public class VectorRoomMediasSender {
             mHandlerThread.start();
 
             mMediasSendingHandler = new android.os.Handler(mHandlerThread.getLooper());
+
+            mMediasPreparationExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_PREPARATIONS, new ThreadFactory() {
+                private int mThreadIndex = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "VectorRoomMediasPreparation" + (mThreadIndex++));
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
         }
     }
 
@@ -112,7 +221,11 @@ public class VectorRoomMediasSender {
      */
     public void onRestoreInstanceState(Bundle savedInstanceState) {
         if (null != savedInstanceState) {
-            mSharedDataItems = (ArrayList<SharedDataItem>) savedInstanceState.getSerializable(KEY_BUNDLE_MEDIAS_LIST);
+            synchronized (mPreparedMedias) {
+                cancelPreparations();
+                mSharedDataItems = (ArrayList<SharedDataItem>) savedInstanceState.getSerializable(KEY_BUNDLE_MEDIAS_LIST);
+            }
+
             mImageCompressionDescription = (String)savedInstanceState.getSerializable(KEY_BUNDLE_COMPRESSION_PREFERENCES);
         }
     }
@@ -122,8 +235,10 @@ public class VectorRoomMediasSender {
      * @param savedInstanceState the bundle
      */
     public void onSaveInstanceState(Bundle savedInstanceState) {
-        if (null != mSharedDataItems) {
-            savedInstanceState.putSerializable(KEY_BUNDLE_MEDIAS_LIST, mSharedDataItems);
+        synchronized (mPreparedMedias) {
+            if (null != mSharedDataItems) {
+                savedInstanceState.putSerializable(KEY_BUNDLE_MEDIAS_LIST, new ArrayList<>(mSharedDataItems));
+            }
         }
 
         if (null != mImageCompressionDescription) {
@@ -152,11 +267,105 @@ public class VectorRoomMediasSender {
      */
     public void sendMedias(final ArrayList<SharedDataItem> sharedDataItems) {
         if (null != sharedDataItems) {
-            mSharedDataItems = new ArrayList<>(sharedDataItems);
+            if (null == mMediasSendingSpan) {
+                mMediasSendingSpan = VectorTracer.beginAsyncSpan(VectorTracer.SPAN_MEDIAS_SEND);
+            }
+
+            VectorTracer.incrementCounter(VectorTracer.COUNTER_SENT_MEDIAS, sharedDataItems.size());
+
+            synchronized (mPreparedMedias) {
+                cancelPreparations();
+                mSharedDataItems = new ArrayList<>(sharedDataItems);
+            }
+
             sendMedias();
         }
     }
 
+    /**
+     * Provide the max size of the sent images.
+     * The largest compression whose estimated size fits in the budget is automatically selected.
+     * It is only set when the user enabled the data saver and the network is metered.
+     * @return the max size in bytes, 0 to let the user select the compression.
+     */
+    private long getImageBytesBudget() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return 0;
+        }
+
+        ConnectivityManager connectivityManager = (ConnectivityManager) mVectorRoomActivity.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        if ((null != connectivityManager) && connectivityManager.isActiveNetworkMetered()
+                && (ConnectivityManager.RESTRICT_BACKGROUND_STATUS_ENABLED == connectivityManager.getRestrictBackgroundStatus())) {
+            return DATA_SAVER_IMAGE_BYTES_BUDGET;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Cancel the pending medias sending.
+     * The medias which are already uploading are not cancelled.
+     */
+    public void cancelMediasSending() {
+        synchronized (mPreparedMedias) {
+            if (null != mSharedDataItems) {
+                Log.d(LOG_TAG, "cancelMediasSending : " + mSharedDataItems.size() + " items are cancelled");
+                mSharedDataItems.clear();
+            }
+
+            cancelPreparations();
+        }
+
+        sendMedias();
+    }
+
+    /**
+     * Cancel the pending medias preparations.
+     * It must be called with the mPreparedMedias lock.
+     */
+    private void cancelPreparations() {
+        for (MediaPreparation preparation : mPreparedMedias) {
+            preparation.cancel();
+        }
+
+        mPreparedMedias.clear();
+    }
+
+    /**
+     * Start the preparation of the items which are not yet prepared.
+     * The preparation order is the sending order.
+     */
+    private void prepareMedias() {
+        synchronized (mPreparedMedias) {
+            if (null == mSharedDataItems) {
+                return;
+            }
+
+            for (int index = mPreparedMedias.size(); index < mSharedDataItems.size(); index++) {
+                MediaPreparation preparation = new MediaPreparation(mSharedDataItems.get(index));
+                preparation.mFuture = mMediasPreparationExecutor.submit(preparation);
+                mPreparedMedias.add(preparation);
+            }
+        }
+    }
+
+    /**
+     * Remove the first item to send
+     */
+    private void removeFirstItem() {
+        synchronized (mPreparedMedias) {
+            // GA issue
+            if ((null != mSharedDataItems) && (mSharedDataItems.size() > 0)) {
+                mSharedDataItems.remove(0);
+            }
+
+            if (mPreparedMedias.size() > 0) {
+                mPreparedMedias.remove(0);
+            }
+        }
+    }
+
     /**
      * Send a list of images from their URIs
      */
@@ -167,11 +376,27 @@ public class VectorRoomMediasSender {
             return;
         }
 
-        // detect end of messages sending
-        if ((null == mSharedDataItems) || (0 == mSharedDataItems.size())) {
+        final int itemsCount;
+
+        synchronized (mPreparedMedias) {
+            itemsCount = (null == mSharedDataItems) ? 0 : mSharedDataItems.size();
+
+            // detect end of messages sending
+            if (0 == itemsCount) {
+                mSharedDataItems = null;
+                cancelPreparations();
+            }
+        }
+
+        if (0 == itemsCount) {
             Log.d(LOG_TAG, "sendMedias : done");
+
+            if (null != mMediasSendingSpan) {
+                mMediasSendingSpan.end();
+                mMediasSendingSpan = null;
+            }
+
             mImageCompressionDescription = null;
-            mSharedDataItems = null;
 
             mVectorRoomActivity.runOnUiThread(new Runnable() {
                 @Override
@@ -189,26 +414,45 @@ public class VectorRoomMediasSender {
         mVectorRoomActivity.cancelSelectionMode();
         mVectorRoomActivity.setProgressVisibility(View.VISIBLE);
 
-        Log.d(LOG_TAG, "sendMedias : " + mSharedDataItems.size() + " items to send");
+        Log.d(LOG_TAG, "sendMedias : " + itemsCount + " items to send");
+
+        // prepare the items in the background
+        prepareMedias();
 
         mMediasSendingHandler.post(new Runnable() {
             @Override
             public void run() {
-                SharedDataItem sharedDataItem = mSharedDataItems.get(0);
-                String mimeType = sharedDataItem.getMimeType(mVectorRoomActivity);
+                SharedDataItem sharedDataItem;
+                Future<PreparedMedia> future;
 
-                // avoid null case
-                if (null == mimeType) {
-                    mimeType = "";
+                synchronized (mPreparedMedias) {
+                    // the items might have been cancelled
+                    if ((null == mSharedDataItems) || (0 == mSharedDataItems.size()) || (0 == mPreparedMedias.size())) {
+                        return;
+                    }
+
+                    sharedDataItem = mSharedDataItems.get(0);
+                    future = mPreparedMedias.get(0).mFuture;
                 }
 
+                PreparedMedia preparedMedia = null;
+
+                // wait that the first item is prepared
+                try {
+                    preparedMedia = future.get();
+                } catch (CancellationException e) {
+                    Log.d(LOG_TAG, "sendMedias : the preparation has been cancelled");
+                    return;
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "sendMedias : the preparation failed " + e.getMessage());
+                }
+
+                String mimeType = (null != preparedMedia) ? preparedMedia.mMimeType : "";
+
                 if (TextUtils.equals(ClipDescription.MIMETYPE_TEXT_INTENT, mimeType)) {
                     Log.d(LOG_TAG, "sendMedias :  unsupported mime type");
                     // don't know how to manage it -> skip it
-                    // GA issue
-                    if (mSharedDataItems.size() > 0) {
-                        mSharedDataItems.remove(0);
-                    }
+                    removeFirstItem();
                     sendMedias();
                 } else if ((null == sharedDataItem.getUri()) &&  (TextUtils.equals(ClipDescription.MIMETYPE_TEXT_PLAIN, mimeType) || TextUtils.equals(ClipDescription.MIMETYPE_TEXT_HTML, mimeType))) {
                     sendTextMessage(sharedDataItem);
@@ -218,18 +462,13 @@ public class VectorRoomMediasSender {
                     if (null == sharedDataItem.getUri()) {
                         Log.e(LOG_TAG, "sendMedias : null uri");
                         // manage others
-                        if (mSharedDataItems.size() > 0) {
-                            mSharedDataItems.remove(0);
-                        }
+                        removeFirstItem();
                         sendMedias();
                         return;
                     }
 
-                    final String fFilename = sharedDataItem.getFileName(mVectorRoomActivity);
-                    ResourceUtils.Resource resource = ResourceUtils.openResource(mVectorRoomActivity, sharedDataItem.getUri(), sharedDataItem.getMimeType(mVectorRoomActivity));
-
-                    if (null == resource) {
-                        Log.e(LOG_TAG, "sendMedias : " + fFilename + " is not found");
+                    if ((null == preparedMedia) || (null == preparedMedia.mMediaUrl)) {
+                        Log.e(LOG_TAG, "sendMedias : " + sharedDataItem.getUri() + " is not found");
 
                         mVectorRoomActivity.runOnUiThread(new Runnable() {
                             @Override
@@ -241,26 +480,100 @@ public class VectorRoomMediasSender {
                         });
 
                         // manage others
-                        if (mSharedDataItems.size() > 0) {
-                            mSharedDataItems.remove(0);
-                        }
+                        removeFirstItem();
                         sendMedias();
 
                         return;
                     }
 
                     if (mimeType.startsWith("image/")) {
-                        sendImageMessage(sharedDataItem, resource);
+                        sendImageMessage(preparedMedia);
                     } else if (mimeType.startsWith("video/")) {
-                        sendVideoMessage(sharedDataItem, resource);
+                        sendVideoMessage(preparedMedia);
                     } else {
-                        sendFileMessage(sharedDataItem, resource);
+                        sendFileMessage(preparedMedia);
                     }
                 }
             }
         });
     }
 
+    /**
+     * Prepare a media to be sent.
+     * It is called in a preparation thread.
+     * @param sharedDataItem the item to prepare.
+     * @return the prepared media
+     */
+    private PreparedMedia prepareMedia(SharedDataItem sharedDataItem) {
+        PreparedMedia preparedMedia = new PreparedMedia();
+
+        String mimeType = sharedDataItem.getMimeType(mVectorRoomActivity);
+
+        // avoid null case
+        if (null == mimeType) {
+            mimeType = "";
+        }
+
+        preparedMedia.mMimeType = mimeType;
+
+        // text or unsupported items
+        if ((null == sharedDataItem.getUri()) || TextUtils.equals(ClipDescription.MIMETYPE_TEXT_INTENT, mimeType)) {
+            return preparedMedia;
+        }
+
+        preparedMedia.mFilename = sharedDataItem.getFileName(mVectorRoomActivity);
+
+        ResourceUtils.Resource resource = ResourceUtils.openResource(mVectorRoomActivity, sharedDataItem.getUri(), mimeType);
+
+        if (null == resource) {
+            return preparedMedia;
+        }
+
+        // save the file in the filesystem
+        preparedMedia.mMediaUrl = mMediasCache.saveMedia(resource.mContentStream, null, mimeType);
+        resource.close();
+
+        if (null == preparedMedia.mMediaUrl) {
+            return preparedMedia;
+        }
+
+        if (mimeType.startsWith("image/")) {
+            preparedMedia.mThumbnailUrl = getImageThumbnailUrl(sharedDataItem, preparedMedia.mMediaUrl);
+
+            // the compression has already been selected
+            String imageCompressionDescription = mImageCompressionDescription;
+            long imageBytesBudget = (null == imageCompressionDescription) ? getImageBytesBudget() : 0;
+
+            if (((null != imageCompressionDescription) || (imageBytesBudget > 0)) && (null != preparedMedia.mThumbnailUrl) && isResizableImage(mimeType)) {
+                try {
+                    Uri uri = Uri.parse(preparedMedia.mMediaUrl);
+                    String filename = uri.getPath();
+                    int rotationAngle = ImageUtils.getRotationAngleForBitmap(mVectorRoomActivity, uri);
+                    ImageCompressionSizes imageSizes = computeImageSizes(filename);
+
+                    if (null != imageSizes) {
+                        ImageSize expectedSize;
+
+                        if (null != imageCompressionDescription) {
+                            expectedSize = imageSizes.getImageSize(mVectorRoomActivity, imageCompressionDescription);
+                        } else {
+                            expectedSize = selectImageSize(filename, imageSizes, imageBytesBudget);
+                        }
+
+                        preparedMedia.mMediaUrl = resizeImage(preparedMedia.mMediaUrl, filename, imageSizes.mFullImageSize, expectedSize, rotationAngle);
+                        preparedMedia.mIsResized = true;
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "prepareMedia : resize failed " + e.getMessage());
+                }
+            }
+        } else if (mimeType.startsWith("video/")) {
+            preparedMedia.mThumbnailUrl = mVectorMessageListFragment.getVideoThumbnailUrl(preparedMedia.mMediaUrl);
+        }
+
+        return preparedMedia;
+    }
+
     //================================================================================
     // text messages management
     //================================================================================
@@ -295,9 +608,7 @@ public class VectorRoomMediasSender {
         });
 
         // manage others
-        if (mSharedDataItems.size() > 0) {
-            mSharedDataItems.remove(0);
-        }
+        removeFirstItem();
         sendMedias();
     }
 
@@ -307,26 +618,18 @@ public class VectorRoomMediasSender {
 
     /**
      * Send an video message.
-     * @param sharedDataItem the item to send
-     * @param resource the media resource
+     * @param preparedMedia the prepared media
      */
-    private void sendVideoMessage(final SharedDataItem sharedDataItem, final ResourceUtils.Resource resource) {
+    private void sendVideoMessage(final PreparedMedia preparedMedia) {
         mVectorRoomActivity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                String mimeType = sharedDataItem.getMimeType(mVectorRoomActivity);
-                String filename =  sharedDataItem.getFileName(mVectorRoomActivity);
-
-                String mediaUrl = mMediasCache.saveMedia(resource.mContentStream, null, mimeType);
-                mVectorMessageListFragment.uploadVideoContent(mediaUrl, mVectorMessageListFragment.getVideoThumbnailUrl(mediaUrl), filename, mimeType);
-                resource.close();
+                mVectorMessageListFragment.uploadVideoContent(preparedMedia.mMediaUrl, preparedMedia.mThumbnailUrl, preparedMedia.mFilename, preparedMedia.mMimeType);
             }
         });
 
         // manage others
-        if (mSharedDataItems.size() > 0) {
-            mSharedDataItems.remove(0);
-        }
+        removeFirstItem();
         sendMedias();
     }
 
@@ -336,26 +639,18 @@ public class VectorRoomMediasSender {
 
     /**
      * Send a file message.
-     * @param sharedDataItem the item to send
-     * @param resource the media resource
+     * @param preparedMedia the prepared media
      */
-    private void sendFileMessage(final SharedDataItem sharedDataItem, final ResourceUtils.Resource resource) {
+    private void sendFileMessage(final PreparedMedia preparedMedia) {
         mVectorRoomActivity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                String mimeType = sharedDataItem.getMimeType(mVectorRoomActivity);
-                String filename =  sharedDataItem.getFileName(mVectorRoomActivity);
-
-                String mediaUrl = mMediasCache.saveMedia(resource.mContentStream, null, mimeType);
-                mVectorMessageListFragment.uploadFileContent(mediaUrl, mimeType, filename);
-                resource.close();
+                mVectorMessageListFragment.uploadFileContent(preparedMedia.mMediaUrl, preparedMedia.mMimeType, preparedMedia.mFilename);
             }
         });
 
         // manage others
-        if (mSharedDataItems.size() > 0) {
-            mSharedDataItems.remove(0);
-        }
+        removeFirstItem();
         sendMedias();
     }
 
@@ -364,16 +659,30 @@ public class VectorRoomMediasSender {
     //================================================================================
 
     /**
-     * Send an image message.
-     * @param sharedDataItem the item to send
-     * @param resource the media resource
+     * Compute the thumbnail of a shared image.
+     * @param sharedDataItem the shared item
+     * @param mediaUrl the image url in the medias cache
+     * @return the thumbnail url, null if it cannot be computed
      */
-    private void sendImageMessage(final SharedDataItem sharedDataItem, final ResourceUtils.Resource resource) {
-        String mimeType = sharedDataItem.getMimeType(mVectorRoomActivity);
+    private String getImageThumbnailUrl(SharedDataItem sharedDataItem, String mediaUrl) {
+        String thumbnailVariant = "room_" + mVectorMessageListFragment.getMaxThumbnailWith() + "x" + mVectorMessageListFragment.getMaxThumbnailHeight();
 
-        // save the file in the filesystem
-        String mediaUrl = mMediasCache.saveMedia(resource.mContentStream, null, mimeType);
-        resource.close();
+        // already computed
+        File cachedThumbnailFile = VectorThumbnailCache.get(mVectorRoomActivity, sharedDataItem.getUri(), thumbnailVariant);
+
+        if (null != cachedThumbnailFile) {
+            try {
+                FileInputStream thumbnailStream = new FileInputStream(cachedThumbnailFile);
+                String thumbnailURL = mMediasCache.saveMedia(thumbnailStream, null, CommonActivityUtils.MIME_TYPE_JPEG);
+                thumbnailStream.close();
+
+                if (null != thumbnailURL) {
+                    return thumbnailURL;
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "getImageThumbnailUrl : cannot read the cached thumbnail " + e.getMessage());
+            }
+        }
 
         // compute the thumbnail
         Bitmap thumbnailBitmap = sharedDataItem.getFullScreenImageKindThumbnail(mVectorRoomActivity);
@@ -404,21 +713,37 @@ public class VectorRoomMediasSender {
             ImageUtils.rotateImage(mVectorRoomActivity, thumbnailURL, rotationAngle, mMediasCache);
         }
 
-        final String fThumbnailURL = thumbnailURL;
-        final String fMediaUrl = mediaUrl;
-        final String fMimeType = mimeType;
+        // the encoded thumbnail is cached
+        if (null != thumbnailURL) {
+            VectorThumbnailCache.put(mVectorRoomActivity, sharedDataItem.getUri(), thumbnailVariant, new File(Uri.parse(thumbnailURL).getPath()));
+        }
+
+        return thumbnailURL;
+    }
 
+    /**
+     * Send an image message.
+     * @param preparedMedia the prepared media
+     */
+    private void sendImageMessage(final PreparedMedia preparedMedia) {
         mVectorRoomActivity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                if ((null != mSharedDataItems) && (mSharedDataItems.size() > 0)) {
-                    sendImageMessage(fThumbnailURL, fMediaUrl, sharedDataItem.getFileName(mVectorRoomActivity), fMimeType, new OnImageUploadListener() {
+                boolean hasItems;
+
+                synchronized (mPreparedMedias) {
+                    hasItems = (null != mSharedDataItems) && (mSharedDataItems.size() > 0);
+                }
+
+                if (!hasItems) {
+                    // the sending has been cancelled while the media was prepared
+                    deleteMediaFile(preparedMedia.mMediaUrl);
+                    deleteMediaFile(preparedMedia.mThumbnailUrl);
+                } else {
+                    OnImageUploadListener listener = new OnImageUploadListener() {
                         @Override
                         public void onDone() {
-                            // reported by GA
-                            if ((null != mSharedDataItems) && (mSharedDataItems.size() > 0)){
-                                mSharedDataItems.remove(0);
-                            }
+                            removeFirstItem();
                             // go to the next item
                             sendMedias();
                         }
@@ -426,13 +751,16 @@ public class VectorRoomMediasSender {
                         @Override
                         public void onCancel() {
                             // cancel any media sending
-                            // reported by GA
-                            if (null != mSharedDataItems) {
-                                mSharedDataItems.clear();
-                            }
-                            sendMedias();
+                            cancelMediasSending();
                         }
-                    });
+                    };
+
+                    if (preparedMedia.mIsResized) {
+                        mVectorMessageListFragment.uploadImageContent(null, null, preparedMedia.mThumbnailUrl, preparedMedia.mMediaUrl, preparedMedia.mFilename, preparedMedia.mMimeType);
+                        listener.onDone();
+                    } else {
+                        sendImageMessage(preparedMedia.mThumbnailUrl, preparedMedia.mMediaUrl, preparedMedia.mFilename, preparedMedia.mMimeType, listener);
+                    }
                 }
             }
         });
@@ -629,6 +957,30 @@ public class VectorRoomMediasSender {
         }
     }
 
+    /**
+     * Tells if an image can be resized before being sent.
+     * @param mimeType the image mime type
+     * @return true if the image can be resized
+     */
+    private static boolean isResizableImage(String mimeType) {
+        return CommonActivityUtils.MIME_TYPE_JPEG.equals(mimeType) || CommonActivityUtils.MIME_TYPE_JPG.equals(mimeType) || CommonActivityUtils.MIME_TYPE_IMAGE_ALL.equals(mimeType);
+    }
+
+    /**
+     * Compute the compressed image sizes of an image file.
+     * @param filename the image filename
+     * @return the compression sizes, null if the image cannot be read
+     */
+    private ImageCompressionSizes computeImageSizes(String filename) {
+        BitmapFactory.Options options = VectorImageResizer.decodeBounds(filename);
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        return computeImageSizes(options.outWidth, options.outHeight);
+    }
+
     /**
      * Compute the compressed image sizes.
      * @param imageWidth the image width
@@ -676,6 +1028,9 @@ public class VectorRoomMediasSender {
         return imageCompressionSizes;
     }
 
+    // the JPEG quality of the resized images
+    private static final int RESIZED_IMAGE_QUALITY = 75;
+
     /**
      * @return the estimated file size (in bytes)
      */
@@ -689,35 +1044,93 @@ public class VectorRoomMediasSender {
     }
 
     /**
-     * Add an entry in the dialog lists.
-     * @param context the context.
-     * @param textsList the texts list.
-     * @param descriptionText the image description text
-     * @param imageSize the image size.
-     * @param fileSize the file size (in bytes)
+     * Quickly estimate the file sizes of the image compressions from their pixels count.
+     * @param imageSizes the image compressions
+     * @param imageFileSize the image file size
+     * @return the estimated file sizes (in bytes) in the getImageSizesList order
      */
-    private static void addDialogEntry (Context context, ArrayList<String> textsList, String descriptionText, ImageSize imageSize, int fileSize) {
-        if ((null != imageSize) && (null != textsList)) {
-            textsList.add(descriptionText + ": " + android.text.format.Formatter.formatFileSize(context, fileSize) + " (" + imageSize.mWidth + "x" + imageSize.mHeight + ")");
+    private static long[] estimateFileSizesFromPixels(ImageCompressionSizes imageSizes, long imageFileSize) {
+        List<ImageSize> imageSizesList = imageSizes.getImageSizesList();
+        long[] fileSizes = new long[imageSizesList.size()];
+
+        for (int i = 0; i < fileSizes.length; i++) {
+            fileSizes[i] = (imageSizesList.get(i) == imageSizes.mFullImageSize) ? imageFileSize : Math.min(estimateFileSize(imageSizesList.get(i)), imageFileSize);
         }
+
+        return fileSizes;
+    }
+
+    /**
+     * Estimate the file sizes of the image compressions by encoding some samples of the image.
+     * It must be called in a background thread.
+     * @param filename the image filename
+     * @param imageSizes the image compressions
+     * @param imageFileSize the image file size
+     * @return the estimated file sizes (in bytes) in the getImageSizesList order
+     */
+    private static long[] estimateFileSizes(String filename, ImageCompressionSizes imageSizes, long imageFileSize) {
+        long startTime = System.currentTimeMillis();
+
+        List<ImageSize> imageSizesList = imageSizes.getImageSizesList();
+        long[] fileSizes = estimateFileSizesFromPixels(imageSizes, imageFileSize);
+
+        for (int i = 0; i < fileSizes.length; i++) {
+            ImageSize imageSize = imageSizesList.get(i);
+
+            if (imageSize != imageSizes.mFullImageSize) {
+                long estimatedSize = VectorImageResizer.estimateJpegSize(filename, imageSize.mWidth, imageSize.mHeight, RESIZED_IMAGE_QUALITY);
+
+                if (estimatedSize > 0) {
+                    fileSizes[i] = Math.min(estimatedSize, imageFileSize);
+                }
+            }
+        }
+
+        Log.d(LOG_TAG, "estimateFileSizes : done in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        return fileSizes;
+    }
+
+    /**
+     * Select the largest image compression whose estimated file size fits in a budget.
+     * It must be called in a background thread.
+     * @param filename the image filename
+     * @param imageSizes the image compressions
+     * @param imageBytesBudget the max file size (in bytes)
+     * @return the image size, null if the image is not resized.
+     */
+    private ImageSize selectImageSize(String filename, ImageCompressionSizes imageSizes, long imageBytesBudget) {
+        List<ImageSize> imageSizesList = imageSizes.getImageSizesList();
+        long[] fileSizes = estimateFileSizes(filename, imageSizes, new File(filename).length());
+
+        for (int i = 0; i < fileSizes.length; i++) {
+            if (fileSizes[i] <= imageBytesBudget) {
+                return (imageSizesList.get(i) == imageSizes.mFullImageSize) ? null : imageSizesList.get(i);
+            }
+        }
+
+        // use the smallest one
+        return imageSizesList.get(imageSizesList.size() - 1);
     }
 
     /**
      * Create the image compression texts list.
      * @param context  the context
      * @param imageSizes the image compressions
-     * @param imagefileSize the image file size
+     * @param fileSizes the estimated file sizes (in bytes) in the getImageSizesList order
      * @return the texts list to display
      */
-    private static String[] getImagesCompressionTextsList(Context context, ImageCompressionSizes imageSizes, int imagefileSize) {
-        final ArrayList<String> textsList = new ArrayList<>();
-
-        addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_original), imageSizes.mFullImageSize, imagefileSize);
-        addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_large), imageSizes.mLargeImageSize, Math.min(estimateFileSize(imageSizes.mLargeImageSize), imagefileSize));
-        addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_medium), imageSizes.mMediumImageSize, Math.min(estimateFileSize(imageSizes.mMediumImageSize), imagefileSize));
-        addDialogEntry(context, textsList, context.getString(R.string.compression_opt_list_small), imageSizes.mSmallImageSize, Math.min(estimateFileSize(imageSizes.mSmallImageSize), imagefileSize));
+    private static String[] getImagesCompressionTextsList(Context context, ImageCompressionSizes imageSizes, long[] fileSizes) {
+        List<ImageSize> imageSizesList = imageSizes.getImageSizesList();
+        List<String> descriptionsList = imageSizes.getImageSizesDescription(context);
+        String[] texts = new String[imageSizesList.size()];
+
+        for (int i = 0; i < texts.length; i++) {
+            ImageSize imageSize = imageSizesList.get(i);
+            texts[i] = descriptionsList.get(i) + ": " + android.text.format.Formatter.formatFileSize(context, fileSizes[i]) + " (" + imageSize.mWidth + "x" + imageSize.mHeight + ")";
+        }
 
-        return textsList.toArray(new String[textsList.size()]);
+        return texts;
     }
 
     /**
@@ -733,39 +1146,39 @@ public class VectorRoomMediasSender {
     private String resizeImage(String anImageUrl, String filename, ImageSize srcImageSize, ImageSize dstImageSize, int rotationAngle) {
         String imageUrl = anImageUrl;
 
-        try {
-            // got a dst image size
-            if (null!= dstImageSize) {
-                FileInputStream imageStream = new FileInputStream(new File(filename));
+        // nothing to do
+        if ((null == dstImageSize) && (0 == rotationAngle)) {
+            return imageUrl;
+        }
 
-                InputStream resizeBitmapStream = null;
+        // the full size image is only rotated
+        ImageSize expectedSize = (null != dstImageSize) ? dstImageSize : srcImageSize;
 
-                try {
-                    resizeBitmapStream = ImageUtils.resizeImage(imageStream, -1, (srcImageSize.mWidth + dstImageSize.mWidth - 1) / dstImageSize.mWidth, 75);
-                } catch (OutOfMemoryError ex) {
-                    Log.e(LOG_TAG, "resizeImage out of memory : " + ex.getMessage());
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "resizeImage failed : " + e.getMessage());
-                }
+        // the user selected a reduced size
+        boolean isReduced = (expectedSize.mWidth < srcImageSize.mWidth) || (expectedSize.mHeight < srcImageSize.mHeight);
 
-                if (null != resizeBitmapStream) {
-                    String bitmapURL = mMediasCache.saveMedia(resizeBitmapStream, null, CommonActivityUtils.MIME_TYPE_JPEG);
+        File resizedFile = null;
 
-                    if (null != bitmapURL) {
-                        imageUrl = bitmapURL;
-                    }
+        try {
+            resizedFile = File.createTempFile("resized", ".jpg", mVectorRoomActivity.getCacheDir());
 
-                    resizeBitmapStream.close();
-                }
-            }
+            // resize and apply the exif rotation in a single pass
+            // the original size is never reduced : the source file is sent unchanged if it cannot be rotated
+            if (VectorImageResizer.resizeAndRotate(filename, expectedSize.mWidth, expectedSize.mHeight, rotationAngle, RESIZED_IMAGE_QUALITY, isReduced, resizedFile)) {
+                FileInputStream resizedStream = new FileInputStream(resizedFile);
+                String bitmapURL = mMediasCache.saveMedia(resizedStream, null, CommonActivityUtils.MIME_TYPE_JPEG);
+                resizedStream.close();
 
-            // try to apply exif rotation
-            if (0 != rotationAngle) {
-                // rotate the image content
-                ImageUtils.rotateImage(mVectorRoomActivity, imageUrl, rotationAngle, mMediasCache);
+                if (null != bitmapURL) {
+                    imageUrl = bitmapURL;
+                }
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "resizeImage " + e.getMessage());
+        } finally {
+            if ((null != resizedFile) && !resizedFile.delete()) {
+                Log.e(LOG_TAG, "resizeImage : cannot delete " + resizedFile.getPath());
+            }
         }
 
         return imageUrl;
@@ -788,36 +1201,21 @@ public class VectorRoomMediasSender {
         boolean isManaged = false;
 
         // check if the media could be resized
-        if ((null != aThumbnailURL) && (CommonActivityUtils.MIME_TYPE_JPEG.equals(anImageMimeType) || CommonActivityUtils.MIME_TYPE_JPG.equals(anImageMimeType) || CommonActivityUtils.MIME_TYPE_IMAGE_ALL.equals(anImageMimeType))) {
-            System.gc();
-            FileInputStream imageStream;
-
+        if ((null != aThumbnailURL) && isResizableImage(anImageMimeType)) {
             try {
                 Uri uri = Uri.parse(anImageUrl);
                 final String filename = uri.getPath();
 
                 final int rotationAngle = ImageUtils.getRotationAngleForBitmap(mVectorRoomActivity, uri);
 
-                imageStream = new FileInputStream(new File(filename));
-
-                int fileSize = imageStream.available();
+                final ImageCompressionSizes imageSizes = computeImageSizes(filename);
 
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                options.outWidth = -1;
-                options.outHeight = -1;
-
-                // retrieve the image size
-                try {
-                    BitmapFactory.decodeStream(imageStream, null, options);
-                } catch (OutOfMemoryError e) {
-                    Log.e(LOG_TAG, "sendImageMessage out of memory error : " + e.getMessage());
+                // the image cannot be read
+                if (null == imageSizes) {
+                    throw new Exception("cannot read " + filename);
                 }
 
-                final ImageCompressionSizes imageSizes = computeImageSizes(options.outWidth, options.outHeight);
-
-                imageStream.close();
+                final long fileSize = new File(filename).length();
 
                 // the user already selects a compression
                 if (null != mImageCompressionDescription) {
@@ -845,7 +1243,8 @@ public class VectorRoomMediasSender {
                         fragment.dismissAllowingStateLoss();
                     }
 
-                    String[] stringsArray = getImagesCompressionTextsList(mVectorRoomActivity, imageSizes, fileSize);
+                    // display a quick estimation, it is refined in the background
+                    final String[] stringsArray = getImagesCompressionTextsList(mVectorRoomActivity, imageSizes, estimateFileSizesFromPixels(imageSizes, fileSize));
 
                     final AlertDialog.Builder alert = new AlertDialog.Builder(mVectorRoomActivity);
                     alert.setTitle(mVectorRoomActivity.getString(im.vector.R.string.compression_options));
@@ -903,6 +1302,33 @@ public class VectorRoomMediasSender {
                             }
                         }
                     });
+
+                    final AlertDialog fImageSizesListDialog = mImageSizesListDialog;
+
+                    mMediasPreparationExecutor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            final long[] fileSizes = estimateFileSizes(filename, imageSizes, fileSize);
+
+                            mVectorRoomActivity.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    // the dialog is still displayed
+                                    if ((fImageSizesListDialog == mImageSizesListDialog) && fImageSizesListDialog.isShowing()) {
+                                        String[] texts = getImagesCompressionTextsList(mVectorRoomActivity, imageSizes, fileSizes);
+                                        // the dialog adapter is backed by stringsArray
+                                        System.arraycopy(texts, 0, stringsArray, 0, Math.min(texts.length, stringsArray.length));
+
+                                        ListAdapter adapter = fImageSizesListDialog.getListView().getAdapter();
+
+                                        if (adapter instanceof BaseAdapter) {
+                                            ((BaseAdapter) adapter).notifyDataSetChanged();
+                                        }
+                                    }
+                                }
+                            });
+                        }
+                    });
                 }
             } catch (Exception e) {
                 Log.e(LOG_TAG, "sendImageMessage failed " + e.getMessage());
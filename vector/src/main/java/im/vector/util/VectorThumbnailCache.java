@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Disk cache of the thumbnails computed from the shared medias.
+ * The thumbnails are indexed by the media content (URI, last modification date and size)
+ * so that an updated media is never rendered with a stale thumbnail.
+ */
+public class VectorThumbnailCache {
+    private static final String LOG_TAG = "VectorThumbnailCache";
+
+    // the cache folder in the application cache directory
+    private static final String THUMBNAILS_FOLDER = "thumbnails_cache";
+
+    // the max cache size
+    private static final long MAX_CACHE_SIZE = 20 * 1024 * 1024;
+
+    // the thumbnails JPEG quality
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    /**
+     * Compute the cache key of a media.
+     * @param context the context
+     * @param uri the media URI
+     * @param variant the thumbnail variant (size, rotation...)
+     * @return the key, null if the media content cannot be identified
+     */
+    private static String getKey(Context context, Uri uri, String variant) {
+        if ((null == context) || (null == uri)) {
+            return null;
+        }
+
+        long lastModified = -1;
+        long size = -1;
+
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            File file = new File(uri.getPath());
+
+            if (file.exists()) {
+                lastModified = file.lastModified();
+                size = file.length();
+            }
+        } else if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            Cursor cursor = null;
+
+            try {
+                cursor = context.getContentResolver().query(uri, null, null, null, null);
+
+                if ((null != cursor) && cursor.moveToFirst()) {
+                    int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    int dateIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+
+                    if ((sizeIndex >= 0) && !cursor.isNull(sizeIndex)) {
+                        size = cursor.getLong(sizeIndex);
+                    }
+
+                    if ((dateIndex >= 0) && !cursor.isNull(dateIndex)) {
+                        lastModified = cursor.getLong(dateIndex);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## getKey() : query failed " + e.getMessage());
+            } finally {
+                if (null != cursor) {
+                    cursor.close();
+                }
+            }
+        }
+
+        // cannot identify the content
+        // e.g. an edited media with the same size and no date would hit a stale thumbnail
+        if ((lastModified < 0) || (size < 0)) {
+            return null;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest((uri.toString() + "|" + lastModified + "|" + size + "|" + variant).getBytes("UTF-8"));
+
+            StringBuilder builder = new StringBuilder();
+
+            for (byte b : hash) {
+                builder.append(String.format("%02x", b & 0xFF));
+            }
+
+            return builder.toString();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## getKey() : digest failed " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * @param context the context
+     * @return the cache folder
+     */
+    private static File getCacheFolder(Context context) {
+        File folder = new File(context.getCacheDir(), THUMBNAILS_FOLDER);
+
+        if (!folder.exists() && !folder.mkdirs()) {
+            Log.e(LOG_TAG, "## getCacheFolder() : cannot create " + folder.getPath());
+        }
+
+        return folder;
+    }
+
+    /**
+     * Provides the cached thumbnail of a media.
+     * @param context the context
+     * @param uri the media URI
+     * @param variant the thumbnail variant
+     * @return the thumbnail file, null if it is not cached
+     */
+    public static File get(Context context, Uri uri, String variant) {
+        String key = getKey(context, uri, variant);
+
+        if (null == key) {
+            return null;
+        }
+
+        File file = new File(getCacheFolder(context), key);
+
+        if (file.exists()) {
+            // LRU
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+
+        return null;
+    }
+
+    /**
+     * Store the thumbnail of a media.
+     * @param context the context
+     * @param uri the media URI
+     * @param variant the thumbnail variant
+     * @param bitmap the thumbnail
+     * @return the thumbnail file, null if it cannot be cached
+     */
+    public static File put(Context context, Uri uri, String variant, Bitmap bitmap) {
+        String key = getKey(context, uri, variant);
+
+        if ((null == key) || (null == bitmap)) {
+            return null;
+        }
+
+        File file = new File(getCacheFolder(context), key);
+        File tmpFile = getTmpFile(file);
+
+        try {
+            OutputStream outputStream = new FileOutputStream(tmpFile);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, outputStream);
+            outputStream.close();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## put() : failed " + e.getMessage());
+            tmpFile.delete();
+            return null;
+        }
+
+        return commit(context, tmpFile, file);
+    }
+
+    /**
+     * Store an encoded thumbnail of a media.
+     * @param context the context
+     * @param uri the media URI
+     * @param variant the thumbnail variant
+     * @param thumbnailFile the encoded thumbnail, it is copied
+     * @return the thumbnail file, null if it cannot be cached
+     */
+    public static File put(Context context, Uri uri, String variant, File thumbnailFile) {
+        String key = getKey(context, uri, variant);
+
+        if ((null == key) || (null == thumbnailFile) || !thumbnailFile.exists()) {
+            return null;
+        }
+
+        File file = new File(getCacheFolder(context), key);
+        File tmpFile = getTmpFile(file);
+
+        try {
+            InputStream inputStream = new FileInputStream(thumbnailFile);
+            OutputStream outputStream = new FileOutputStream(tmpFile);
+
+            byte[] buffer = new byte[8192];
+            int len;
+
+            while ((len = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, len);
+            }
+
+            inputStream.close();
+            outputStream.close();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## put() : copy failed " + e.getMessage());
+            tmpFile.delete();
+            return null;
+        }
+
+        return commit(context, tmpFile, file);
+    }
+
+    /**
+     * Provides the file in which a thumbnail is written before being moved to its cache file.
+     * The preparation threads can write the same thumbnail at the same time.
+     * @param file the cache file
+     * @return the temporary file
+     */
+    private static File getTmpFile(File file) {
+        return new File(file.getParent(), file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    /**
+     * Move a written thumbnail to its cache file, so that a partial thumbnail is never read.
+     * @param context the context
+     * @param tmpFile the written thumbnail
+     * @param file the cache file
+     * @return the cache file, null if the move failed
+     */
+    private static File commit(Context context, File tmpFile, File file) {
+        if (!tmpFile.renameTo(file)) {
+            Log.e(LOG_TAG, "## commit() : rename failed");
+            tmpFile.delete();
+            return null;
+        }
+
+        trim(context);
+        return file;
+    }
+
+    /**
+     * Remove the least recently used thumbnails until the cache fits its max size.
+     * @param context the context
+     */
+    private static synchronized void trim(Context context) {
+        File[] files = getCacheFolder(context).listFiles();
+
+        if (null == files) {
+            return;
+        }
+
+        long cacheSize = 0;
+
+        for (File file : files) {
+            cacheSize += file.length();
+        }
+
+        if (cacheSize <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            if (cacheSize <= MAX_CACHE_SIZE) {
+                break;
+            }
+
+            long length = file.length();
+
+            if (file.delete()) {
+                cacheSize -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.util;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lightweight tracing of the startup and of the hot paths.
+ * It records nested spans, marks and counters in a fixed size ring buffer.
+ * The records are written without lock, the oldest ones are overwritten.
+ * It does not depend on Google Analytics so it is also available in the F-Droid flavor.
+ */
+public class VectorTracer {
+    private static final String LOG_TAG = "VectorTracer";
+
+    // spans names
+    public static final String SPAN_STORE_PRELOAD = "storePreload";
+    public static final String SPAN_ROOMS_LIST_BUILD = "roomsListBuild";
+    public static final String SPAN_NOTIFICATION_REFRESH = "notificationRefresh";
+    public static final String SPAN_CONTACTS_LOAD = "contactsLoad";
+    public static final String SPAN_PIDS_LOOKUP = "pidsLookup";
+    public static final String SPAN_MEDIAS_SEND = "mediasSend";
+    public static final String SPAN_BACKGROUND_SYNC = "backgroundSync";
+    public static final String SPAN_STREAM_STATE_PREFIX = "streamState.";
+
+    // counters names
+    public static final String COUNTER_NOTIFICATION_REFRESHES = "notificationRefreshes";
+    public static final String COUNTER_LOOKED_UP_PIDS = "lookedUpPids";
+    public static final String COUNTER_SENT_MEDIAS = "sentMedias";
+    public static final String COUNTER_BACKGROUND_SYNC_WINDOWS = "backgroundSyncWindows";
+    public static final String COUNTER_STREAM_TRANSITIONS_PREFIX = "streamTransitions.";
+    public static final String COUNTER_COALESCED_CATCHUPS = "coalescedCatchups";
+
+    // the ring buffer size (must be a power of 2)
+    private static final int RING_BUFFER_SIZE = 1024;
+
+    // the max number of distinct marks whose latest value is kept
+    private static final int MAX_MARKS_COUNT = 64;
+
+    // records types
+    private static final int RECORD_SPAN = 0;
+    private static final int RECORD_MARK = 1;
+
+    /**
+     * A ring buffer record.
+     * It is immutable so it can be read while the buffer is written.
+     */
+    private static class Record {
+        final int mType;
+        final String mName;
+        final String mParentName;
+        final int mDepth;
+        final long mTimestamp;
+        final long mValue;
+        final String mLabel;
+        final String mThreadName;
+
+        Record(int type, String name, String parentName, int depth, long timestamp, long value, String label, String threadName) {
+            mType = type;
+            mName = name;
+            mParentName = parentName;
+            mDepth = depth;
+            mTimestamp = timestamp;
+            mValue = value;
+            mLabel = label;
+            mThreadName = threadName;
+        }
+    }
+
+    /**
+     * A span, i.e a timed section.
+     * The spans started on the same thread while this one is not ended are nested in it.
+     */
+    public static class Span {
+        private final String mName;
+        private final Span mParent;
+        private final int mDepth;
+        private final long mStartTime;
+        private final Thread mThread;
+        private final AtomicBoolean mIsEnded = new AtomicBoolean(false);
+
+        private Span(String name, Span parent) {
+            mName = name;
+            mParent = parent;
+            mDepth = (null == parent) ? 0 : parent.mDepth + 1;
+            mStartTime = System.currentTimeMillis();
+            mThread = Thread.currentThread();
+        }
+
+        /**
+         * End the span.
+         */
+        public void end() {
+            end(null);
+        }
+
+        /**
+         * End the span.
+         * It can be called from any thread, the next calls are ignored.
+         * @param label an optional description
+         */
+        public void end(String label) {
+            if (!mIsEnded.compareAndSet(false, true)) {
+                return;
+            }
+
+            if ((Thread.currentThread() == mThread) && (mCurrentSpan.get() == this)) {
+                mCurrentSpan.set(mParent);
+            }
+
+            addRecord(new Record(RECORD_SPAN, mName, (null == mParent) ? null : mParent.mName, mDepth, mStartTime, System.currentTimeMillis() - mStartTime, label, mThread.getName()));
+        }
+    }
+
+    // the records
+    private static final AtomicReferenceArray<Record> mRecords = new AtomicReferenceArray<>(RING_BUFFER_SIZE);
+
+    // the next record index (never reset)
+    private static final AtomicLong mNextRecordIndex = new AtomicLong(0);
+
+    // the counters
+    private static final ConcurrentHashMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+
+    // the latest value of each mark, kept out of the ring buffer so that they are never overwritten by the spans
+    private static final ConcurrentHashMap<String, String> mLatestMarks = new ConcurrentHashMap<>();
+
+    // the current span of each thread
+    private static final ThreadLocal<Span> mCurrentSpan = new ThreadLocal<>();
+
+    /**
+     * Add a record in the ring buffer.
+     * @param record the record
+     */
+    private static void addRecord(Record record) {
+        long index = mNextRecordIndex.getAndIncrement();
+        mRecords.set((int) (index & (RING_BUFFER_SIZE - 1)), record);
+    }
+
+    /**
+     * Start a span.
+     * It is nested in the current span of the thread.
+     * @param name the span name
+     * @return the span, to end it
+     */
+    public static Span beginSpan(String name) {
+        Span span = new Span(name, mCurrentSpan.get());
+        mCurrentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * Start a span which is ended asynchronously (e.g. in a request callback).
+     * The spans started later on this thread are not nested in it.
+     * @param name the span name
+     * @return the span, to end it
+     */
+    public static Span beginAsyncSpan(String name) {
+        return new Span(name, mCurrentSpan.get());
+    }
+
+    /**
+     * Record a span whose duration has been measured elsewhere.
+     * @param name the span name
+     * @param duration the duration in ms
+     * @param label an optional description
+     */
+    public static void recordSpan(String name, long duration, String label) {
+        Span parent = mCurrentSpan.get();
+
+        addRecord(new Record(RECORD_SPAN, name, (null == parent) ? null : parent.mName, (null == parent) ? 0 : parent.mDepth + 1,
+                System.currentTimeMillis() - duration, duration, label, Thread.currentThread().getName()));
+    }
+
+    /**
+     * Record a punctual value (e.g. a GA stat).
+     * @param name the mark name
+     * @param label an optional description
+     * @param value the value
+     */
+    public static void mark(String name, String label, long value) {
+        if ((mLatestMarks.size() < MAX_MARKS_COUNT) || mLatestMarks.containsKey(name)) {
+            mLatestMarks.put(name, TextUtils.isEmpty(label) ? (value + " ms") : label);
+        }
+
+        addRecord(new Record(RECORD_MARK, name, null, 0, System.currentTimeMillis(), value, label, Thread.currentThread().getName()));
+    }
+
+    /**
+     * Increment a counter.
+     * @param name the counter name
+     * @param delta the increment
+     */
+    public static void incrementCounter(String name, long delta) {
+        AtomicLong counter = mCounters.get(name);
+
+        if (null == counter) {
+            AtomicLong newCounter = new AtomicLong(0);
+            counter = mCounters.putIfAbsent(name, newCounter);
+
+            if (null == counter) {
+                counter = newCounter;
+            }
+        }
+
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * @return the records which are still in the ring buffer, from the oldest one.
+     */
+    private static List<Record> getRecords() {
+        List<Record> records = new ArrayList<>();
+        long lastIndex = mNextRecordIndex.get();
+
+        for (long index = Math.max(0, lastIndex - RING_BUFFER_SIZE); index < lastIndex; index++) {
+            Record record = mRecords.get((int) (index & (RING_BUFFER_SIZE - 1)));
+
+            if (null != record) {
+                records.add(record);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Provide the latest value of each mark.
+     * @return the marks description
+     */
+    public static String getMarks() {
+        Map<String, String> marks = new TreeMap<>(mLatestMarks);
+        StringBuilder builder = new StringBuilder();
+
+        for (String name : marks.keySet()) {
+            builder.append(name).append(" : ").append(marks.get(name)).append("\n");
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Dump the traces.
+     * @return the traces description
+     */
+    public static String dump() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("Counters\n");
+
+        for (String name : new TreeMap<>(mCounters).keySet()) {
+            builder.append("  ").append(name).append(" = ").append(mCounters.get(name).get()).append("\n");
+        }
+
+        builder.append("\nRecords\n");
+
+        for (Record record : getRecords()) {
+            builder.append(dateFormat.format(new Date(record.mTimestamp))).append(" [").append(record.mThreadName).append("] ");
+
+            for (int i = 0; i < record.mDepth; i++) {
+                builder.append("  ");
+            }
+
+            builder.append(record.mName);
+
+            if (RECORD_SPAN == record.mType) {
+                builder.append(" ").append(record.mValue).append(" ms");
+
+                if (null != record.mParentName) {
+                    builder.append(" (in ").append(record.mParentName).append(")");
+                }
+            } else {
+                builder.append(" = ").append(record.mValue);
+            }
+
+            if (!TextUtils.isEmpty(record.mLabel)) {
+                builder.append(" : ").append(record.mLabel);
+            }
+
+            builder.append("\n");
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Dump the traces into a file.
+     * @param file the file
+     * @return true if the file has been written
+     */
+    public static boolean dumpToFile(File file) {
+        try {
+            OutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(dump().getBytes("UTF-8"));
+            outputStream.close();
+            return true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## dumpToFile() : failed " + e.getMessage());
+        }
+
+        return false;
+    }
+}
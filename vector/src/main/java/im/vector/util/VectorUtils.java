@@ -21,6 +21,7 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.ClipData;
 import android.content.ClipboardManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -61,17 +62,20 @@ import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.util.ImageUtils;
 import org.matrix.androidsdk.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.WeakHashMap;
 
 import im.vector.R;
 import im.vector.VectorApp;
@@ -277,8 +281,18 @@ public class VectorUtils {
     // Avatars generation
     //==============================================================================================================
 
-    // avatars cache
-    static final private LruCache<String, Bitmap> mAvatarImageByKeyDict = new LruCache<>(20 * 1024 * 1024);
+    // avatars cache : the generated avatars are indexed by initial, color and pixels size.
+    // its size is computed in bytes (1/16 of the heap).
+    static final private LruCache<String, Bitmap> mAvatarImageByKeyDict = new LruCache<String, Bitmap>((int) Math.min(Runtime.getRuntime().maxMemory() / 16, 20 * 1024 * 1024)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    };
+
+    // the avatar drawing objects are shared between the avatars creation
+    static private Paint mAvatarTextPaint = null;
+    static final private Rect mAvatarTextBounds = new Rect();
     // the avatars background color
     static final private ArrayList<Integer> mColorList = new ArrayList<>(Arrays.asList(0xff76cfa6, 0xff50e2c2, 0xfff4c371));
 
@@ -313,9 +327,19 @@ public class VectorUtils {
      * @return the generated bitmap
      */
     private static Bitmap createAvatarThumbnail(Context context, int backgroundColor, String text) {
+        return createAvatar(backgroundColor, text, getAvatarThumbnailSide(context));
+    }
+
+    /**
+     * Provides the thumbnail avatar side.
+     *
+     * @param context the context
+     * @return the avatar side in pixels
+     */
+    private static int getAvatarThumbnailSide(Context context) {
         float densityScale = context.getResources().getDisplayMetrics().density;
         // the avatar size is 42dp, convert it in pixels.
-        return createAvatar(backgroundColor, text, (int) (42 * densityScale));
+        return (int) (42 * densityScale);
     }
 
     /**
@@ -334,20 +358,25 @@ public class VectorUtils {
 
         canvas.drawColor(backgroundColor);
 
-        // prepare the text drawing
-        Paint textPaint = new Paint();
-        textPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.BOLD));
-        textPaint.setColor(Color.WHITE);
-        // the text size is proportional to the avatar size.
-        // by default, the avatar size is 42dp, the text size is 28 dp (not sp because it has to be fixed).
-        textPaint.setTextSize(pixelsSide * 2 / 3);
+        // the avatars are created from the UI thread and from the images thread
+        synchronized (mAvatarTextBounds) {
+            // prepare the text drawing
+            if (null == mAvatarTextPaint) {
+                mAvatarTextPaint = new Paint();
+                mAvatarTextPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.BOLD));
+                mAvatarTextPaint.setColor(Color.WHITE);
+            }
+
+            // the text size is proportional to the avatar size.
+            // by default, the avatar size is 42dp, the text size is 28 dp (not sp because it has to be fixed).
+            mAvatarTextPaint.setTextSize(pixelsSide * 2 / 3);
 
-        // get its size
-        Rect textBounds = new Rect();
-        textPaint.getTextBounds(text, 0, text.length(), textBounds);
+            // get its size
+            mAvatarTextPaint.getTextBounds(text, 0, text.length(), mAvatarTextBounds);
 
-        // draw the text in center
-        canvas.drawText(text, (canvas.getWidth() - textBounds.width() - textBounds.left) / 2, (canvas.getHeight() + textBounds.height() - textBounds.bottom) / 2, textPaint);
+            // draw the text in center
+            canvas.drawText(text, (canvas.getWidth() - mAvatarTextBounds.width() - mAvatarTextBounds.left) / 2, (canvas.getHeight() + mAvatarTextBounds.height() - mAvatarTextBounds.bottom) / 2, mAvatarTextPaint);
+        }
 
         // Return the avatar
         return bitmap;
@@ -404,20 +433,57 @@ public class VectorUtils {
      * @return the avatar.
      */
     public static Bitmap getAvatar(Context context, int backgroundColor, String aText, boolean create) {
-        String firstChar = getInitialLetter(aText);
-        String key = firstChar + "_" + backgroundColor;
+        return getAvatar(backgroundColor, getInitialLetter(aText), getAvatarThumbnailSide(context), create);
+    }
+
+    /**
+     * Returns an avatar from its initial letter.
+     *
+     * @param backgroundColor the background color.
+     * @param initial         the initial letter to display.
+     * @param pixelsSide      the avatar side in pixels
+     * @param create          create the avatar if it does not exist
+     * @return the avatar.
+     */
+    private static Bitmap getAvatar(int backgroundColor, String initial, int pixelsSide, boolean create) {
+        String key = initial + "_" + backgroundColor + "_" + pixelsSide;
 
         // check if the avatar is already defined
         Bitmap thumbnail = mAvatarImageByKeyDict.get(key);
 
         if ((null == thumbnail) && create) {
-            thumbnail = VectorUtils.createAvatarThumbnail(context, backgroundColor, firstChar);
+            thumbnail = VectorUtils.createAvatar(backgroundColor, initial, pixelsSide);
             mAvatarImageByKeyDict.put(key, thumbnail);
         }
 
         return thumbnail;
     }
 
+    /**
+     * @return the generated avatars cache size in bytes.
+     */
+    public static int getAvatarsCacheSize() {
+        return mAvatarImageByKeyDict.size();
+    }
+
+    /**
+     * Reduce the generated avatars cache size when the system asks to trim the memory.
+     * The evicted avatars are not recycled because they might still be displayed.
+     *
+     * @param level the trim memory level (ComponentCallbacks2.TRIM_MEMORY_XXX)
+     */
+    public static void onTrimMemory(int level) {
+        int sizeBefore = mAvatarImageByKeyDict.size();
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mAvatarImageByKeyDict.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mAvatarImageByKeyDict.trimToSize(mAvatarImageByKeyDict.maxSize() / 2);
+        }
+
+        Log.d(LOG_TAG, "## onTrimMemory() : level " + level + " avatars cache " + sizeBefore + " -> " + mAvatarImageByKeyDict.size() + " bytes");
+    }
+
     /**
      * Set the default vector avatar for a member.
      *
@@ -514,7 +580,7 @@ public class VectorUtils {
 
                 if (pixelsSide > 0) {
                     // get the avatar bitmap.
-                    bitmap = VectorUtils.createAvatar(VectorUtils.getAvatarColor(roomId), getInitialLetter(displayName), pixelsSide);
+                    bitmap = VectorUtils.getAvatar(VectorUtils.getAvatarColor(roomId), getInitialLetter(displayName), pixelsSide, true);
                 }
 
                 // until the dedicated avatar is loaded.
@@ -556,8 +622,141 @@ public class VectorUtils {
     private static android.os.Handler mImagesThreadHandler = null;
     private static Handler mUIHandler = null;
 
+    /**
+     * An avatar loading request.
+     * The requests are merged by session, avatar url, size and default avatar.
+     */
+    private static class AvatarRequest implements Runnable {
+        // the request key
+        final String mKey;
+
+        // the request parameters
+        final Context mContext;
+        final MXSession mSession;
+        final String mAvatarUrl;
+        final int mAvatarSize;
+        final int mBackgroundColor;
+        final String mInitial;
+
+        // the image views to refresh
+        // they are weakly referenced to let the recycled rows be released
+        final ArrayList<WeakReference<ImageView>> mImageViews = new ArrayList<>();
+
+        AvatarRequest(String key, Context context, MXSession session, String avatarUrl, int avatarSize, int backgroundColor, String initial) {
+            mKey = key;
+            mContext = context.getApplicationContext();
+            mSession = session;
+            mAvatarUrl = avatarUrl;
+            mAvatarSize = avatarSize;
+            mBackgroundColor = backgroundColor;
+            mInitial = initial;
+        }
+
+        /**
+         * Remove an image view and the released ones.
+         * It must be called with the mPendingAvatarRequestByKey lock.
+         *
+         * @param imageView the image view to remove
+         */
+        void removeImageView(ImageView imageView) {
+            Iterator<WeakReference<ImageView>> iterator = mImageViews.iterator();
+
+            while (iterator.hasNext()) {
+                ImageView item = iterator.next().get();
+
+                if ((null == item) || (item == imageView)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            final ArrayList<ImageView> imageViews = new ArrayList<>();
+
+            synchronized (mPendingAvatarRequestByKey) {
+                mPendingAvatarRequestByKey.remove(mKey);
+
+                for (WeakReference<ImageView> imageViewRef : mImageViews) {
+                    ImageView imageView = imageViewRef.get();
+
+                    if (null != imageView) {
+                        imageViews.add(imageView);
+                    }
+                }
+
+                mImageViews.clear();
+            }
+
+            // nothing to refresh, the image views have been recycled
+            if (imageViews.isEmpty() || !mSession.isAlive()) {
+                return;
+            }
+
+            // create the default avatar in the images thread
+            final Bitmap defaultAvatar = VectorUtils.getAvatar(mBackgroundColor, mInitial, getAvatarThumbnailSide(mContext), true);
+
+            mUIHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ImageView imageView : imageViews) {
+                        // test if the image view has not been bound to another request
+                        synchronized (mPendingAvatarRequestByKey) {
+                            if (AvatarRequest.this != mAvatarRequestByImageView.get(imageView)) {
+                                continue;
+                            }
+
+                            mAvatarRequestByImageView.remove(imageView);
+                        }
+
+                        if (null == imageView.getTag()) {
+                            imageView.setImageBitmap(defaultAvatar);
+                        }
+
+                        if (!MXMediasCache.isMediaUrlUnreachable(mAvatarUrl)) {
+                            mSession.getMediasCache().loadAvatarThumbnail(mSession.getHomeserverConfig(), imageView, mAvatarUrl, mAvatarSize, defaultAvatar);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // the pending avatar requests by key
+    private static final HashMap<String, AvatarRequest> mPendingAvatarRequestByKey = new HashMap<>();
+
+    // the pending avatar request of each image view
+    private static final Map<ImageView, AvatarRequest> mAvatarRequestByImageView = new WeakHashMap<>();
+
+    /**
+     * Cancel the pending avatar request of an image view.
+     * It must be called when the image view is recycled.
+     *
+     * @param imageView the image view
+     */
+    public static void cancelAvatarRequest(ImageView imageView) {
+        synchronized (mPendingAvatarRequestByKey) {
+            AvatarRequest request = mAvatarRequestByImageView.remove(imageView);
+
+            if (null != request) {
+                request.removeImageView(imageView);
+
+                // no more image view to refresh
+                if (request.mImageViews.isEmpty() && (mPendingAvatarRequestByKey.get(request.mKey) == request)) {
+                    mPendingAvatarRequestByKey.remove(request.mKey);
+
+                    if (null != mImagesThreadHandler) {
+                        mImagesThreadHandler.removeCallbacks(request);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Set the user avatar in an imageView.
+     * The image views requesting the same avatar are refreshed by a single request
+     * and the request of a recycled image view is cancelled.
      *
      * @param context     the context
      * @param session     the session
@@ -572,82 +771,55 @@ public class VectorUtils {
             return;
         }
 
+        // the image view might have been recycled
+        cancelAvatarRequest(imageView);
+
         // reset the imageView tag
         imageView.setTag(null);
 
-        if (session.getMediasCache().isAvatarThumbnailCached(avatarUrl, context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size))) {
-            session.getMediasCache().loadAvatarThumbnail(session.getHomeserverConfig(), imageView, avatarUrl, context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size));
-        } else {
-            if (null == mImagesThread) {
-                mImagesThread = new HandlerThread("ImagesThread", Thread.MIN_PRIORITY);
-                mImagesThread.start();
-                mImagesThreadHandler = new android.os.Handler(mImagesThread.getLooper());
-                mUIHandler = new Handler(Looper.getMainLooper());
-            }
+        int avatarSize = context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size);
 
-            final Bitmap bitmap = VectorUtils.getAvatar(imageView.getContext(), VectorUtils.getAvatarColor(userId), TextUtils.isEmpty(displayName) ? userId : displayName, false);
+        if (session.getMediasCache().isAvatarThumbnailCached(avatarUrl, avatarSize)) {
+            session.getMediasCache().loadAvatarThumbnail(session.getHomeserverConfig(), imageView, avatarUrl, avatarSize);
+            return;
+        }
 
-            // test if the default avatar has been computed
-            if (null != bitmap) {
-                imageView.setImageBitmap(bitmap);
+        if (null == mImagesThread) {
+            mImagesThread = new HandlerThread("ImagesThread", Thread.MIN_PRIORITY);
+            mImagesThread.start();
+            mImagesThreadHandler = new android.os.Handler(mImagesThread.getLooper());
+            mUIHandler = new Handler(Looper.getMainLooper());
+        }
 
-                final String tag = avatarUrl + userId + displayName;
-                imageView.setTag(tag);
+        int backgroundColor = VectorUtils.getAvatarColor(userId);
+        String initial = getInitialLetter(TextUtils.isEmpty(displayName) ? userId : displayName);
+        Bitmap defaultAvatar = VectorUtils.getAvatar(backgroundColor, initial, getAvatarThumbnailSide(context), false);
 
-                if (!MXMediasCache.isMediaUrlUnreachable(avatarUrl)) {
-                    mImagesThreadHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (TextUtils.equals(tag, (String) imageView.getTag())) {
-                                session.getMediasCache().loadAvatarThumbnail(session.getHomeserverConfig(), imageView, avatarUrl, context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size), bitmap);
-                            }
-                        }
-                    });
-                }
-            } else {
-                final String tmpTag0 = "00" + avatarUrl + "-" + userId + "--" + displayName;
-                imageView.setTag(tmpTag0);
+        // display the default avatar if it has already been computed
+        if (null != defaultAvatar) {
+            imageView.setImageBitmap(defaultAvatar);
 
-                // create the default avatar in the background thread
-                mImagesThreadHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (TextUtils.equals(tmpTag0, (String) imageView.getTag())) {
-                            imageView.setTag(null);
-                            setDefaultMemberAvatar(imageView, userId, displayName);
-
-                            if (!MXMediasCache.isMediaUrlUnreachable(avatarUrl)) {
-                                final String tmpTag1 = "11" + avatarUrl + "-" + userId + "--" + displayName;
-                                imageView.setTag(tmpTag1);
-
-                                // wait that it is rendered to load the right one
-                                mUIHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        // test if the imageView tag has not been updated
-                                        if (TextUtils.equals(tmpTag1, (String) imageView.getTag())) {
-                                            final String tmptag2 = "22" + avatarUrl + userId + displayName;
-                                            imageView.setTag(tmptag2);
-
-                                            mImagesThreadHandler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    // test if the imageView tag has not been updated
-                                                    if (TextUtils.equals(tmptag2, (String) imageView.getTag())) {
-                                                        final Bitmap bitmap = VectorUtils.getAvatar(imageView.getContext(), VectorUtils.getAvatarColor(userId), TextUtils.isEmpty(displayName) ? userId : displayName, false);
-                                                        session.getMediasCache().loadAvatarThumbnail(session.getHomeserverConfig(), imageView, avatarUrl, context.getResources().getDimensionPixelSize(R.dimen.profile_avatar_size), bitmap);
-                                                    }
-                                                }
-                                            });
-                                        }
-                                    }
-                                });
-                            }
-                        }
-                    }
-                });
+            // the avatar url cannot be downloaded
+            if (MXMediasCache.isMediaUrlUnreachable(avatarUrl)) {
+                return;
             }
         }
+
+        String key = session.getMyUserId() + "_" + avatarUrl + "_" + avatarSize + "_" + backgroundColor + "_" + initial;
+
+        synchronized (mPendingAvatarRequestByKey) {
+            AvatarRequest request = mPendingAvatarRequestByKey.get(key);
+
+            // merge with the pending request
+            if (null == request) {
+                request = new AvatarRequest(key, context, session, avatarUrl, avatarSize, backgroundColor, initial);
+                mPendingAvatarRequestByKey.put(key, request);
+                mImagesThreadHandler.post(request);
+            }
+
+            request.mImageViews.add(new WeakReference<>(imageView));
+            mAvatarRequestByImageView.put(imageView, request);
+        }
     }
 
     //==============================================================================================================
@@ -772,6 +944,10 @@ public class VectorUtils {
     // List uris from intent
     //==============================================================================================================
 
+    // the thumbnails computed from the intents
+    private static final int THUMBNAIL_FROM_INTENT_MAX_SIDE = 1024;
+    private static final String THUMBNAIL_FROM_INTENT_VARIANT = "intent_" + THUMBNAIL_FROM_INTENT_MAX_SIDE;
+
     /**
      * Return a selected bitmap from an intent.
      *
@@ -804,10 +980,28 @@ public class VectorUtils {
 
                     // sanity check
                     if ((null != resource) && resource.isJpegResource()) {
-                        InputStream stream = resource.mContentStream;
-                        int rotationAngle = ImageUtils.getRotationAngleForBitmap(context, thumbnailUri);
+                        File cachedThumbnailFile = VectorThumbnailCache.get(context, thumbnailUri, THUMBNAIL_FROM_INTENT_VARIANT);
+                        String mediaUrl = null;
+
+                        // already computed
+                        if (null != cachedThumbnailFile) {
+                            InputStream cachedStream = new FileInputStream(cachedThumbnailFile);
+                            mediaUrl = mediasCache.saveMedia(cachedStream, null, resource.mMimeType);
+                            cachedStream.close();
+                        }
+
+                        if (null == mediaUrl) {
+                            InputStream stream = resource.mContentStream;
+                            int rotationAngle = ImageUtils.getRotationAngleForBitmap(context, thumbnailUri);
 
-                        String mediaUrl = ImageUtils.scaleAndRotateImage(context, stream, resource.mMimeType, 1024, rotationAngle, mediasCache);
+                            mediaUrl = ImageUtils.scaleAndRotateImage(context, stream, resource.mMimeType, THUMBNAIL_FROM_INTENT_MAX_SIDE, rotationAngle, mediasCache);
+
+                            if (null != mediaUrl) {
+                                VectorThumbnailCache.put(context, thumbnailUri, THUMBNAIL_FROM_INTENT_VARIANT, new File(Uri.parse(mediaUrl).getPath()));
+                            }
+                        }
+
+                        resource.close();
                         thumbnailUri = Uri.parse(mediaUrl);
                     }
 
@@ -982,49 +1176,212 @@ public class VectorUtils {
     // URL parser
     //==============================================================================================================
 
-    private static final Pattern mUrlPattern = Pattern.compile(
-            "(?:^|[\\W])((ht|f)tp(s?):\\/\\/|www\\.)"
-                    + "(([\\w\\-]+\\.){1,}?([\\w\\-.~]+\\/?)*"
-                    + "[\\p{Alnum}.,%_=?&#\\-+()\\[\\]\\*$~@!:/{};']*)",
-            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
+    /**
+     * Tells if a character is a word character i.e [a-zA-Z_0-9].
+     *
+     * @param c the character
+     * @return true if it is a word character
+     */
+    private static boolean isUrlWordChar(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '_');
+    }
 
     /**
-     * List the URLs in a text.
+     * Tells if a character can be a part of an URL body.
      *
-     * @param text the text to parse
-     * @return the list of URLss
+     * @param c the character
+     * @return true if it is an URL character
      */
-    public static List<String> listURLs(String text) {
-        ArrayList<String> URLs = new ArrayList<>();
+    private static boolean isUrlBodyChar(char c) {
+        if (isUrlWordChar(c)) {
+            return true;
+        }
+
+        switch (c) {
+            case '.':
+            case ',':
+            case '%':
+            case '=':
+            case '?':
+            case '&':
+            case '#':
+            case '-':
+            case '+':
+            case '(':
+            case ')':
+            case '[':
+            case ']':
+            case '*':
+            case '$':
+            case '~':
+            case '@':
+            case '!':
+            case ':':
+            case '/':
+            case '{':
+            case '}':
+            case ';':
+            case '\'':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if an URL scheme prefix (http://, https://, ftp://, ftps:// or www.) starts at a text position.
+     *
+     * @param text  the text
+     * @param start the position
+     * @return the prefix length, 0 if there is no prefix
+     */
+    private static int urlPrefixLength(String text, int start) {
+        if (text.regionMatches(true, start, "www.", 0, 4)) {
+            return 4;
+        }
+
+        int pos = start;
+
+        if (text.regionMatches(true, pos, "ht", 0, 2)) {
+            pos += 2;
+        } else if (text.regionMatches(true, pos, "f", 0, 1)) {
+            pos += 1;
+        } else {
+            return 0;
+        }
+
+        if (!text.regionMatches(true, pos, "tp", 0, 2)) {
+            return 0;
+        }
+
+        pos += 2;
+
+        if (text.regionMatches(true, pos, "s", 0, 1)) {
+            pos++;
+        }
+
+        if (!text.regionMatches(pos, "://", 0, 3)) {
+            return 0;
+        }
 
+        return pos + 3 - start;
+    }
+
+    /**
+     * List the URLs ranges in a text.
+     * The text is parsed in a single pass and no substring is allocated.
+     * A range is returned for each distinct URL.
+     *
+     * @param text the text to parse
+     * @return the URL ranges : [start0, end0, start1, end1...] (end is exclusive)
+     */
+    public static int[] listURLRanges(String text) {
         // sanity checks
-        if (!TextUtils.isEmpty(text)) {
-            Matcher matcher = mUrlPattern.matcher(text);
+        if (TextUtils.isEmpty(text)) {
+            return new int[0];
+        }
+
+        int length = text.length();
+        int[] ranges = new int[8];
+        int[] hashes = new int[4];
+        int count = 0;
+
+        // a match is either at the text start or after a non word character
+        // which is not a part of the previous match
+        int pos = 0;
+        boolean canStartHere = true;
+
+        while (pos < length) {
+            if (!canStartHere) {
+                canStartHere = !isUrlWordChar(text.charAt(pos));
+                pos++;
+                continue;
+            }
 
-            while (matcher.find()) {
-                int matchStart = matcher.start(1);
-                int matchEnd = matcher.end();
+            int prefixLength = urlPrefixLength(text, pos);
 
-                String charBef = "";
-                String charAfter = "";
+            if (0 == prefixLength) {
+                canStartHere = !isUrlWordChar(text.charAt(pos));
+                pos++;
+                continue;
+            }
 
-                if (matchStart > 2) {
-                    charBef = text.substring(matchStart - 2, matchStart);
-                }
+            int matchStart = pos;
+            int bodyStart = pos + prefixLength;
+
+            // the body must start with a [\w-]+. domain part
+            int domainEnd = bodyStart;
+
+            while ((domainEnd < length) && (isUrlWordChar(text.charAt(domainEnd)) || (text.charAt(domainEnd) == '-'))) {
+                domainEnd++;
+            }
+
+            if ((domainEnd == bodyStart) || (domainEnd >= length) || (text.charAt(domainEnd) != '.')) {
+                canStartHere = !isUrlWordChar(text.charAt(pos));
+                pos++;
+                continue;
+            }
 
-                if ((matchEnd - 1) < text.length()) {
-                    charAfter = text.substring(matchEnd - 1, matchEnd);
+            int matchEnd = domainEnd + 1;
+
+            while ((matchEnd < length) && isUrlBodyChar(text.charAt(matchEnd))) {
+                matchEnd++;
+            }
+
+            // keep the link between parenthesis, it might be a link [title](link)
+            boolean isMarkdownLink = (text.charAt(matchEnd - 1) == ')') && (matchStart > 2) && text.regionMatches(matchStart - 2, "](", 0, 2);
+
+            if (!isMarkdownLink) {
+                int matchLength = matchEnd - matchStart;
+                int hash = 0;
+
+                for (int i = matchStart; i < matchEnd; i++) {
+                    hash = 31 * hash + text.charAt(i);
                 }
 
-                // keep the link between parenthesis, it might be a link [title](link)
-                if (!TextUtils.equals(charAfter, ")") || !TextUtils.equals(charBef, "](")) {
-                    String url = text.substring(matchStart, matchEnd);
+                boolean isDuplicated = false;
+
+                for (int i = 0; (i < count) && !isDuplicated; i++) {
+                    int otherStart = ranges[2 * i];
 
-                    if (URLs.indexOf(url) < 0) {
-                        URLs.add(url);
+                    isDuplicated = (hashes[i] == hash) &&
+                            ((ranges[2 * i + 1] - otherStart) == matchLength) &&
+                            text.regionMatches(otherStart, text, matchStart, matchLength);
+                }
+
+                if (!isDuplicated) {
+                    if (count == hashes.length) {
+                        hashes = Arrays.copyOf(hashes, count * 2);
+                        ranges = Arrays.copyOf(ranges, count * 4);
                     }
+
+                    ranges[2 * count] = matchStart;
+                    ranges[2 * count + 1] = matchEnd;
+                    hashes[count] = hash;
+                    count++;
                 }
             }
+
+            // the next match must be preceded by a non word character after this match
+            pos = matchEnd;
+            canStartHere = false;
+        }
+
+        return Arrays.copyOf(ranges, 2 * count);
+    }
+
+    /**
+     * List the URLs in a text.
+     *
+     * @param text the text to parse
+     * @return the list of URLss
+     */
+    public static List<String> listURLs(String text) {
+        int[] ranges = listURLRanges(text);
+        ArrayList<String> URLs = new ArrayList<>(ranges.length / 2);
+
+        for (int i = 0; i < ranges.length; i += 2) {
+            URLs.add(text.substring(ranges[i], ranges[i + 1]));
         }
 
         return URLs;
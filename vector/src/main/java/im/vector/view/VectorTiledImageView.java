@@ -0,0 +1,726 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.vector.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import org.matrix.androidsdk.util.ImageUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Zoomable image view which never decodes the full resolution image.
+ * A subsampled image fitting the view is displayed first, then the visible part of the image
+ * is decoded by tiles at the resolution required by the zoom level.
+ * The tiles which are not visible anymore are released.
+ */
+public class VectorTiledImageView extends View {
+    private static final String LOG_TAG = "VTiledImageView";
+
+    // tile size in decoded pixels
+    private static final int TILE_SIZE = 512;
+
+    // a tile which cannot be decoded is retried at the next refreshes until this count
+    private static final int MAX_TILE_DECODING_ATTEMPTS = 3;
+
+    // max zoom (in screen pixels per image pixel)
+    private static final float MAX_SCALE = 4.0f;
+
+    // value used by the callers to request the rotation to be read from the exif metadata
+    public static final int EXIF_ROTATION_ANGLE = Integer.MAX_VALUE;
+
+    // the images are decoded in the background
+    private static final ExecutorService mDecodingExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "VTiledImageView");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * A decoded part of the image.
+     */
+    private static class Tile {
+        // the sample size
+        final int mSampleSize;
+        // the tile rectangle in the image coordinates
+        final Rect mImageRect;
+        // the decoded tile (null until it is decoded)
+        Bitmap mBitmap;
+        // the failed decoding attempts
+        int mFailuresCount;
+        // true when the last decoding attempt failed
+        boolean mIsFailed;
+        // true when the tile is not used anymore
+        volatile boolean mIsReleased;
+
+        Tile(int sampleSize, Rect imageRect) {
+            mSampleSize = sampleSize;
+            mImageRect = imageRect;
+        }
+    }
+
+    /**
+     * The decoded image (shared with the decoding threads).
+     */
+    private static class ImageSource {
+        // the image file
+        final String mPath;
+        // the rotation angle to apply (0, 90, 180 or 270)
+        int mRotationAngle;
+        // the image size
+        int mWidth;
+        int mHeight;
+        // lazily created region decoder
+        BitmapRegionDecoder mRegionDecoder;
+        // true when the image is not displayed anymore
+        volatile boolean mIsReleased;
+
+        ImageSource(String path) {
+            mPath = path;
+        }
+
+        /**
+         * Decode a part of the image.
+         * @param tile the tile to decode
+         * @return the bitmap, null if it cannot be decoded.
+         */
+        synchronized Bitmap decodeTile(Tile tile) {
+            if (mIsReleased || tile.mIsReleased) {
+                return null;
+            }
+
+            try {
+                if (null == mRegionDecoder) {
+                    mRegionDecoder = BitmapRegionDecoder.newInstance(mPath, false);
+                }
+
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = tile.mSampleSize;
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+                return mRegionDecoder.decodeRegion(tile.mImageRect, options);
+            } catch (OutOfMemoryError oom) {
+                Log.e(LOG_TAG, "## decodeTile() : out of memory");
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## decodeTile() : failed " + e.getMessage());
+            }
+
+            return null;
+        }
+
+        /**
+         * Release the region decoder.
+         */
+        synchronized void release() {
+            mIsReleased = true;
+
+            if (null != mRegionDecoder) {
+                mRegionDecoder.recycle();
+                mRegionDecoder = null;
+            }
+        }
+    }
+
+    // the displayed image
+    private ImageSource mImageSource;
+
+    // the image which is being decoded
+    private ImageSource mPendingImageSource;
+
+    // the subsampled image (it fits the view)
+    private Bitmap mPreviewBitmap;
+
+    // the decoded tiles by key
+    private final HashMap<String, Tile> mTiles = new HashMap<>();
+
+    // image coordinates -> rotated image coordinates
+    private final Matrix mRotationMatrix = new Matrix();
+    // image coordinates -> view coordinates
+    private final Matrix mDrawMatrix = new Matrix();
+    private final Matrix mInverseMatrix = new Matrix();
+
+    // the zoom and the translation of the rotated image in the view
+    private float mScale = 0;
+    private float mTranslateX = 0;
+    private float mTranslateY = 0;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mRectF = new RectF();
+    private final Rect mRect = new Rect();
+
+    private final ScaleGestureDetector mScaleGestureDetector;
+    private final GestureDetector mGestureDetector;
+
+    public VectorTiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public VectorTiledImageView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public VectorTiledImageView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        mScaleGestureDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomTo(mScale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                mTranslateX -= distanceX;
+                mTranslateY -= distanceY;
+                updateMatrix();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                float fitScale = getFitScale();
+                zoomTo((mScale > fitScale * 1.1f) ? fitScale : Math.max(fitScale * 2.5f, 1.0f), e.getX(), e.getY());
+                return true;
+            }
+
+            @Override
+            public void onLongPress(MotionEvent e) {
+                performLongClick();
+            }
+        });
+    }
+
+    //==============================================================================================================
+    // Image management
+    //==============================================================================================================
+
+    /**
+     * Display an image file.
+     * The current image is kept until the new one is decoded.
+     * @param path the image file path
+     * @param rotationAngle the rotation angle, EXIF_ROTATION_ANGLE to read it from the exif metadata
+     */
+    public void setImageFile(final String path, final int rotationAngle) {
+        if ((null != mImageSource) && (null != path) && path.equals(mImageSource.mPath)) {
+            return;
+        }
+
+        // cancel any pending decoding
+        if (null != mPendingImageSource) {
+            mPendingImageSource.release();
+        }
+
+        final ImageSource imageSource = new ImageSource(path);
+        final boolean hadImage = (null != mImageSource);
+
+        mDecodingExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(imageSource.mPath, options);
+
+                imageSource.mWidth = options.outWidth;
+                imageSource.mHeight = options.outHeight;
+
+                if ((imageSource.mWidth <= 0) || (imageSource.mHeight <= 0)) {
+                    Log.e(LOG_TAG, "## setImageFile() : cannot read " + imageSource.mPath);
+                    return;
+                }
+
+                // another image has been set
+                if (imageSource.mIsReleased) {
+                    return;
+                }
+
+                int angle = rotationAngle;
+
+                if (EXIF_ROTATION_ANGLE == angle) {
+                    angle = ImageUtils.getRotationAngleForBitmap(getContext(), Uri.fromFile(new File(imageSource.mPath)));
+                }
+
+                imageSource.mRotationAngle = ((angle % 360) + 360) % 360;
+
+                // the preview is not larger than the view (or the screen when the view is not yet laid out)
+                // the tiles provide the extra resolution when the image is zoomed
+                int maxSide = Math.max(getWidth(), getHeight());
+
+                if (0 == maxSide) {
+                    maxSide = Math.max(getResources().getDisplayMetrics().widthPixels, getResources().getDisplayMetrics().heightPixels);
+                }
+
+                int side = Math.max(imageSource.mWidth, imageSource.mHeight);
+                int sampleSize = 1;
+
+                while ((side / sampleSize) > maxSide) {
+                    sampleSize *= 2;
+                }
+
+                Bitmap preview = null;
+
+                // another image has been set while reading the exif metadata
+                if (imageSource.mIsReleased) {
+                    return;
+                }
+
+                try {
+                    BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+                    decodeOptions.inSampleSize = sampleSize;
+                    preview = BitmapFactory.decodeFile(imageSource.mPath, decodeOptions);
+                } catch (OutOfMemoryError oom) {
+                    Log.e(LOG_TAG, "## setImageFile() : out of memory");
+                }
+
+                final Bitmap fPreview = preview;
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // another image has been set
+                        if (imageSource.mIsReleased) {
+                            if (null != fPreview) {
+                                fPreview.recycle();
+                            }
+                            return;
+                        }
+
+                        mPendingImageSource = null;
+
+                        boolean isZoomed = hadImage && (mScale > getFitScale() * 1.01f);
+                        float centerX = 0, centerY = 0;
+
+                        // keep the zoomed area when the high resolution image replaces the thumbnail
+                        if (isZoomed && (null != mImageSource)) {
+                            centerX = (getWidth() / 2.0f - mTranslateX) / mScale / getRotatedWidth(mImageSource);
+                            centerY = (getHeight() / 2.0f - mTranslateY) / mScale / getRotatedHeight(mImageSource);
+                        }
+
+                        float displayedWidth = (null != mImageSource) ? getRotatedWidth(mImageSource) * mScale : 0;
+
+                        releaseImage();
+
+                        mImageSource = imageSource;
+                        mPreviewBitmap = fPreview;
+
+                        updateRotationMatrix();
+
+                        if (isZoomed) {
+                            mScale = displayedWidth / getRotatedWidth(mImageSource);
+                            mTranslateX = getWidth() / 2.0f - centerX * getRotatedWidth(mImageSource) * mScale;
+                            mTranslateY = getHeight() / 2.0f - centerY * getRotatedHeight(mImageSource) * mScale;
+                            updateMatrix();
+                        } else {
+                            resetZoom();
+                        }
+                    }
+                });
+            }
+        });
+
+        mPendingImageSource = imageSource;
+    }
+
+    /**
+     * Release the decoded image and tiles.
+     * The view displays nothing until setImageFile is called.
+     */
+    public void recycle() {
+        if (null != mPendingImageSource) {
+            mPendingImageSource.release();
+            mPendingImageSource = null;
+        }
+
+        releaseImage();
+        invalidate();
+    }
+
+    /**
+     * Release the current image.
+     */
+    private void releaseImage() {
+        releaseTiles(null);
+
+        if (null != mImageSource) {
+            final ImageSource imageSource = mImageSource;
+            imageSource.mIsReleased = true;
+
+            // the decoder might be used by a decoding thread
+            mDecodingExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    imageSource.release();
+                }
+            });
+
+            mImageSource = null;
+        }
+
+        if (null != mPreviewBitmap) {
+            mPreviewBitmap.recycle();
+            mPreviewBitmap = null;
+        }
+    }
+
+    /**
+     * Release the tiles which are not in a list.
+     * @param keptKeys the tiles to keep, null to release all of them
+     */
+    private void releaseTiles(ArrayList<String> keptKeys) {
+        Iterator<String> it = mTiles.keySet().iterator();
+
+        while (it.hasNext()) {
+            String key = it.next();
+
+            if ((null == keptKeys) || !keptKeys.contains(key)) {
+                Tile tile = mTiles.get(key);
+                tile.mIsReleased = true;
+
+                if (null != tile.mBitmap) {
+                    tile.mBitmap.recycle();
+                    tile.mBitmap = null;
+                }
+
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // the tiles are decoded again if the view is reattached
+        releaseTiles(null);
+    }
+
+    //==============================================================================================================
+    // Zoom management
+    //==============================================================================================================
+
+    private static int getRotatedWidth(ImageSource imageSource) {
+        return ((90 == imageSource.mRotationAngle) || (270 == imageSource.mRotationAngle)) ? imageSource.mHeight : imageSource.mWidth;
+    }
+
+    private static int getRotatedHeight(ImageSource imageSource) {
+        return ((90 == imageSource.mRotationAngle) || (270 == imageSource.mRotationAngle)) ? imageSource.mWidth : imageSource.mHeight;
+    }
+
+    /**
+     * @return the scale to fit the image in the view
+     */
+    private float getFitScale() {
+        if ((null == mImageSource) || (0 == getWidth()) || (0 == getHeight())) {
+            return 1.0f;
+        }
+
+        return Math.min((float) getWidth() / getRotatedWidth(mImageSource), (float) getHeight() / getRotatedHeight(mImageSource));
+    }
+
+    /**
+     * Compute the image coordinates -> rotated image coordinates matrix.
+     */
+    private void updateRotationMatrix() {
+        mRotationMatrix.reset();
+
+        if ((null != mImageSource) && (0 != mImageSource.mRotationAngle)) {
+            mRotationMatrix.postRotate(mImageSource.mRotationAngle);
+
+            if (90 == mImageSource.mRotationAngle) {
+                mRotationMatrix.postTranslate(mImageSource.mHeight, 0);
+            } else if (180 == mImageSource.mRotationAngle) {
+                mRotationMatrix.postTranslate(mImageSource.mWidth, mImageSource.mHeight);
+            } else {
+                mRotationMatrix.postTranslate(0, mImageSource.mWidth);
+            }
+        }
+    }
+
+    /**
+     * Fit the image in the view.
+     */
+    private void resetZoom() {
+        if (null == mImageSource) {
+            return;
+        }
+
+        mScale = getFitScale();
+        mTranslateX = (getWidth() - getRotatedWidth(mImageSource) * mScale) / 2.0f;
+        mTranslateY = (getHeight() - getRotatedHeight(mImageSource) * mScale) / 2.0f;
+        updateMatrix();
+    }
+
+    /**
+     * Zoom around a focus point.
+     * @param scale the new scale
+     * @param focusX the focus X in the view
+     * @param focusY the focus Y in the view
+     */
+    private void zoomTo(float scale, float focusX, float focusY) {
+        if (null == mImageSource) {
+            return;
+        }
+
+        float newScale = Math.max(getFitScale(), Math.min(scale, Math.max(MAX_SCALE, getFitScale())));
+
+        mTranslateX = focusX - (focusX - mTranslateX) * newScale / mScale;
+        mTranslateY = focusY - (focusY - mTranslateY) * newScale / mScale;
+        mScale = newScale;
+        updateMatrix();
+    }
+
+    /**
+     * Keep the image in the view bounds and refresh the display.
+     */
+    private void updateMatrix() {
+        if (null == mImageSource) {
+            return;
+        }
+
+        float displayedWidth = getRotatedWidth(mImageSource) * mScale;
+        float displayedHeight = getRotatedHeight(mImageSource) * mScale;
+
+        // center the image when it is smaller than the view, else avoid the empty borders
+        if (displayedWidth <= getWidth()) {
+            mTranslateX = (getWidth() - displayedWidth) / 2.0f;
+        } else {
+            mTranslateX = Math.min(0, Math.max(getWidth() - displayedWidth, mTranslateX));
+        }
+
+        if (displayedHeight <= getHeight()) {
+            mTranslateY = (getHeight() - displayedHeight) / 2.0f;
+        } else {
+            mTranslateY = Math.min(0, Math.max(getHeight() - displayedHeight, mTranslateY));
+        }
+
+        mDrawMatrix.set(mRotationMatrix);
+        mDrawMatrix.postScale(mScale, mScale);
+        mDrawMatrix.postTranslate(mTranslateX, mTranslateY);
+        mDrawMatrix.invert(mInverseMatrix);
+
+        refreshTiles();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetZoom();
+    }
+
+    @Override
+    public boolean canScrollHorizontally(int direction) {
+        // let the view pager swipe when the image border is reached
+        if ((null == mImageSource) || (getRotatedWidth(mImageSource) * mScale <= getWidth() + 1)) {
+            return false;
+        }
+
+        if (direction < 0) {
+            return mTranslateX < -0.5f;
+        } else {
+            return (mTranslateX + getRotatedWidth(mImageSource) * mScale) > (getWidth() + 0.5f);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        mScaleGestureDetector.onTouchEvent(event);
+
+        if (!mScaleGestureDetector.isInProgress()) {
+            mGestureDetector.onTouchEvent(event);
+        }
+
+        return true;
+    }
+
+    //==============================================================================================================
+    // Tiles management
+    //==============================================================================================================
+
+    /**
+     * Compute the visible tiles, decode the missing ones and release the hidden ones.
+     */
+    private void refreshTiles() {
+        if ((null == mImageSource) || (null == mPreviewBitmap) || (0 == getWidth()) || (0 == getHeight())) {
+            return;
+        }
+
+        // the preview resolution is enough
+        float previewScale = (float) mPreviewBitmap.getWidth() / mImageSource.mWidth;
+
+        if (mScale <= previewScale * 1.05f) {
+            releaseTiles(null);
+            return;
+        }
+
+        // the decoded resolution must be at least the displayed one
+        int sampleSize = 1;
+
+        while ((sampleSize * 2) <= (1.0f / mScale)) {
+            sampleSize *= 2;
+        }
+
+        // visible area in the image coordinates
+        mRectF.set(0, 0, getWidth(), getHeight());
+        mInverseMatrix.mapRect(mRectF);
+
+        int tileImageSide = TILE_SIZE * sampleSize;
+        int left = Math.max(0, (int) Math.floor(mRectF.left / tileImageSide));
+        int top = Math.max(0, (int) Math.floor(mRectF.top / tileImageSide));
+        int right = Math.min((mImageSource.mWidth - 1) / tileImageSide, (int) Math.floor(mRectF.right / tileImageSide));
+        int bottom = Math.min((mImageSource.mHeight - 1) / tileImageSide, (int) Math.floor(mRectF.bottom / tileImageSide));
+
+        ArrayList<String> visibleKeys = new ArrayList<>();
+
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                String key = sampleSize + "_" + x + "_" + y;
+                visibleKeys.add(key);
+
+                Tile tile = mTiles.get(key);
+
+                if (null == tile) {
+                    Rect imageRect = new Rect(x * tileImageSide, y * tileImageSide, Math.min(mImageSource.mWidth, (x + 1) * tileImageSide), Math.min(mImageSource.mHeight, (y + 1) * tileImageSide));
+                    tile = new Tile(sampleSize, imageRect);
+                    mTiles.put(key, tile);
+                    decodeTile(mImageSource, tile);
+                } else if (tile.mIsFailed && (tile.mFailuresCount < MAX_TILE_DECODING_ATTEMPTS)) {
+                    // try again
+                    tile.mIsFailed = false;
+                    decodeTile(mImageSource, tile);
+                }
+            }
+        }
+
+        // keep the tiles of the other levels until the visible ones are decoded
+        // the failed tiles do not prevent it, the preview is displayed instead
+        boolean areVisibleTilesDecoded = true;
+
+        for (String key : visibleKeys) {
+            Tile tile = mTiles.get(key);
+            areVisibleTilesDecoded &= (null != tile.mBitmap) || tile.mIsFailed;
+        }
+
+        if (areVisibleTilesDecoded) {
+            releaseTiles(visibleKeys);
+        }
+    }
+
+    /**
+     * Decode a tile in the background.
+     * @param imageSource the image source
+     * @param tile the tile
+     */
+    private void decodeTile(final ImageSource imageSource, final Tile tile) {
+        mDecodingExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = imageSource.decodeTile(tile);
+
+                // the tile is not displayed anymore
+                if ((null == bitmap) && (imageSource.mIsReleased || tile.mIsReleased)) {
+                    return;
+                }
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (tile.mIsReleased) {
+                            if (null != bitmap) {
+                                bitmap.recycle();
+                            }
+                        } else if (null == bitmap) {
+                            Log.e(LOG_TAG, "## decodeTile() : cannot decode " + tile.mImageRect);
+                            tile.mFailuresCount++;
+                            tile.mIsFailed = true;
+                            refreshTiles();
+                        } else {
+                            tile.mBitmap = bitmap;
+                            refreshTiles();
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (null == mImageSource) {
+            return;
+        }
+
+        canvas.save();
+        canvas.concat(mDrawMatrix);
+
+        if (null != mPreviewBitmap) {
+            mRect.set(0, 0, mImageSource.mWidth, mImageSource.mHeight);
+            canvas.drawBitmap(mPreviewBitmap, null, mRect, mPaint);
+        }
+
+        int maxSampleSize = 1;
+
+        for (Tile tile : mTiles.values()) {
+            maxSampleSize = Math.max(maxSampleSize, tile.mSampleSize);
+        }
+
+        // the lowest resolution tiles first
+        for (int sampleSize = maxSampleSize; sampleSize >= 1; sampleSize /= 2) {
+            for (Tile tile : mTiles.values()) {
+                if ((null != tile.mBitmap) && (tile.mSampleSize == sampleSize)) {
+                    canvas.drawBitmap(tile.mBitmap, null, tile.mImageRect, mPaint);
+                }
+            }
+        }
+
+        canvas.restore();
+    }
+}